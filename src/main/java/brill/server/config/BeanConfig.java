@@ -11,6 +11,9 @@ import org.springframework.boot.web.embedded.tomcat.TomcatServletWebServerFactor
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.core.env.Environment;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import static brill.server.git.GitRepository.*;
 import static java.lang.String.format;
 import java.io.IOException;
@@ -38,6 +41,12 @@ public class BeanConfig {
     @Value("${brill.apps.local.repo.skip.pull:false}")
     Boolean skipRepoPull;
 
+    @Value("${brill.apps.fileCache.maxBytes:33554432}")
+    long fileCacheMaxBytes;
+
+    @Value("${brill.apps.fileCache.maxFileBytes:1048576}")
+    long fileCacheMaxFileBytes;
+
     @Value("${server.extraHttpPort:-1}")
     private Integer extraPort;
 
@@ -53,6 +62,27 @@ public class BeanConfig {
     @Value("${database.password:}")
     String password;
 
+    @Value("${database.pool.minIdle:" + Database.DEFAULT_MIN_IDLE + "}")
+    int poolMinIdle;
+
+    @Value("${database.pool.maxSize:" + Database.DEFAULT_MAX_SIZE + "}")
+    int poolMaxSize;
+
+    @Value("${database.pool.maxWaitMs:" + Database.DEFAULT_MAX_WAIT_MS + "}")
+    long poolMaxWaitMs;
+
+    @Value("${database.pool.validationIdleMs:" + Database.DEFAULT_VALIDATION_IDLE_MS + "}")
+    long poolValidationIdleMs;
+
+    @Value("${database.pool.keepaliveMs:" + Database.DEFAULT_KEEPALIVE_MS + "}")
+    long poolKeepaliveMs;
+
+    @Value("${database.pool.warmUp:0}")
+    int poolWarmUp;
+
+    @Value("${database.pool.statementCacheSize:" + Database.DEFAULT_STATEMENT_CACHE_SIZE + "}")
+    int poolStatementCacheSize;
+
     /**
      * Creates a bean at startup for accessing the apps config repository. Either
      * clones the repo if it doesn't already exist or does a pull.
@@ -60,7 +90,7 @@ public class BeanConfig {
      * @return GitService bean
      */
     @Bean("gitAppsRepo")
-    public GitRepository gitAppsRepoBean() {
+    public GitRepository gitAppsRepoBean(MeterRegistry meterRegistry) {
         try {
             String[] profiles = environment.getActiveProfiles();
             if (profiles.length == 0) {
@@ -77,6 +107,17 @@ public class BeanConfig {
             log.info(format("Local Repro: %s", localRepoDir));
 
             GitRepository repo = new GitRepository(remoteRepositoryUrl, localRepoDir);
+            repo.setFileCacheSize(fileCacheMaxBytes, fileCacheMaxFileBytes);
+            FunctionCounter.builder("brill.git.file.cache.hits", repo, GitRepository::getFileCacheHits)
+                .description("Files read from the file cache").register(meterRegistry);
+            FunctionCounter.builder("brill.git.file.cache.misses", repo, GitRepository::getFileCacheMisses)
+                .description("Files that weren't in the file cache").register(meterRegistry);
+            FunctionCounter.builder("brill.git.file.cache.evictions", repo, GitRepository::getFileCacheEvictions)
+                .description("Files evicted from the file cache to make room").register(meterRegistry);
+            Gauge.builder("brill.git.file.cache.bytes", repo, GitRepository::getFileCacheBytes)
+                .description("Size of the files in the file cache").baseUnit("bytes").register(meterRegistry);
+            Gauge.builder("brill.git.file.cache.files", repo, GitRepository::getFileCacheSize)
+                .description("Number of files in the file cache").register(meterRegistry);
 
             if (repo.localRepoExits(PRODUCTION_WORKSPACE)) {
                 if (!skipRepoPull) {
@@ -122,8 +163,17 @@ public class BeanConfig {
     }
 
     @Bean("database")
-    public Database databaseServiceBean() {
-        return new Database(driver, url, username, password);
+    public Database databaseServiceBean(MeterRegistry meterRegistry) {
+        Database database = new Database(driver, url, username, password, poolMinIdle, poolMaxSize, poolMaxWaitMs);
+        database.setValidationIdleTime(poolValidationIdleMs);
+        database.setKeepaliveTime(poolKeepaliveMs);
+        database.setStatementCacheSize(poolStatementCacheSize);
+        FunctionCounter.builder("brill.db.statement.cache.hits", database, Database::getStatementCacheHits)
+            .description("Prepared Statements re-used from the statement cache").register(meterRegistry);
+        FunctionCounter.builder("brill.db.statement.cache.misses", database, Database::getStatementCacheMisses)
+            .description("Prepared Statements that weren't in the statement cache").register(meterRegistry);
+        database.warmUp(poolWarmUp);
+        return database;
     }
     
     /**
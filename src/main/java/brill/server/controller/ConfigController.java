@@ -6,6 +6,7 @@ import javax.json.JsonObject;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.web.socket.WebSocketSession;
 import brill.server.service.WebSocketService;
+import brill.server.utils.JsonUtils;
 import brill.server.webSockets.annotations.*;
 import static java.lang.String.format;
 
@@ -65,4 +66,30 @@ public class ConfigController {
             log.error("Config error: ", e);
         }
     }
+
+    /**
+     * Switches the session between WebSocket binary messages and base64 encoded text messages for file and image
+     * content. Clients that can decode binary frames send this after connecting. The response contains the setting
+     * in use, so a client talking to an older server that doesn't support binary frames gets an error and carries 
+     * on with base64.
+     * 
+     * Example:
+     * {"event":"request","topic":"config:/binaryFrames","content":{"enabled":true}}
+     * 
+     * @param session Web Socket session.
+     * @param message JsonObject with the content containing enabled true or false.
+     */
+    @Event(value = "request", topicMatches = "config:/binaryFrames")
+    public void requestBinaryFrames(@Session WebSocketSession session, @Message JsonObject message) {
+        String topic = "";
+        try {
+            topic = message.getString("topic");
+            boolean enabled = JsonUtils.getJsonObject(message, "content").getBoolean("enabled", false);
+            wsService.setBinaryFrames(session, enabled);
+            wsService.sendMessageToClient(session, "response", topic, format("{\"enabled\": %s}", enabled));
+        } catch (Exception e) {
+            wsService.sendErrorToClient(session, topic, "Config Error", e.getMessage());
+            log.error("Binary frames request error: ", e);
+        }
+    }
 }
\ No newline at end of file
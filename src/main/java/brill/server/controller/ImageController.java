@@ -26,7 +26,7 @@ public class ImageController {
 
     /**
      * Get an image from a file. The content is returned as a string that can be provided as the
-     * src attribute to a html <img> tag.
+     * src attribute to a html <img> tag. Clients that use binary frames are sent the image bytes instead.
      * 
      * @param session Web Socket session.
      * @param message JsonObject with the topic to unscubscribe from.
@@ -36,10 +36,15 @@ public class ImageController {
         String topic = "";
         try {
             topic = message.getString("topic");
-            String image = gitService.getFileBase64Encoded(wsService.getWorkspace(session), topic);
             String fileExt = TopicUtils.getFileExtension(topic);
-            String content = "\"data:image/" + fileExt + ";base64," + image + "\"";
-            wsService.sendMessageToClient(session, "publish", topic, content, false);
+            if (wsService.isBinaryFrames(session)) {
+                byte[] image = gitService.getBinaryFile(wsService.getWorkspace(session), topic);
+                wsService.sendBinaryMessageToClient(session, "publish", topic, image, "image/" + fileExt);
+            } else {
+                String image = gitService.getFileBase64Encoded(wsService.getWorkspace(session), topic);
+                String content = "\"data:image/" + fileExt + ";base64," + image + "\"";
+                wsService.sendMessageToClient(session, "publish", topic, content, false);
+            }
             wsService.addSubscription(session, topic);
         } catch (Exception e) {
             wsService.sendErrorToClient(session, topic, "Image Error", e.getMessage());
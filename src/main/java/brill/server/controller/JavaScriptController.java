@@ -11,6 +11,7 @@ import brill.server.utils.JsonUtils;
 import brill.server.webSockets.annotations.*;
 import static java.lang.String.format;
 import java.util.List;
+import java.util.Map;
 
 
 /**
@@ -86,9 +87,9 @@ public class JavaScriptController {
                 String republishTopic = resultObj.getString(REPUBLISH_TOPIC);
                 String js = gitService.getFile(wsService.getWorkspace(session), republishTopic);
                 List<Subscriber> jsSubscribers = wsService.getSubscribers(republishTopic);
-                for (Subscriber subscriber : jsSubscribers) {
-                    String res = jsService.execute(js, "", subscriber.getFilter(), wsService.getUsername(session), dbWriteAllowed);
-                    wsService.sendMessageToClient(subscriber.getSession(), "publish", republishTopic, res);
+                for (Map.Entry<String, List<Subscriber>> group : Subscriber.groupByFilter(jsSubscribers).entrySet()) {
+                    String res = jsService.execute(js, "", group.getKey(), wsService.getUsername(session), dbWriteAllowed);
+                    wsService.broadcast(group.getValue(), "publish", republishTopic, res);
                 }
             }
         } catch (MissingValueException e) {
@@ -0,0 +1,47 @@
+// © 2021 Brill Software Limited - Brill Framework, distributed under the MIT License.
+package brill.server.controller;
+
+import javax.json.JsonObject;
+import org.springframework.web.socket.WebSocketSession;
+import brill.server.service.DatabaseMetrics;
+import brill.server.service.WebSocketService;
+import brill.server.webSockets.annotations.*;
+
+/**
+ * Metrics Controller - provides the client with the server statistics.
+ */
+@WebSocketController
+public class MetricsController {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(MetricsController.class);
+
+    private WebSocketService wsService;
+    private DatabaseMetrics dbMetrics;
+
+    public MetricsController(WebSocketService wsService, DatabaseMetrics dbMetrics) {
+        this.wsService = wsService;
+        this.dbMetrics = dbMetrics;
+    }
+
+    /**
+     * Subscribes to the database statistics. The statistics are sent straight away and then every
+     * database.metrics.publishIntervalSeconds. Requires the db_metrics permission, as the statistics include SQL.
+     *
+     * Example:
+     * {"event":"subscribe","topic":"metrics:/db"}
+     *
+     * @param session Web Socket session.
+     * @param message JsonObject with the topic.
+     */
+    @Event(value = "subscribe", topicMatches = "metrics:/db", permission = "db_metrics")
+    public void subscribeToDbMetrics(@Session WebSocketSession session, @Message JsonObject message) {
+        String topic = "";
+        try {
+            topic = message.getString("topic");
+            wsService.sendMessageToClient(session, "publish", topic, dbMetrics.getJson());
+            wsService.addSubscription(session, topic);
+        } catch (Exception e) {
+            wsService.sendErrorToClient(session, topic, "Metrics Error", e.getMessage());
+            log.error("Database metrics subscribe error: ", e);
+        }
+    }
+}
@@ -2,13 +2,15 @@
 package brill.server.controller;
 
 import javax.json.JsonObject;
-import javax.json.JsonValue;
 import org.springframework.web.socket.WebSocketSession;
 import brill.server.domain.Subscriber;
+import brill.server.exception.WebSocketException;
 import brill.server.service.*;
+import brill.server.webSockets.LazyJsonMessage;
 import brill.server.webSockets.annotations.*;
 import java.util.Base64;
 import java.util.List;
+import java.util.Map;
 import static java.lang.String.format;
 
 /**
@@ -23,17 +25,21 @@ public class PublishController {
     private JavaScriptService jsService;
     private WebSocketService wsService;
     private DatabaseService db;
+    private PublishCoalescer coalescer;
     // @Autowired
-    public PublishController(GitService gitService, JavaScriptService jsService, WebSocketService wsService, DatabaseService db) {
+    public PublishController(GitService gitService, JavaScriptService jsService, WebSocketService wsService, DatabaseService db,
+                             PublishCoalescer coalescer) {
         this.gitService = gitService;
         this.jsService = jsService;
         this.wsService = wsService;
         this.db = db;
+        this.coalescer = coalescer;
     }
 
     /**
      * Publishes a .json topic. The JSON content is written to the local git respository. All Clients that have
-     * subscribed to the topic are sent a "publish" event and the new content.
+     * subscribed to the topic are sent a "publish" event and the new content. When the topic is published several
+     * times in quick succession, the PublishCoalescer may only send the subscribers the latest content.
      * 
      * Example
      * {"event": "publish", "topic": "json:/resource/pageTitle.json", "content": "This is the new page title."}
@@ -49,23 +55,12 @@ public class PublishController {
         try {
             String content = "";
             topic = message.getString("topic");
-            content = message.get("content").toString(); 
-            gitService.saveFile(wsService.getWorkspace(session), topic, content);
-           
-            // Publish to any sessions that have subscribed to the topic using "json:".
-            List<Subscriber> subscribers = wsService.getSubscribers(topic);
-            for (Subscriber subscriber : subscribers) {
-                wsService.sendMessageToClient(subscriber.getSession(), "publish", topic, content, 
-                    false, topic.endsWith(".jsonc"));
-            }
-
-            // Publish to any sessions that have subscribed to the topic using "file:".
-            String fileTopic = topic.replace("json:", "file:");
-            List<Subscriber> fileSubscribers = wsService.getSubscribers(fileTopic);
-            for (Subscriber subscriber : fileSubscribers) {
-                wsService.sendMessageToClient(subscriber.getSession(), "publish", fileTopic, content, 
-                    true, topic.endsWith(".jsonc"));
+            content = LazyJsonMessage.getContentJson(message);
+            if (content == null) {
+                throw new Exception("The message doesn't have any content.");
             }
+            gitService.saveFile(wsService.getWorkspace(session), topic, content);
+            publishJsonToSubscribers(topic, topic.replace("json:", "file:"), content);
 
         } catch (Exception e) {
             wsService.sendErrorToClient(session, topic, "Publish Failed", e.getMessage());
@@ -90,27 +85,14 @@ public class PublishController {
         String topic = "";
         try {
             topic = message.getString("topic");
-            if (!isContentBase64Encoded(message)) {
+            JsonObject contentObj = LazyJsonMessage.getContentFields(message, "base64");
+            if (!isContentBase64Encoded(contentObj)) {
                 throw new Exception("Content must contain an object with a key of 'base64' containing a base64 encoded string");
             }
                 
-            String content = new String(Base64.getDecoder().decode(message.getJsonObject("content").getString("base64")));
+            String content = new String(Base64.getDecoder().decode(contentObj.getString("base64")));
             gitService.saveFile(wsService.getWorkspace(session), topic, content);
-     
-            // Publish to any sessions that have subscribed to the topic using "file:".
-            List<Subscriber> subscribers = wsService.getSubscribers(topic);
-            for (Subscriber subscriber : subscribers) {
-                wsService.sendMessageToClient(subscriber.getSession(), "publish", topic, content, 
-                    true, topic.endsWith(".jsonc"));
-            }
-
-            // Publish to any sessions that have subscribed to the topic using "json:".
-            String jsonTopic = topic.replace("file:", "json:");
-            List<Subscriber> jsonSubscribers = wsService.getSubscribers(jsonTopic);
-            for (Subscriber subscriber : jsonSubscribers) {
-                wsService.sendMessageToClient(subscriber.getSession(), "publish", jsonTopic, content, 
-                    false, topic.endsWith(".jsonc"));
-            }
+            publishJsonToSubscribers(topic.replace("file:", "json:"), topic, content);
         } catch (Exception e) {
             wsService.sendErrorToClient(session, topic, "Publish Failed", e.getMessage());
             log.error(format("Publication exception: %s", e.getMessage()));
@@ -133,24 +115,24 @@ public class PublishController {
         String topic = "";
         try {
             topic = message.getString("topic");
-            if (!isContentBase64Encoded(message)) {
+            JsonObject contentObj = LazyJsonMessage.getContentFields(message, "base64");
+            if (!isContentBase64Encoded(contentObj)) {
                 throw new Exception("Content must contain an object with a key of 'base64' containing a base64 encoded string");
             }
-            String javaScript = new String(Base64.getDecoder().decode(message.getJsonObject("content").getString("base64")));
+            String javaScript = new String(Base64.getDecoder().decode(contentObj.getString("base64")));
             gitService.saveFile(wsService.getWorkspace(session), topic, javaScript);
         
             // Publish to any sessions that have subscribed to the topic using "file:".
             List<Subscriber> subscribers = wsService.getSubscribers(topic);
-            for (Subscriber subscriber : subscribers) {
-                wsService.sendMessageToClient(subscriber.getSession(), "publish", topic, javaScript, true);
-            }
+            wsService.broadcast(subscribers, "publish", topic, javaScript, true, false);
             
-            // Publish to any sessions that have subscribed to the topic using "javascript:". The JavaScript is executed.
+            // Publish to any sessions that have subscribed to the topic using "javascript:". The JavaScript is executed
+            // once for each different filter.
             String javascriptTopic = topic.replace("file:", "javascript:");
             List<Subscriber> jsSubscribers = wsService.getSubscribers(javascriptTopic);
-            for (Subscriber subscriber : jsSubscribers) {
-                String result = jsService.execute(javaScript, "", subscriber.getFilter(), wsService.getUsername(session), false);
-                wsService.sendMessageToClient(subscriber.getSession(), "publish", javascriptTopic, result);
+            for (Map.Entry<String, List<Subscriber>> group : Subscriber.groupByFilter(jsSubscribers).entrySet()) {
+                String result = jsService.execute(javaScript, "", group.getKey(), wsService.getUsername(session), false);
+                wsService.broadcast(group.getValue(), "publish", javascriptTopic, result);
             }
         } catch (Exception e) {
             wsService.sendErrorToClient(session, topic, "Publish Failed", e.getMessage());
@@ -174,25 +156,32 @@ public class PublishController {
         String topic = "";
         try {
             topic = message.getString("topic");
-            if (!isContentBase64Encoded(message)) {
+            JsonObject contentObj = LazyJsonMessage.getContentFields(message, "base64");
+            if (!isContentBase64Encoded(contentObj)) {
                 throw new Exception("Content must contain an object with a key of 'base64' containing a base64 encoded string");
             }
-            String sql = new String(Base64.getDecoder().decode(   message.getJsonObject("content").getString("base64")));
+            String sql = new String(Base64.getDecoder().decode(contentObj.getString("base64")));
             gitService.saveFile(wsService.getWorkspace(session), topic, sql);
             
             // Publish to any sessions that have subscribed to the topic using "file:".
             List<Subscriber> subscribers = wsService.getSubscribers(topic);
-            for (Subscriber subscriber : subscribers) {
-                wsService.sendMessageToClient(subscriber.getSession(), "publish", topic, sql, true);
-            }
+            wsService.broadcast(subscribers, "publish", topic, sql, true, false);
 
-            // Publish to any sessions that have subscribed to the topic using "query:".
+            // Publish to any sessions that have subscribed to the topic using "query:". The SQL is executed once for
+            // each different filter.
             String queryTopic = topic.replace("file:", "query:");
             List<Subscriber> querySubscribers = wsService.getSubscribers(queryTopic);
-            for (Subscriber subscriber : querySubscribers) {
-                // Execute the SQL.
-                JsonValue result = db.queryUsingNamedParameters(sql, (JsonObject)subscriber.getFilterJsonValue());
-                wsService.sendMessageToClient(subscriber.getSession(), "publish", queryTopic, result.toString());
+            for (List<Subscriber> group : Subscriber.groupByFilter(querySubscribers).values()) {
+                JsonObject filter = (JsonObject) group.get(0).getFilterJsonValue();
+                int pageSize = DatabaseService.getPageSize(filter);
+                if (pageSize > 0) {
+                    // Paged subscribers get the first page again.
+                    wsService.broadcast(group, "publish", queryTopic, 
+                        generator -> db.queryPageUsingNamedParameters(sql, filter, generator, null, pageSize));
+                } else {
+                    wsService.broadcast(group, "publish", queryTopic, 
+                        generator -> db.queryUsingNamedParameters(sql, filter, generator));
+                }
             }
         } catch (Exception e) {
             wsService.sendErrorToClient(session, topic, "Publish Failed", e.getMessage());
@@ -214,14 +203,14 @@ public class PublishController {
         String topic = "";
         try {
             topic = message.getString("topic");
-            if (!isContentBase64Encoded(message)) {
+            JsonObject content = LazyJsonMessage.getContentFields(message, "base64", "noOverwrite");
+            if (!isContentBase64Encoded(content)) {
                 throw new Exception("Content must contain an object with a key of 'base64' containing a base64 encoded string");
             }
             int index = topic.lastIndexOf('.');
             if (index == -1 || index == topic.length() - 1) {
                 throw new Exception("The topic must end with a file extension.");
             }
-            JsonObject content = message.getJsonObject("content");
             boolean noOverwrite = false;
             if (content.containsKey("noOverwrite")) {
                 noOverwrite = content.getBoolean("noOverwrite");
@@ -231,8 +220,8 @@ public class PublishController {
             
             // Publish to any sessions that have subscribed to the topic.
             List<Subscriber> subscribers = wsService.getSubscribers(topic);
-            for (Subscriber subscriber : subscribers) {
-                wsService.sendMessageToClient(subscriber.getSession(), "publish", topic, content.toString());
+            if (!subscribers.isEmpty()) {
+                wsService.broadcast(subscribers, "publish", topic, LazyJsonMessage.getContentJson(message));
             }
         } catch (Exception e) {
             wsService.sendErrorToClient(session, topic, "Publish Failed", e.getMessage());
@@ -240,8 +229,19 @@ public class PublishController {
         }
     }
 
-    private boolean isContentBase64Encoded(JsonObject message) {
-        JsonObject contentObj =  message.getJsonObject("content");
+    /**
+     * Sends JSON content to the sessions that have subscribed using "json:" and the sessions that have subscribed
+     * using "file:", which are sent the content base64 encoded.
+     */
+    private void publishJsonToSubscribers(String jsonTopic, String fileTopic, String content) throws WebSocketException {
+        boolean jsonc = jsonTopic.endsWith(".jsonc");
+        coalescer.publish(jsonTopic, () -> 
+            wsService.broadcast(wsService.getSubscribers(jsonTopic), "publish", jsonTopic, content, false, jsonc));
+        coalescer.publish(fileTopic, () -> 
+            wsService.broadcast(wsService.getSubscribers(fileTopic), "publish", fileTopic, content, true, jsonc));
+    }
+
+    private boolean isContentBase64Encoded(JsonObject contentObj) {
         if (contentObj == null || !contentObj.containsKey("base64")) {
             return false;
         }
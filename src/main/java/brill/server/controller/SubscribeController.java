@@ -4,14 +4,19 @@ package brill.server.controller;
 import javax.json.JsonObject;
 import javax.json.JsonValue;
 import javax.json.stream.JsonParsingException;
+import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
+import brill.server.database.NamedPreparedStatement;
 import brill.server.exception.SecurityServiceException;
 import brill.server.exception.WebSocketException;
 import brill.server.service.DatabaseService;
 import brill.server.service.GitService;
 import brill.server.service.JavaScriptService;
+import brill.server.service.PublishFrameCache;
+import brill.server.service.QueryResultCache;
 import brill.server.service.SecurityService;
 import brill.server.service.WebSocketService;
+import brill.server.utils.JsonUtils;
 import brill.server.webSockets.annotations.*;
 import static java.lang.String.format;
 
@@ -28,14 +33,19 @@ public class SubscribeController {
     private WebSocketService wsService;
     private DatabaseService db;
     private SecurityService securityService;
+    private QueryResultCache resultCache;
+    private PublishFrameCache frameCache;
     // @Autowired
     public SubscribeController(GitService gitService, JavaScriptService jsService, WebSocketService wsService, 
-                               DatabaseService db, SecurityService securitySerivce) {
+                               DatabaseService db, SecurityService securitySerivce, QueryResultCache resultCache,
+                               PublishFrameCache frameCache) {
         this.gitService = gitService;
         this.jsService = jsService;
         this.wsService = wsService;
         this.db = db;
         this.securityService = securitySerivce;
+        this.resultCache = resultCache;
+        this.frameCache = frameCache;
     }
 
     /**
@@ -84,9 +94,24 @@ public class SubscribeController {
         String content = "";
         try {
             topic = message.getString("topic");
-            content = gitService.getFile(wsService.getWorkspace(session), topic);
-            securityService.checkPermission(session, content);
-            wsService.sendMessageToClient(session, "publish", topic, content, isFilterSpecifyingBase64(message), topic.endsWith(".jsonc"));
+            boolean jsonc = topic.endsWith(".jsonc");
+            // JSONC is stripped of its comments before it's sent, unless the client asked for the file as base64.
+            boolean base64 = isFilterSpecifyingBase64(message);
+            String workspace = wsService.getWorkspace(session);
+            if (base64) {
+                content = gitService.getFile(workspace, topic);
+                securityService.checkPermission(session, content);
+                wsService.sendMessageToClient(session, "publish", topic, content, true);
+            } else {
+                content = jsonc ? gitService.getFileWithoutComments(workspace, topic) : gitService.getFile(workspace, topic);
+                // The parsed permission and the message are kept until the file changes.
+                String pageTopic = topic;
+                String pageContent = content;
+                PublishFrameCache.Frame frame = frameCache.get(workspace, topic, content, () -> new PublishFrameCache.Frame(
+                    wsService.createMessage("publish", pageTopic, pageContent), securityService.getRequiredPermission(pageContent)));
+                securityService.checkRequiredPermission(session, frame.getPermission());
+                wsService.sendTextMessageToClient(session, "publish", topic, frame.getMessage());
+            }
             wsService.addSubscription(session, topic);
         } catch (JsonParsingException e) {      
             if (content.contains("<<<<<<<") && content.contains("=======") && content.contains(">>>>>>>")) {
@@ -128,12 +153,17 @@ public class SubscribeController {
         try {
             topic = message.getString("topic");
             JsonObject filterObj =  message.getJsonObject("filter");
-            String javaScript = gitService.getFile(wsService.getWorkspace(session), topic);
+            String workspace = wsService.getWorkspace(session);
+            String javaScript = gitService.getFile(workspace, topic);
             boolean dbWriteAllowed = wsService.hasPermission(session, "db_write");
-            // Execute the JavaScript and publish the results to the Client.
-            String results = jsService.execute(javaScript, "", filterObj.toString(), wsService.getUsername(session),
-                dbWriteAllowed);
-            wsService.sendMessageToClient(session, "publish", topic, results);       
+            String username = wsService.getUsername(session);
+            // Execute the JavaScript and publish the results to the Client. The results can be cached, but only for
+            // the same user, as the JavaScript is given the username.
+            String jsTopic = topic;
+            TextMessage results = resultCache.get(QueryResultCache.createKey(workspace, topic, filterObj.toString(), username),
+                javaScript, () -> recordSize(wsService.createMessage("publish", jsTopic, 
+                    jsService.execute(javaScript, "", filterObj.toString(), username, dbWriteAllowed))));
+            wsService.sendTextMessageToClient(session, "publish", topic, results);       
             wsService.addSubscription(session, topic, filterObj);
         } catch (Exception e) {
             wsService.sendErrorToClient(session, topic, "Server subscribe error.", e.getMessage());
@@ -147,6 +177,11 @@ public class SubscribeController {
      * 
      * Example: {"event": "subscribe", "topic": "query:/db_app/database/query.sql"}
      * 
+     * When the filter contains a page_size, only the first page of rows is returned. The message also has a
+     * continuation field, which is used to request the next page, or is null when there are no more rows.
+     * 
+     * Example: {"event": "subscribe", "topic": "query:/db_app/database/query.sql", "filter": {"page_size": 100}}
+     * 
      * @param session Web Socket session.
      * @param message JSonObject containing the .sql Topic.
      */   
@@ -156,11 +191,22 @@ public class SubscribeController {
         try {
             topic = message.getString("topic");
             JsonObject filterObj =  message.getJsonObject("filter");
-            String sql = gitService.getFile(wsService.getWorkspace(session), topic);
+            String workspace = wsService.getWorkspace(session);
+            String sql = gitService.getFile(workspace, topic);
             
-            // Execute the SQL.
-            JsonValue result = db.queryUsingNamedParameters(sql, filterObj);
-            wsService.sendMessageToClient(session, "publish", topic, result.toString());
+            // Execute the SQL, unless the result is in the cache. The rows are written straight into the message.
+            int pageSize = DatabaseService.getPageSize(filterObj);
+            String sqlTopic = topic;
+            String key = QueryResultCache.createKey(workspace, topic, filterObj == null ? null : filterObj.toString(), null);
+            TextMessage result = resultCache.get(key, sql, () -> {
+                if (pageSize > 0) {
+                    return recordSize(wsService.createMessage("publish", sqlTopic, 
+                        generator -> db.queryPageUsingNamedParameters(sql, filterObj, generator, null, pageSize)));
+                }
+                return recordSize(wsService.createMessage("publish", sqlTopic, 
+                    generator -> db.queryUsingNamedParameters(sql, filterObj, generator)));
+            });
+            wsService.sendTextMessageToClient(session, "publish", topic, result);
             
             wsService.addSubscription(session, topic, filterObj);
         } catch (Exception e) {
@@ -169,6 +215,49 @@ public class SubscribeController {
         }
     }
 
+    /**
+     * Sends the next page of rows for a paged .sql subscription. The rows are sent with an event of publish-append,
+     * for the client to add to the rows it already has. The query is run again with the filter of the subscription
+     * and the rows before the page are skipped, so no database cursor is held open between requests.
+     * 
+     * Example: {"event": "request", "topic": "query:/db_app/database/query.sql", "content": {"continuation": "b2Zmc2V0OjEwMA"}}
+     * 
+     * @param session Web Socket session.
+     * @param message JSonObject containing the .sql Topic and the continuation token.
+     */
+    @Event(value = "request", topicMatches = "query:/.*\\.sql")
+    public void requestQueryPage(@Session WebSocketSession session, @Message JsonObject message) {
+        String topic = "";
+        try {
+            topic = message.getString("topic");
+            String continuation = message.getJsonObject("content").getString(DatabaseService.CONTINUATION);
+            String filter = wsService.getSubscriptionFilter(session, topic);
+            if (filter == null) {
+                throw new WebSocketException(format("There's no subscription to %s", topic));
+            }
+            JsonObject filterObj = JsonUtils.jsonFromString(filter);
+            int pageSize = DatabaseService.getPageSize(filterObj);
+            if (pageSize == 0) {
+                throw new WebSocketException(format("The subscription to %s doesn't have a %s", topic, NamedPreparedStatement.PAGE_SIZE));
+            }
+            String sql = gitService.getFile(wsService.getWorkspace(session), topic);
+            TextMessage page = recordSize(wsService.createMessage("publish-append", topic, 
+                generator -> db.queryPageUsingNamedParameters(sql, filterObj, generator, continuation, pageSize)));
+            wsService.sendTextMessageToClient(session, "publish-append", topic, page);
+        } catch (Exception e) {
+            wsService.sendErrorToClient(session, topic, "Server request error.", e.getMessage());
+            log.error("Query page request exception.", e);
+        }
+    }
+
+    /**
+     * Records the size of a query result in the database statistics for the topic.
+     */
+    private TextMessage recordSize(TextMessage message) {
+        db.recordResultBytes(message.getPayloadLength());
+        return message;
+    }
+
     private boolean isFilterSpecifyingBase64(JsonObject message) {
         JsonObject filterObj =  message.getJsonObject("filter");
         if (filterObj == null) {
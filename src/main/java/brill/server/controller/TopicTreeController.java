@@ -32,9 +32,13 @@ public class TopicTreeController {
     * inlcuded in the result as a base64 encoded string.
     *
     * Used by the CMS to get the list of files to display on the left hand side.
+    *
+    * Setting the filter value patches to true gets the version of the tree in the top node, and changes to the tree are
+    * then published as publish-patch messages rather than the whole tree. See GitService.publishTopicTree().
     * 
     * Examples: {"event": "subscribe", "topic": "/"}
     *  {"event": "subscribe", "topic": "/myApp", "filter": {includeFileContent: true, hiddenApps: "brill_cms"}}
+    *  {"event": "subscribe", "topic": "/", "filter": {patches: true, hiddenApps: "brill_cms"}}
     *   
     */
     @Event(value = "subscribe", topicMatches = "file:.*/$", permission="file_read") // Match any file Topic that ends in a /
@@ -6,7 +6,9 @@ import java.sql.*;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.json.*;
+import javax.json.stream.JsonGenerator;
 import javax.json.stream.JsonParsingException;
 import static java.lang.String.format;
 
@@ -17,7 +19,21 @@ import static java.lang.String.format;
 public class CachedConnection implements Connection {
     private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(CachedConnection.class);
 
-    private boolean inUse;
+    private static final int FETCH_SIZE = 1000;
+
+    /**
+     * A statement execution that's timed.
+     */
+    @FunctionalInterface
+    private interface Execution<T> {
+        T execute() throws SQLException;
+    }
+
+    private final AtomicBoolean inUse = new AtomicBoolean(true);
+    private final ConnectionPool pool;
+    private final StatementCache statementCache;
+    private final QueryStats queryStats;
+    private int rowCount;
     private Connection conn;
     private Statement stmt = null;
     private ResultSet rset = null;
@@ -25,37 +41,67 @@ public class CachedConnection implements Connection {
     private String url;
     private String username;
     private String password;
-    private long lastInUseChange;
+    private volatile long lastInUseChange;
+    private volatile long lastChecked;
+    private volatile Throwable borrowTrace;
 
-    CachedConnection(Connection conn, String url, String username, String password) {
-        inUse = true;
+    CachedConnection(Connection conn, String url, String username, String password, ConnectionPool pool,
+                     int statementCacheSize) {
         this.conn = conn;
         this.url = url;
         this.username = username;
         this.password = password;
+        this.pool = pool;
+        this.statementCache = new StatementCache(statementCacheSize);
+        this.queryStats = pool != null ? pool.getQueryStats() : null;
         lastInUseChange = System.currentTimeMillis();
     }
 
-    boolean equals(String url, String username, String password) {
-        if (password.equals(this.password) && username.equals(this.username) && url.equals(this.url))
-            return true;
-
-        return false;
-    }
-
     boolean isInUse() {
-        return inUse;
+        return inUse.get();
     }
 
     void setInUse(boolean inUse) {
         lastInUseChange = System.currentTimeMillis();
-        this.inUse = inUse;
+        this.inUse.set(inUse);
+    }
+
+    /**
+     * Marks a connection that has been in use for too long as no longer in use, so that it can be removed from the
+     * pool. A later call to close() by the borrower then does nothing.
+     * 
+     * @return False if the connection was returned in the meantime.
+     */
+    boolean takeBack() {
+        return inUse.compareAndSet(true, false);
+    }
+
+    void setBorrowTrace(Throwable borrowTrace) {
+        this.borrowTrace = borrowTrace;
+    }
+
+    /**
+     * @return Where the connection was borrowed, or null when debug logging wasn't enabled.
+     */
+    Throwable getBorrowTrace() {
+        return borrowTrace;
     }
 
     long getLastInUseChange() {
         return lastInUseChange;
     }
 
+    void setLastChecked(long lastChecked) {
+        this.lastChecked = lastChecked;
+    }
+
+    /**
+     * @return When the connection was last used or checked to be valid.
+     */
+    long getLastChecked() {
+        return Math.max(lastInUseChange, lastChecked);
+    }
+
     public String getUrl() {
         return url + "," + username;
     }
@@ -65,6 +111,7 @@ public class CachedConnection implements Connection {
     }
 
     void closeConnection() {
+        statementCache.clear();
         try {
             conn.close();
         } catch (SQLException e) {
@@ -73,8 +120,17 @@ public class CachedConnection implements Connection {
 
     }
 
+    /**
+     * Returns the connection to the pool. The database connection stays open.
+     */
     public void close() {
-        setInUse(false);
+        if (inUse.compareAndSet(true, false)) {
+            lastInUseChange = System.currentTimeMillis();
+            borrowTrace = null;
+            if (pool != null) {
+                pool.release(this);
+            }
+        }
     }
 
     private void reset() {
@@ -106,7 +162,7 @@ public class CachedConnection implements Connection {
     public JsonArray executeQuery(String sql, String jsonParameters) throws SQLException {
         try {
             reset();
-            PreparedStatement stmt = conn.prepareStatement(sql);
+            PreparedStatement stmt = statementCache.prepareStatement(conn, sql);
 
             if (jsonParameters != null && jsonParameters.length() > 0) {
                 JsonReader reader = Json.createReader(new StringReader(jsonParameters));
@@ -143,9 +199,10 @@ public class CachedConnection implements Connection {
                     index++;
                 }
             }
-            rset = stmt.executeQuery();
-            JsonArray jsonArray = getJsonArrayFromResultSet(rset);
-            return jsonArray;
+            return timed(sql, sql + "\nParameters = " + jsonParameters, () -> {
+                rset = stmt.executeQuery();
+                return getJsonArrayFromResultSet(rset);
+            });
         } catch (JsonParsingException e) {
             log.error(format("Json parsing exception: %s\n%s", e.getMessage(), jsonParameters));
             throw new SQLException("JSON parsing error. Please see the server log for more details.");
@@ -170,10 +227,11 @@ public class CachedConnection implements Connection {
     public JsonArray executeNamedParametersQuery(String sql, JsonObject jsonObject) throws SQLException {
         log.debug(sql);
         reset();
-        NamedPreparedStatement stmt = NamedPreparedStatement.prepareStatement(conn, sql, jsonObject);
-        rset = stmt.executeQuery();
-        JsonArray jsonArray = getJsonArrayFromResultSet(rset);
-        return jsonArray;
+        NamedPreparedStatement stmt = NamedPreparedStatement.prepareStatement(this, sql, jsonObject);
+        return timed(sql, stmt.getQuery(), () -> {
+            rset = stmt.executeQuery();
+            return getJsonArrayFromResultSet(rset);
+        });
     }
 
     /**
@@ -187,55 +245,123 @@ public class CachedConnection implements Connection {
             // log.trace("Query SQL = " + sql);
             reset();
             stmt = conn.createStatement();
-            rset = stmt.executeQuery(sql);
-            JsonArray jsonArray = getJsonArrayFromResultSet(rset);
-            return jsonArray;
+            return timed(sql, sql, () -> {
+                rset = stmt.executeQuery(sql);
+                return getJsonArrayFromResultSet(rset);
+            });
         } catch (SQLException se) {
             log.trace("sql = " + sql, se);
         }
         return null;
     }
 
+    /**
+     * Takes in a named parameter SQL query and set of JSON parameter values and executes the query. The results are
+     * written as a JSON array of objects to the generator, one row at a time, rather than building the whole array in
+     * memory.
+     * 
+     * @param sql SQL that has named parameters.
+     * @param jsonObject The parameter values.
+     * @param generator The JSON array is written to this generator.
+     * @throws SQLException
+     */
+    public void executeNamedParametersQuery(String sql, JsonObject jsonObject, JsonGenerator generator) throws SQLException {
+        log.debug(sql);
+        reset();
+        NamedPreparedStatement stmt = NamedPreparedStatement.prepareStatement(this, sql, jsonObject);
+        stmt.setFetchSize(FETCH_SIZE);
+        timed(sql, stmt.getQuery(), () -> {
+            rset = stmt.executeQuery();
+            return writeResultSet(rset, generator, 0, Integer.MAX_VALUE);
+        });
+    }
+
+    /**
+     * Executes a named parameter query and writes one page of the results as a JSON array to the generator. The
+     * rows before the offset are skipped and the database is asked for no more than the rows needed, so the SQL
+     * doesn't have to support LIMIT and the row order is the same as when the query isn't paged.
+     * 
+     * @param sql SQL that has named parameters.
+     * @param jsonObject The parameter values.
+     * @param generator The JSON array is written to this generator.
+     * @param offset Number of rows to skip.
+     * @param pageSize Maximum number of rows to write.
+     * @return True if there are more rows after the page.
+     * @throws SQLException
+     */
+    public boolean executeNamedParametersQuery(String sql, JsonObject jsonObject, JsonGenerator generator, int offset, 
+                                               int pageSize) throws SQLException {
+        log.debug(sql);
+        reset();
+        NamedPreparedStatement stmt = NamedPreparedStatement.prepareStatement(this, sql, jsonObject);
+        int fetchSize = stmt.getFetchSize();
+        try {
+            long maxRows = (long) offset + pageSize + 1;
+            stmt.setMaxRows(maxRows > Integer.MAX_VALUE ? 0 : (int) maxRows);
+            stmt.setFetchSize(Math.min(FETCH_SIZE, pageSize + 1));
+            return timed(sql, stmt.getQuery(), () -> {
+                rset = stmt.executeQuery();
+                return writeResultSet(rset, generator, offset, pageSize);
+            });
+        } finally {
+            // The statement is cached and may be used again without paging.
+            stmt.setMaxRows(0);
+            stmt.setFetchSize(fetchSize);
+        }
+    }
+
     private JsonArray getJsonArrayFromResultSet(ResultSet rs) throws SQLException {
-        ResultSetMetaData metaData = rs.getMetaData();
-        int count = metaData.getColumnCount();
-        String[] columnName = new String[count];
+        ColumnDecoder[] decoders = ColumnDecoder.forResultSet(rs.getMetaData());
         JsonArrayBuilder jsonArrayBuilder = Json.createArrayBuilder();
         while (rs.next()) {
             JsonObjectBuilder jsonObjectBuilder = Json.createObjectBuilder();
-            for (int i = 1; i <= count; i++) {
-                columnName[i - 1] = metaData.getColumnLabel(i);
-                int colType = metaData.getColumnType(i);
-                if (colType == Types.INTEGER || colType == Types.BIGINT) {
-                    jsonObjectBuilder.add(columnName[i - 1], rs.getInt(i));
-                } else {
-                    String str = rs.getString(i);
-                    if (str != null) {
-                        jsonObjectBuilder.add(columnName[i - 1], str);
-                    } else {
-                        jsonObjectBuilder.addNull(columnName[i - 1]);
-                    }
-                }
+            for (ColumnDecoder decoder : decoders) {
+                decoder.add(rs, jsonObjectBuilder);
             }
-            JsonObject jsonObject = jsonObjectBuilder.build();
-            jsonArrayBuilder.add(jsonObject);
+            jsonArrayBuilder.add(jsonObjectBuilder);
+            rowCount++;
         }
         return jsonArrayBuilder.build();
     }
 
+    /**
+     * Writes the rows from offset to offset + limit as a JSON array.
+     * 
+     * @return True if there are more rows.
+     */
+    private boolean writeResultSet(ResultSet rs, JsonGenerator generator, int offset, int limit) throws SQLException {
+        ColumnDecoder[] decoders = ColumnDecoder.forResultSet(rs.getMetaData());
+        generator.writeStartArray();
+        boolean more = rs.next();
+        for (int skipped = 0; more && skipped < offset; skipped++) {
+            more = rs.next();
+        }
+        for (int written = 0; more && written < limit; written++) {
+            generator.writeStartObject();
+            for (ColumnDecoder decoder : decoders) {
+                decoder.write(rs, generator);
+            }
+            generator.writeEnd();
+            rowCount++;
+            more = rs.next();
+        }
+        generator.writeEnd();
+        return more;
+    }
+
     public int executeUpdate(String sql) throws SQLException {
         int retValue = 0;
         // Log.write(Log.TRACE,"Update SQL = " + sql);
         reset();
         stmt = conn.createStatement();
-        retValue = stmt.executeUpdate(sql);
+        retValue = timed(sql, sql, () -> rowCount = stmt.executeUpdate(sql));
         return retValue;
     }
 
     public int executeUpdate(String sql, String jsonParameters) throws SQLException {
         try {
             reset();
-            PreparedStatement stmt = conn.prepareStatement(sql);
+            PreparedStatement stmt = statementCache.prepareStatement(conn, sql);
 
             if (jsonParameters != null && jsonParameters.length() > 0) {
                 JsonReader reader = Json.createReader(new StringReader(jsonParameters));
@@ -272,7 +398,7 @@ public class CachedConnection implements Connection {
                     index++;
                 }
             }
-            int retValue = stmt.executeUpdate();
+            int retValue = timed(sql, sql + "\nParameters = " + jsonParameters, () -> rowCount = stmt.executeUpdate());
             return retValue;
             
         } catch (JsonParsingException e) {
@@ -299,12 +425,114 @@ public class CachedConnection implements Connection {
     public int executeNamedParametersUpdate(String sql, JsonObject jsonObject) throws SQLException {
         log.debug(sql);
         reset();
-        NamedPreparedStatement stmt = NamedPreparedStatement.prepareStatement(conn, sql, jsonObject);
-        int rowCount = stmt.executeUpdate();
-        return rowCount;
+        NamedPreparedStatement stmt = NamedPreparedStatement.prepareStatement(this, sql, jsonObject);
+        return timed(sql, stmt.getQuery(), () -> rowCount = stmt.executeUpdate());
+    }
+
+    /**
+     * Executes a named parameter SQL statement once for each object in the JSON array, as a single JDBC batch, on
+     * one connection and in a single transaction. If any row fails, none of the rows are committed.
+     * 
+     * Whether the rows are sent to the database together depends on the driver. MySQL Connector/J only does this when
+     * the URL has rewriteBatchedStatements=true, which rewrites an INSERT batch as one multi-row INSERT and sends
+     * other statements together. Without it, each row is still a separate round trip.
+     * 
+     * Example:
+     * 
+     * insert into employee (name, department) values (:name, :department)
+     * 
+     * [{"name": "Ali", "department": "Sales"}, {"name": "Sam", "department": "Support"}]
+     * 
+     * @param sql SQL that has named parameters.
+     * @param rows JSON array of objects, one object of parameter values for each row.
+     * @return The number of rows updated for each object. A driver can return Statement.SUCCESS_NO_INFO (-2) when the
+     *         count isn't known, for example MySQL with rewriteBatchedStatements.
+     * @throws SQLException Thrown if any row fails, after the transaction has been rolled back.
+     */
+    public int[] executeNamedParametersBatch(String sql, JsonArray rows) throws SQLException {
+        log.debug(sql);
+        reset();
+        if (rows.isEmpty()) {
+            return new int[0];
+        }
+        for (JsonValue row : rows) {
+            if (row.getValueType() != JsonValue.ValueType.OBJECT) {
+                throw new SQLException("Batch parameters must be a JSON array of objects.");
+            }
+        }
+        boolean autoCommit = getAutoCommit();
+        NamedPreparedStatement stmt = null;
+        try {
+            setAutoCommit(false);
+            stmt = NamedPreparedStatement.prepareStatement(this, sql, rows.getJsonObject(0));
+            for (int i = 1; i < rows.size(); i++) {
+                stmt.addBatch(rows.getJsonObject(i));
+            }
+            stmt.addBatch();
+            NamedPreparedStatement batchStmt = stmt;
+            int[] rowCounts = timed(sql, format("%s\n(Batch of %s rows)", sql, rows.size()), () -> {
+                int[] counts = batchStmt.executeBatch();
+                for (int count : counts) {
+                    rowCount += Math.max(count, 0);
+                }
+                return counts;
+            });
+            conn.commit();
+            return rowCounts;
+        } catch (SQLException | RuntimeException e) {
+            try {
+                if (stmt != null) {
+                    stmt.clearBatch(); // The statement is cached, so mustn't be left with rows in the batch.
+                }
+                conn.rollback();
+            } catch (SQLException re) {
+                log.warn("Unable to rollback batch: " + re.getMessage());
+            }
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * Runs the execution and records the time taken, the number of rows and whether it failed in the QueryStats.
+     * 
+     * @param sql The SQL as written.
+     * @param equivalentSql The SQL with the parameter values, for the slow query log.
+     * @param execution Executes the statement and reads the results.
+     * @return The result of the execution.
+     * @throws SQLException
+     */
+    private <T> T timed(String sql, String equivalentSql, Execution<T> execution) throws SQLException {
+        if (queryStats == null) {
+            return execution.execute();
+        }
+        rowCount = 0;
+        long startTime = System.nanoTime();
+        boolean failed = true;
+        try {
+            T result = execution.execute();
+            failed = false;
+            return result;
+        } finally {
+            queryStats.record(sql, equivalentSql, System.nanoTime() - startTime, rowCount, failed);
+        }
+    }
+
+    /**
+     * Gets a Prepared Statement from the statement cache. The statement is kept open for use next time the same SQL is
+     * run, so it must not be closed.
+     * 
+     * @param sql SQL with question mark parameters.
+     * @return The Prepared Statement.
+     * @throws SQLException
+     */
+    PreparedStatement prepareCachedStatement(String sql) throws SQLException {
+        return statementCache.prepareStatement(conn, sql);
     }
 
     private void renewConnection() {
+        statementCache.clear();
         try {
             conn = DriverManager.getConnection(url, username, password);
         } catch (SQLException e) {
@@ -0,0 +1,255 @@
+// © 2021 Brill Software Limited - Database Package, distributed under the MIT License.
+package brill.server.database;
+
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.temporal.ChronoField;
+import javax.json.JsonObjectBuilder;
+import javax.json.stream.JsonGenerator;
+
+/**
+ * Converts a result set column to JSON. The decoders are created once per query from the ResultSetMetaData, so the
+ * column label and type aren't looked up for every row.
+ *
+ *  - Integer types are read with getInt or getLong and written as JSON numbers. An unsigned INTEGER is read with
+ *    getLong and an unsigned BIGINT with getBigDecimal, as their largest values don't fit in an int or a long.
+ *  - DECIMAL and NUMERIC are read with getBigDecimal, so no precision is lost.
+ *  - FLOAT, REAL and DOUBLE are read with getDouble.
+ *  - DATE and TIMESTAMP are written as yyyy-MM-dd and yyyy-MM-dd HH:mm:ss strings, the same as MySQL.
+ *  - Everything else is written as a string. TIME is left to the driver, as a MySQL TIME can be over 24 hours.
+ *
+ * A database NULL is written as a JSON null.
+ *
+ */
+abstract class ColumnDecoder {
+
+    private static final DateTimeFormatter DATE_TIME_FORMAT = new DateTimeFormatterBuilder()
+        .appendPattern("yyyy-MM-dd HH:mm:ss").appendFraction(ChronoField.NANO_OF_SECOND, 0, 9, true).toFormatter();
+
+    protected final String name;
+    protected final int index;
+
+    private ColumnDecoder(String name, int index) {
+        this.name = name;
+        this.index = index;
+    }
+
+    /**
+     * Adds the column value of the current row to the builder.
+     */
+    abstract void add(ResultSet rs, JsonObjectBuilder builder) throws SQLException;
+
+    /**
+     * Writes the column value of the current row to the generator, which must be inside an object.
+     */
+    abstract void write(ResultSet rs, JsonGenerator generator) throws SQLException;
+
+    /**
+     * Creates a decoder for each column.
+     *
+     * @param metaData The result set meta data.
+     * @return The decoders in column order.
+     * @throws SQLException
+     */
+    static ColumnDecoder[] forResultSet(ResultSetMetaData metaData) throws SQLException {
+        int count = metaData.getColumnCount();
+        ColumnDecoder[] decoders = new ColumnDecoder[count];
+        for (int i = 1; i <= count; i++) {
+            decoders[i - 1] = create(metaData.getColumnLabel(i), i, metaData.getColumnType(i), metaData.isSigned(i));
+        }
+        return decoders;
+    }
+
+    static ColumnDecoder create(String name, int index, int sqlType, boolean signed) {
+        switch (sqlType) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+                return new IntDecoder(name, index);
+            case Types.INTEGER:
+                return signed ? new IntDecoder(name, index) : new LongDecoder(name, index);
+            case Types.BIGINT:
+                return signed ? new LongDecoder(name, index) : new BigDecimalDecoder(name, index);
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+                return new BigDecimalDecoder(name, index);
+            case Types.FLOAT:
+            case Types.REAL:
+            case Types.DOUBLE:
+                return new DoubleDecoder(name, index);
+            case Types.DATE:
+                return new DateDecoder(name, index);
+            case Types.TIMESTAMP:
+                return new TimestampDecoder(name, index);
+            default:
+                return new StringDecoder(name, index);
+        }
+    }
+
+    private static class IntDecoder extends ColumnDecoder {
+        IntDecoder(String name, int index) {
+            super(name, index);
+        }
+
+        void add(ResultSet rs, JsonObjectBuilder builder) throws SQLException {
+            int value = rs.getInt(index);
+            if (rs.wasNull()) {
+                builder.addNull(name);
+            } else {
+                builder.add(name, value);
+            }
+        }
+
+        void write(ResultSet rs, JsonGenerator generator) throws SQLException {
+            int value = rs.getInt(index);
+            if (rs.wasNull()) {
+                generator.writeNull(name);
+            } else {
+                generator.write(name, value);
+            }
+        }
+    }
+
+    private static class LongDecoder extends ColumnDecoder {
+        LongDecoder(String name, int index) {
+            super(name, index);
+        }
+
+        void add(ResultSet rs, JsonObjectBuilder builder) throws SQLException {
+            long value = rs.getLong(index);
+            if (rs.wasNull()) {
+                builder.addNull(name);
+            } else {
+                builder.add(name, value);
+            }
+        }
+
+        void write(ResultSet rs, JsonGenerator generator) throws SQLException {
+            long value = rs.getLong(index);
+            if (rs.wasNull()) {
+                generator.writeNull(name);
+            } else {
+                generator.write(name, value);
+            }
+        }
+    }
+
+    private static class BigDecimalDecoder extends ColumnDecoder {
+        BigDecimalDecoder(String name, int index) {
+            super(name, index);
+        }
+
+        void add(ResultSet rs, JsonObjectBuilder builder) throws SQLException {
+            BigDecimal value = rs.getBigDecimal(index);
+            if (value == null) {
+                builder.addNull(name);
+            } else {
+                builder.add(name, value);
+            }
+        }
+
+        void write(ResultSet rs, JsonGenerator generator) throws SQLException {
+            BigDecimal value = rs.getBigDecimal(index);
+            if (value == null) {
+                generator.writeNull(name);
+            } else {
+                generator.write(name, value);
+            }
+        }
+    }
+
+    private static class DoubleDecoder extends ColumnDecoder {
+        DoubleDecoder(String name, int index) {
+            super(name, index);
+        }
+
+        void add(ResultSet rs, JsonObjectBuilder builder) throws SQLException {
+            double value = rs.getDouble(index);
+            if (rs.wasNull()) {
+                builder.addNull(name);
+            } else if (Double.isNaN(value) || Double.isInfinite(value)) {
+                builder.add(name, Double.toString(value)); // Not allowed as a JSON number.
+            } else {
+                builder.add(name, value);
+            }
+        }
+
+        void write(ResultSet rs, JsonGenerator generator) throws SQLException {
+            double value = rs.getDouble(index);
+            if (rs.wasNull()) {
+                generator.writeNull(name);
+            } else if (Double.isNaN(value) || Double.isInfinite(value)) {
+                generator.write(name, Double.toString(value)); // Not allowed as a JSON number.
+            } else {
+                generator.write(name, value);
+            }
+        }
+    }
+
+    /**
+     * Base class for the columns that are written as strings.
+     */
+    private static abstract class TextDecoder extends ColumnDecoder {
+        TextDecoder(String name, int index) {
+            super(name, index);
+        }
+
+        abstract String getText(ResultSet rs) throws SQLException;
+
+        void add(ResultSet rs, JsonObjectBuilder builder) throws SQLException {
+            String value = getText(rs);
+            if (value == null) {
+                builder.addNull(name);
+            } else {
+                builder.add(name, value);
+            }
+        }
+
+        void write(ResultSet rs, JsonGenerator generator) throws SQLException {
+            String value = getText(rs);
+            if (value == null) {
+                generator.writeNull(name);
+            } else {
+                generator.write(name, value);
+            }
+        }
+    }
+
+    private static class StringDecoder extends TextDecoder {
+        StringDecoder(String name, int index) {
+            super(name, index);
+        }
+
+        String getText(ResultSet rs) throws SQLException {
+            return rs.getString(index);
+        }
+    }
+
+    private static class DateDecoder extends TextDecoder {
+        DateDecoder(String name, int index) {
+            super(name, index);
+        }
+
+        String getText(ResultSet rs) throws SQLException {
+            LocalDate value = rs.getObject(index, LocalDate.class);
+            return value == null ? null : value.toString();
+        }
+    }
+
+    private static class TimestampDecoder extends TextDecoder {
+        TimestampDecoder(String name, int index) {
+            super(name, index);
+        }
+
+        String getText(ResultSet rs) throws SQLException {
+            LocalDateTime value = rs.getObject(index, LocalDateTime.class);
+            return value == null ? null : DATE_TIME_FORMAT.format(value);
+        }
+    }
+}
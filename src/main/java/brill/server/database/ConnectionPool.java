@@ -0,0 +1,236 @@
+// © 2021 Brill Software Limited - Database Package, distributed under the MIT License.
+package brill.server.database;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import static java.lang.String.format;
+
+/**
+ * A pool of connections for one url, username and password.
+ *
+ *  - Idle connections are held in a lock free deque. The most recently returned connection is borrowed first.
+ *  - A semaphore limits the number of connections. When they are all in use, a borrow waits for one to be returned.
+ *  - Borrowing and returning a connection doesn't depend on the number of connections in the pool.
+ *  - A connection that has been idle for longer than the validation time is checked before it's handed out, so a
+ *    connection dropped by the database server or a firewall isn't returned.
+ *  - With debug logging enabled, the stack trace of each borrow is kept so that a leaked connection can be traced.
+ *
+ */
+class ConnectionPool {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(ConnectionPool.class);
+
+    private final String driver;
+    private final String url;
+    private final String username;
+    private final String password;
+    private final int minIdle;
+    private final int maxSize;
+    private final long maxWaitMs;
+    private final long validationIdleTime;
+    private final int statementCacheSize;
+    private final QueryStats queryStats;
+
+    private final ConcurrentLinkedDeque<CachedConnection> idle = new ConcurrentLinkedDeque<CachedConnection>();
+    private final Set<CachedConnection> connections = ConcurrentHashMap.newKeySet();
+    private final Semaphore available;
+
+    private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+
+    ConnectionPool(String driver, String url, String username, String password, int minIdle, int maxSize, long maxWaitMs,
+                   long validationIdleTime, int statementCacheSize, QueryStats queryStats) {
+        this.driver = driver;
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        this.minIdle = minIdle;
+        this.maxSize = maxSize;
+        this.maxWaitMs = maxWaitMs;
+        this.validationIdleTime = validationIdleTime;
+        this.statementCacheSize = statementCacheSize;
+        this.queryStats = queryStats;
+        this.available = new Semaphore(maxSize, true);
+    }
+
+    /**
+     * Borrows a connection. An idle connection is used if there is one, otherwise a new connection is opened.
+     *
+     * @return The connection or null if the pool is exhausted or a connection can't be opened.
+     */
+    CachedConnection borrow() {
+        try {
+            if (!available.tryAcquire(maxWaitMs, TimeUnit.MILLISECONDS)) {
+                log.error(format("No database connection available after waiting %s ms. URL=%s Username=%s Max connections=%s",
+                    maxWaitMs, url, username, maxSize));
+                return null;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        CachedConnection cachedConn;
+        while ((cachedConn = idle.pollFirst()) != null) {
+            if (System.currentTimeMillis() - cachedConn.getLastChecked() <= validationIdleTime || isValid(cachedConn)) {
+                break;
+            }
+            log.warn(format("Discarding invalid database connection. URL=%s", cachedConn.getUrl()));
+            remove(cachedConn);
+        }
+        if (cachedConn == null) {
+            cachedConn = open();
+            if (cachedConn == null) {
+                available.release();
+                return null;
+            }
+        }
+        cachedConn.setInUse(true);
+        if (log.isDebugEnabled()) {
+            cachedConn.setBorrowTrace(new Throwable("Connection borrowed by thread " + Thread.currentThread().getName()));
+        }
+        return cachedConn;
+    }
+
+    private boolean isValid(CachedConnection cachedConn) {
+        try {
+            cachedConn.setLastChecked(System.currentTimeMillis());
+            return cachedConn.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Opens connections until there are at least the given number of idle connections or the pool is full. Used to
+     * warm up the pool at startup and to top up the pool after connections have been closed.
+     *
+     * Idle connections don't hold a permit, so the number of connections is checked against the maximum as well. The
+     * permit is held while the connection is opened, so that a borrow can't open another one at the same time.
+     *
+     * @param count Number of idle connections wanted.
+     * @return The number of connections opened.
+     */
+    int fill(int count) {
+        int opened = 0;
+        while (idle.size() < count && connections.size() < maxSize && available.tryAcquire()) {
+            CachedConnection cachedConn = open();
+            if (cachedConn == null) {
+                available.release();
+                break;
+            }
+            cachedConn.setInUse(false);
+            idle.offerLast(cachedConn);
+            available.release();
+            opened++;
+        }
+        return opened;
+    }
+
+    /**
+     * Returns a connection to the pool. Called when the connection is closed.
+     *
+     * @param cachedConn The connection.
+     */
+    void release(CachedConnection cachedConn) {
+        if (!connections.contains(cachedConn)) {
+            return; // Already removed from the pool by checkUse.
+        }
+        idle.offerFirst(cachedConn);
+        available.release();
+    }
+
+    private CachedConnection open() {
+        try {
+            Class.forName(driver);
+            Connection conn = DriverManager.getConnection(url, username, password);
+            CachedConnection cachedConn = new CachedConnection(conn, url, username, password, this, statementCacheSize);
+            connections.add(cachedConn);
+            return cachedConn;
+        } catch (ClassNotFoundException cnf) {
+            log.error("Can't load database driver: " + cnf.getMessage());
+        } catch (SQLException se) {
+            log.error("SQL Exception: " + se.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Closes connections that have been in use for too long, which are most likely connections that were never
+     * returned, and idle connections above the minimum that haven't been used for a while. The remaining idle
+     * connections are checked, which also keeps them alive, and the pool is topped up to the minimum.
+     */
+    void checkUse(long maxInUseTime, long maxConnectionIdleTime) {
+        long timeNow = System.currentTimeMillis();
+        for (CachedConnection cachedConn : connections) {
+            long lastInUseChange = cachedConn.getLastInUseChange();
+            if (cachedConn.isInUse()) {
+                if (timeNow - lastInUseChange > maxInUseTime && cachedConn.takeBack()) {
+                    Throwable borrowTrace = cachedConn.getBorrowTrace();
+                    if (borrowTrace != null) {
+                        log.error("Database connection in use for too long. URL=" +
+                                  cachedConn.getUrl() + " Username=" + cachedConn.getUsername(), borrowTrace);
+                    } else {
+                        log.error("Database connection in use for too long. URL=" +
+                                  cachedConn.getUrl() + " Username=" + cachedConn.getUsername());
+                    }
+                    remove(cachedConn);
+                    available.release();
+                }
+            } else if (timeNow - lastInUseChange > maxConnectionIdleTime && connections.size() > minIdle) {
+                // Only close the connection if it hasn't just been borrowed.
+                if (idle.remove(cachedConn)) {
+                    remove(cachedConn);
+                }
+            } else if (timeNow - cachedConn.getLastChecked() > validationIdleTime && idle.remove(cachedConn)) {
+                // Keepalive. Taken out of the idle deque while being checked so that it can't be borrowed.
+                if (isValid(cachedConn)) {
+                    idle.offerLast(cachedConn);
+                } else {
+                    log.warn(format("Closing invalid database connection. URL=%s", cachedConn.getUrl()));
+                    remove(cachedConn);
+                }
+            }
+        }
+        fill(minIdle);
+    }
+
+    private void remove(CachedConnection cachedConn) {
+        connections.remove(cachedConn);
+        cachedConn.closeConnection();
+    }
+
+    void closeAll() {
+        for (CachedConnection cachedConn : connections) {
+            remove(cachedConn);
+        }
+        idle.clear();
+    }
+
+    int getSize() {
+        return connections.size();
+    }
+
+    int getIdleCount() {
+        return idle.size();
+    }
+
+    int getInUseCount() {
+        return maxSize - available.availablePermits();
+    }
+
+    QueryStats getQueryStats() {
+        return queryStats;
+    }
+
+    String getUrl() {
+        return url;
+    }
+
+    String getUsername() {
+        return username;
+    }
+}
@@ -1,35 +1,51 @@
 // © 2005 Brill Software Limited - Database Package, distributed under the MIT License.
 package brill.server.database;
 
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.SQLException;
-import java.util.Vector;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import static java.lang.String.format;
 
 /**
  * Database connection pooling class.
  * 
- *  - A pool of connections is maintained, thus reducing the number of DB logins.
+ *  - A pool of connections is maintained for each url, username and password, thus reducing the number of DB logins.
+ *  - The number of connections in each pool is limited. When all are in use, getConnection waits for one to be returned.
  *  - The executeQuery method returns the results as JSON.
- *  - Connections that are not returned to the pool within 5 minutes are automatically closed.
+ *  - Connections that are not returned to the pool within 10 minutes are automatically closed.
+ *  - Connections that have been idle for a while are checked before use and kept alive by the monitor.
+ *  - Each connection keeps a cache of its Prepared Statements, so that SQL that's run often is only prepared once.
  * 
  */
 public class Database {
     private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(Database.class);
 
+    public static final int DEFAULT_MIN_IDLE = 2;
+    public static final int DEFAULT_MAX_SIZE = 20;
+    public static final long DEFAULT_MAX_WAIT_MS = 1000 * 10; // 10 seconds
+    public static final long DEFAULT_VALIDATION_IDLE_MS = 1000 * 30; // 30 seconds
+    public static final long DEFAULT_KEEPALIVE_MS = 1000 * 60 * 5; // 5 minutes
+    public static final int DEFAULT_STATEMENT_CACHE_SIZE = 50;
+
     private String defaultDriver = "";
     private String defaultUrl = "";
     private String defaultUsername = "";
     private String defaultPassword = "";
 
-    private Vector<CachedConnection> cache;
+    private int minIdle = DEFAULT_MIN_IDLE;
+    private int maxSize = DEFAULT_MAX_SIZE;
+    private long maxWaitMs = DEFAULT_MAX_WAIT_MS;
+    private long validationIdleTime = DEFAULT_VALIDATION_IDLE_MS;
+    private long keepaliveTime = DEFAULT_KEEPALIVE_MS;
+    private int statementCacheSize = DEFAULT_STATEMENT_CACHE_SIZE;
+
+    private final QueryStats queryStats = new QueryStats();
+    private Map<String, ConnectionPool> pools = new ConcurrentHashMap<String, ConnectionPool>();
     private Thread monitor = null;
     private boolean stopMonitor = false;
     private long maxConnectionIdleTime = 1000 * 60 * 30; // 30 minutes
     private long maxInUseTime = 1000 * 60 * 10; // 10 minutes
 
     public Database() {
-        cache = new Vector<CachedConnection>();
     }
 
     public Database(String defaultDriver, String defaultUrl, String defaultUsername, String defaultPassword) {
@@ -37,31 +53,110 @@ public class Database {
         this.defaultUrl = defaultUrl;
         this.defaultUsername = defaultUsername;
         this.defaultPassword = defaultPassword;
-        cache = new Vector<CachedConnection>();
     }
 
     /**
-     * Gets a database connection. A cache is maintained of database connections. An unsued connection in the cache is returned
-     * if one is available, otherwise a new connection is obtained.
+     * @param defaultDriver
+     * @param defaultUrl
+     * @param defaultUsername
+     * @param defaultPassword
+     * @param minIdle Number of idle connections that are kept open.
+     * @param maxSize Maximum number of connections for each url, username and password.
+     * @param maxWaitMs How long getConnection waits for a connection when they are all in use.
+     */
+    public Database(String defaultDriver, String defaultUrl, String defaultUsername, String defaultPassword,
+                    int minIdle, int maxSize, long maxWaitMs) {
+        this(defaultDriver, defaultUrl, defaultUsername, defaultPassword);
+        this.minIdle = minIdle;
+        this.maxSize = maxSize;
+        this.maxWaitMs = maxWaitMs;
+    }
+
+    /**
+     * Sets how long a connection can be idle before it's checked with isValid() when borrowed.
+     * 
+     * @param validationIdleTime Time in ms. Zero checks every connection.
+     */
+    public void setValidationIdleTime(long validationIdleTime) {
+        this.validationIdleTime = validationIdleTime;
+    }
+
+    /**
+     * Sets how often the monitor checks the connections. Idle connections are checked with isValid(), which stops
+     * them being timed out by the database server.
+     * 
+     * @param keepaliveTime Time in ms.
+     */
+    public void setKeepaliveTime(long keepaliveTime) {
+        this.keepaliveTime = keepaliveTime;
+    }
+
+    /**
+     * Sets the number of Prepared Statements cached for each connection.
+     * 
+     * @param statementCacheSize Number of statements. Zero turns off the cache.
+     */
+    public void setStatementCacheSize(int statementCacheSize) {
+        this.statementCacheSize = statementCacheSize;
+    }
+
+    /**
+     * @return The statement timings of all the pools.
+     */
+    public QueryStats getQueryStats() {
+        return queryStats;
+    }
+
+    /**
+     * @return The number of times a cached Prepared Statement was re-used.
+     */
+    public long getStatementCacheHits() {
+        return StatementCache.hits.sum();
+    }
+
+    /**
+     * @return The number of times a Prepared Statement wasn't in the cache.
+     */
+    public long getStatementCacheMisses() {
+        return StatementCache.misses.sum();
+    }
+
+    /**
+     * Opens connections using the default connection details, so that the first requests don't have to wait for
+     * the database login.
+     * 
+     * @param count Number of connections to open.
+     * @return The number of connections opened.
+     */
+    public int warmUp(int count) {
+        if (count <= 0 || defaultUrl == null || defaultUrl.length() == 0) {
+            return 0;
+        }
+        int opened = getPool(defaultDriver, defaultUrl, defaultUsername, defaultPassword).fill(count);
+        log.info(format("Opened %s database connections. URL=%s", opened, defaultUrl));
+        return opened;
+    }
+
+    /**
+     * Gets a database connection. A pool is maintained of database connections. An unsued connection in the pool is returned
+     * if one is available, otherwise a new connection is obtained. When the maximum number of connections are in use, waits
+     * for a connection to be returned.
      * 
      * NOTE: When finished with a connection it must be returned to the pool of available connections by calling the
-     * close method on the connection. Failure to do so will result the Monitor closing the connection after 5 minutes.
+     * close method on the connection. Failure to do so will result the Monitor closing the connection after 10 minutes.
      * 
      * @param driver
      * @param url
      * @param username
      * @param password
-     * @return
+     * @return The connection or null if a connection can't be obtained.
      */
     public CachedConnection getConnection(String driver, String url, String username, String password) {
-        CachedConnection cachedConn = null;
-        cachedConn = getExistingConnection(url,username,password);
-        
-        if (cachedConn != null)
-            return cachedConn;
-
-        cachedConn = getNewConnection(driver,url,username,password);
-        return cachedConn;
+        ConnectionPool pool = getPool(driver, url, username, password);
+        long startTime = System.nanoTime();
+        CachedConnection conn = pool.borrow();
+        queryStats.recordPoolWait(System.nanoTime() - startTime);
+        return conn;
     }
 
     /**
@@ -73,87 +168,41 @@ public class Database {
         return getConnection(defaultDriver, defaultUrl, defaultUsername, defaultPassword);
     }
 
-    private synchronized CachedConnection getExistingConnection(String url, String username, String password) {
-        CachedConnection cachedConn;
-
-        for (int i=0; i < cache.size(); i++) {
-            cachedConn = (CachedConnection)cache.get(i);
-
-            if (!cachedConn.isInUse() && cachedConn.equals(url,username,password)) {
-                cachedConn.setInUse(true);
-                return cachedConn;
-            }
+    private ConnectionPool getPool(String driver, String url, String username, String password) {
+        String key = url + '\n' + username + '\n' + password;
+        ConnectionPool pool = pools.get(key);
+        if (pool != null) {
+            return pool;
         }
-        return null;  // None found
-    }
-
-    private CachedConnection getNewConnection(String driver, String url,
-                                             String username, String password) {
-        // Note that only the section which updates the cache is synchronized. This
-        // allows other cached and new connections to be obtained in parallel.
-        CachedConnection cachedConnection = null;
-        Connection conn = null;
-        try {
-            Class.forName(driver);
-            conn = DriverManager.getConnection(url,username,password);
-            cachedConnection = new CachedConnection(conn,url,username,password);
-
-            synchronized(this) {
-                cache.add(cachedConnection);
-                if (monitor == null) {
-                    monitor = new DatabaseMonitor(this);
-                    monitor.start();
-                }
+        synchronized(this) {
+            pool = pools.computeIfAbsent(key, k -> new ConnectionPool(driver, url, username, password, minIdle, maxSize, maxWaitMs,
+                validationIdleTime, statementCacheSize, queryStats));
+            if (monitor == null) {
+                monitor = new DatabaseMonitor(this);
+                monitor.start();
             }
-        } catch (ClassNotFoundException cnf) {
-            log.error("Can't load database driver: " + cnf.getMessage());
-        } catch (SQLException se) {
-            log.error("SQL Exception: " + se.getMessage());
         }
-
-        return cachedConnection;
+        return pool;
     }
 
-    synchronized void checkUse() {
-        CachedConnection cachedConnection;
-        long timeNow = System.currentTimeMillis();
-        int numConnections = cache.size();
-
-        for (int i = numConnections - 1; i >= 0; i--) {
-            cachedConnection = (CachedConnection)cache.get(i);
-            long lastInUseChange = cachedConnection.getLastInUseChange();
-
-            if (cachedConnection.isInUse()) {
-                if (timeNow - lastInUseChange > maxInUseTime)
-                {
-                    log.error("Database connection in use for too long. URL=" +
-                              cachedConnection.getUrl() + " Username=" + cachedConnection.getUsername());
-                    cachedConnection.closeConnection();
-                    cache.remove(i);
-                }
-            }
-            else {
-                if (timeNow - lastInUseChange > maxConnectionIdleTime) {
-                    cachedConnection.closeConnection();
-                    cache.remove(i);
-                }
-            }
+    void checkUse() {
+        for (ConnectionPool pool : pools.values()) {
+            pool.checkUse(maxInUseTime, maxConnectionIdleTime);
         }
     }
 
+    long getKeepaliveTime() {
+        return keepaliveTime;
+    }
+
     boolean getStopMonitor() {
         return stopMonitor;
     }
 
     public void finalize() {
-        CachedConnection cachedConnection;
         stopMonitor = true;
-        int numConnections = cache.size();
-
-        for (int i = 0; i < numConnections; i++) {
-            cachedConnection = (CachedConnection)cache.get(i);
-            cachedConnection.closeConnection();
-            cache.remove(i);
+        for (ConnectionPool pool : pools.values()) {
+            pool.closeAll();
         }
     }
-}
\ No newline at end of file
+}
@@ -7,7 +7,6 @@ package brill.server.database;
 class DatabaseMonitor extends Thread {
 
     private Database database = null;
-    private static int SLEEP_TIME = 1000 * 60 * 5; // 5 minutes
 
     public DatabaseMonitor(Database database) {
         this.database = database;
@@ -16,7 +15,7 @@ class DatabaseMonitor extends Thread {
     public void run() {
         while (!database.getStopMonitor()) {
             try {
-                sleep(SLEEP_TIME);
+                sleep(database.getKeepaliveTime());
                 database.checkUse();
             }
             catch (InterruptedException ignore) {
@@ -19,7 +19,6 @@ import java.util.regex.Matcher;
 import java.sql.*;
 import javax.json.*;
 import javax.json.JsonValue.ValueType;
-import brill.server.utils.SqlUtils;
 
 /**
  * Named Parameters Pre-Prepared Statements class.
@@ -33,9 +32,16 @@ public class NamedPreparedStatement extends PreparedStatementImpl {
         NULL, BOOLEAN, BYTE, SHORT, INTEGER, LONG, FLOAT, DOUBLE, BIGDECIMAL, STRING, STRINGLIST, DATE, TIME, TIMESTAMP
     }
 
+    /**
+     * Filter key used to request the results a page at a time. Only passed to the SQL when it has a :page_size parameter.
+     */
+    public static final String PAGE_SIZE = "page_size";
+
     private String equivalentSQL;
+    private final String originalSQL;
     private final List<String> lstParameters;
     private final List<String> directInsertParameters;
+    private final List<String> directInsertValues;
     private Set<String> notProcessedParameters;
 
     /**
@@ -74,65 +80,56 @@ public class NamedPreparedStatement extends PreparedStatementImpl {
      * @throws SQLException
      */
     public static NamedPreparedStatement prepareStatement(Connection conn, String sqlWithComments, JsonObject json) throws SQLException {
-        List<String> orderedParameters = new ArrayList<String>();
-        List<String> directInsertParameters = new ArrayList<String>();
-        String sql = SqlUtils.stripComments(sqlWithComments);
-        int length = sql.length();
-        StringBuffer parsedQuery = new StringBuffer(length);
-        boolean inSingleQuote = false;
-        boolean inDoubleQuote = false;
-
-        for (int i = 0; i < length; i++) {
-            char c = sql.charAt(i);
-            if (inSingleQuote) {
-                if (c == '\'') {
-                    inSingleQuote = false;
-                }
-            } else if (inDoubleQuote) {
-                if (c == '"') {
-                    inDoubleQuote = false;
-                }
-            } else if (c == '\'') {
-                inSingleQuote = true;
-            } else if (c == '"') {
-                inDoubleQuote = true;
-            } else if (c == ':' && i + 1 < length && Character.isJavaIdentifierStart(sql.charAt(i + 1))) {
-                int j = i + 2;
-                while (j < length && Character.isJavaIdentifierPart(sql.charAt(j))) {
-                    j++;
-                }
-                String name = sql.substring(i + 1, j);
-                orderedParameters.add(name);
-                c = '?';
-                i += name.length();
-            } else if (c == ':' && i + 2 < length && sql.charAt(i + 1) == ':' && Character.isJavaIdentifierStart(sql.charAt(i + 2))) {
-                int j = i + 3;
-                while (j < length && Character.isJavaIdentifierPart(sql.charAt(j))) {
-                    j++;
-                }
-                String name = sql.substring(i + 2, j);
-                String value = getDirectInsertValue(json, name);
-                directInsertParameters.add(name);
-                sql = sql.substring(0, i) + value + sql.substring(j);
-                length = sql.length();
-                parsedQuery.append(value);
-                i += value.length() - 1;
-                continue;
-            }
-            parsedQuery.append(c);       
+        // The parsing is only done the first time the SQL is used.
+        SqlTemplate template = SqlTemplate.get(sqlWithComments);
+        List<String> orderedParameters = template.getOrderedParameters();
+        List<String> directInsertParameters = template.getDirectInsertParameters();
+        List<String> directInsertValues = new ArrayList<String>(directInsertParameters.size());
+        for (String name : directInsertParameters) {
+            directInsertValues.add(getDirectInsertValue(json, name));
         }
+        String sql = template.getNamedSql(directInsertValues);
+        String parsedQuery = template.getPreparedSql(directInsertValues);
 
-        NamedPreparedStatement stmt = new NamedPreparedStatement(conn.prepareStatement(parsedQuery.toString()), sql, orderedParameters, directInsertParameters);
+        // A CachedConnection re-uses the statement from the last time the same SQL was run.
+        PreparedStatement preparedStatement = conn instanceof CachedConnection ?
+            ((CachedConnection) conn).prepareCachedStatement(parsedQuery) : conn.prepareStatement(parsedQuery);
+        NamedPreparedStatement stmt = new NamedPreparedStatement(preparedStatement, sql, orderedParameters, directInsertParameters,
+            directInsertValues);
         getParamsFromJsonObject(stmt, json);
         
         log.trace("Named Param SQL : " + sql);
         log.trace("Json values   : " + json.toString());
-        log.trace("Prepared Stmt   : " + parsedQuery.toString());
+        log.trace("Prepared Stmt   : " + parsedQuery);
         log.trace("Equivalent SQL  : " + stmt.equivalentSQL);
 
         return stmt;
     }
 
+    /**
+     * Adds the current parameters to the batch and sets the parameters for the next row from the JSON. Once all the rows
+     * have been added, addBatch() is called for the last row and then executeBatch().
+     * 
+     * The :: values are part of the SQL of the Prepared Statement, so they must be the same for every row.
+     * 
+     * @param json The parameters for the next row.
+     * @throws SQLException
+     */
+    public void addBatch(JsonObject json) throws SQLException {
+        addBatch();
+        for (int i = 0; i < directInsertParameters.size(); i++) {
+            String name = directInsertParameters.get(i);
+            if (!getDirectInsertValue(json, name).equals(directInsertValues.get(i))) {
+                throw new SQLException(String.format("Sql parameter ::%s must have the same value for every row of a batch.", name));
+            }
+        }
+        clearParameters();
+        equivalentSQL = originalSQL;
+        notProcessedParameters = new HashSet<String>(lstParameters);
+        getParamsFromJsonObject(this, json);
+        log.trace("Equivalent SQL  : " + equivalentSQL);
+    }
+
     /**
      * Checks values inserted into the SQL using :: to make sure they only contain a column name or word. This is to gaurd
      * against SQL injection attacks. 
@@ -183,7 +180,8 @@ public class NamedPreparedStatement extends PreparedStatementImpl {
 
     private static void getParamsFromJsonObject(NamedPreparedStatement stmt, JsonObject jsonObject) throws SQLException {
         for (Map.Entry<String, JsonValue> entry : jsonObject.entrySet()) {
-            if (stmt.directInsertParameters.contains(entry.getKey()) || entry.getKey().equals("columns") || entry.getKey().equals("filter_list")) {
+            if (stmt.directInsertParameters.contains(entry.getKey()) || entry.getKey().equals("columns") || entry.getKey().equals("filter_list") ||
+                (entry.getKey().equals(PAGE_SIZE) && !stmt.lstParameters.contains(PAGE_SIZE))) {
                 continue;
             }
             JsonValue value =  entry.getValue();
@@ -220,11 +218,14 @@ public class NamedPreparedStatement extends PreparedStatementImpl {
         }
     }
 
-    private NamedPreparedStatement(PreparedStatement preparedStatement, String originalSQL, List<String> orderedParameters, List<String> directInsertParameters) {
+    private NamedPreparedStatement(PreparedStatement preparedStatement, String originalSQL, List<String> orderedParameters, List<String> directInsertParameters,
+                                   List<String> directInsertValues) {
         super(preparedStatement);
-        this.equivalentSQL = originalSQL.trim();
+        this.originalSQL = originalSQL.trim();
+        this.equivalentSQL = this.originalSQL;
         this.lstParameters = orderedParameters;
         this.directInsertParameters = directInsertParameters;
+        this.directInsertValues = directInsertValues;
         this.notProcessedParameters = new HashSet<String>(orderedParameters);
     }
 
@@ -0,0 +1,228 @@
+// © 2021 Brill Software Limited - Database Package, distributed under the MIT License.
+package brill.server.database;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import static java.lang.String.format;
+
+/**
+ * Query Statistics - records how long each statement takes, the rows returned or updated, the bytes of JSON sent to
+ * the client and the time spent waiting for a connection from the pool.
+ *
+ * The statistics are grouped by source. The WebSocket message handlers set the source to the topic of the message
+ * being processed, so the statements run for a query:/ or javascript:/ topic are grouped under the topic. Statements
+ * run without a topic, such as the session logging, are grouped by the start of their SQL.
+ *
+ * Statements that take longer than the slow query time are logged with their parameter values, so they can be cut
+ * and pasted into a SQL tool. A Listener can be set to pass the timings on to a metrics library.
+ *
+ */
+public class QueryStats {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(QueryStats.class);
+
+    public static final long DEFAULT_SLOW_QUERY_MS = 1000;
+    static final int MAX_SOURCES = 500;
+    public static final String OTHER_SOURCE = "other";
+    private static final int SQL_LABEL_LENGTH = 60;
+
+    private static final ThreadLocal<String> currentSource = new ThreadLocal<String>();
+
+    /**
+     * Receives each timing as it's recorded. The source is the one the timing was recorded against, which is "other"
+     * once there are already MAX_SOURCES sources.
+     */
+    public interface Listener {
+        void queryExecuted(String source, long elapsedNanos, int rows, boolean failed);
+        void resultWritten(String source, long bytes);
+        void poolWaited(long elapsedNanos);
+    }
+
+    private static class Stats {
+        private final String source;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder slow = new LongAdder();
+        private final LongAdder rows = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Long::max, 0);
+
+        private Stats(String source) {
+            this.source = source;
+        }
+    }
+
+    private final Map<String, Stats> stats = new ConcurrentHashMap<String, Stats>();
+    private final LongAdder poolWaits = new LongAdder();
+    private final LongAdder poolWaitNanos = new LongAdder();
+    private final LongAccumulator poolWaitMaxNanos = new LongAccumulator(Long::max, 0);
+    private volatile long slowQueryNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_SLOW_QUERY_MS);
+    private volatile Listener listener;
+
+    /**
+     * Sets the source for the statements run by the current thread.
+     *
+     * @param source Normally the topic of the message being processed, or null to clear it.
+     * @return The previous source, to be restored afterwards.
+     */
+    public static String setSource(String source) {
+        String previous = currentSource.get();
+        if (source == null) {
+            currentSource.remove();
+        } else {
+            currentSource.set(source);
+        }
+        return previous;
+    }
+
+    /**
+     * @param slowQueryMs Statements that take longer are logged. Zero turns off the slow query log.
+     */
+    public void setSlowQueryTime(long slowQueryMs) {
+        this.slowQueryNanos = slowQueryMs > 0 ? TimeUnit.MILLISECONDS.toNanos(slowQueryMs) : Long.MAX_VALUE;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Records a statement that has been executed.
+     *
+     * @param sql The SQL as written, used as the source when none has been set.
+     * @param equivalentSql The SQL with the parameter values, for the slow query log.
+     * @param elapsedNanos The time taken, including reading the rows.
+     * @param rows The rows returned or updated.
+     * @param failed True if an exception was thrown.
+     */
+    void record(String sql, String equivalentSql, long elapsedNanos, int rows, boolean failed) {
+        String source = getSource(sql);
+        Stats sourceStats = getStats(source);
+        sourceStats.count.increment();
+        sourceStats.rows.add(rows);
+        sourceStats.totalNanos.add(elapsedNanos);
+        sourceStats.maxNanos.accumulate(elapsedNanos);
+        if (failed) {
+            sourceStats.failures.increment();
+        }
+        if (elapsedNanos >= slowQueryNanos) {
+            sourceStats.slow.increment();
+            log.warn(format("Slow query took %s ms. Source=%s Rows=%s%s\n%s", TimeUnit.NANOSECONDS.toMillis(elapsedNanos),
+                source, rows, failed ? " Failed" : "", equivalentSql != null ? equivalentSql : sql));
+        }
+        Listener l = listener;
+        if (l != null) {
+            l.queryExecuted(sourceStats.source, elapsedNanos, rows, failed);
+        }
+    }
+
+    /**
+     * Records the size of a query result sent to the client, against the source of the current thread.
+     *
+     * @param bytes The length of the JSON.
+     */
+    public void recordResultBytes(long bytes) {
+        String source = currentSource.get();
+        if (source == null) {
+            return;
+        }
+        Stats sourceStats = getStats(source);
+        sourceStats.bytes.add(bytes);
+        Listener l = listener;
+        if (l != null) {
+            l.resultWritten(sourceStats.source, bytes);
+        }
+    }
+
+    void recordPoolWait(long elapsedNanos) {
+        poolWaits.increment();
+        poolWaitNanos.add(elapsedNanos);
+        poolWaitMaxNanos.accumulate(elapsedNanos);
+        Listener l = listener;
+        if (l != null) {
+            l.poolWaited(elapsedNanos);
+        }
+    }
+
+    /**
+     * Gets the statistics, with the sources that have taken the most time in total first.
+     *
+     * @param maxSources The number of sources to include.
+     * @return JSON object with a sources array and a pool object.
+     */
+    public JsonObject toJson(int maxSources) {
+        List<Map.Entry<String, Stats>> entries = new ArrayList<Map.Entry<String, Stats>>(stats.entrySet());
+        entries.sort(Comparator.comparingLong((Map.Entry<String, Stats> e) -> e.getValue().totalNanos.sum()).reversed());
+        JsonArrayBuilder sources = Json.createArrayBuilder();
+        for (Map.Entry<String, Stats> entry : entries.subList(0, Math.min(maxSources, entries.size()))) {
+            Stats s = entry.getValue();
+            long count = s.count.sum();
+            sources.add(Json.createObjectBuilder()
+                .add("source", entry.getKey())
+                .add("count", count)
+                .add("failures", s.failures.sum())
+                .add("slow", s.slow.sum())
+                .add("totalMs", toMs(s.totalNanos.sum()))
+                .add("meanMs", count == 0 ? 0 : toMs(s.totalNanos.sum() / count))
+                .add("maxMs", toMs(s.maxNanos.get()))
+                .add("rows", s.rows.sum())
+                .add("bytes", s.bytes.sum()));
+        }
+        long waits = poolWaits.sum();
+        return Json.createObjectBuilder()
+            .add("sources", sources)
+            .add("pool", Json.createObjectBuilder()
+                .add("waits", waits)
+                .add("meanWaitMs", waits == 0 ? 0 : toMs(poolWaitNanos.sum() / waits))
+                .add("maxWaitMs", toMs(poolWaitMaxNanos.get())))
+            .build();
+    }
+
+    private static double toMs(long nanos) {
+        return Math.round(nanos / 1000.0) / 1000.0;
+    }
+
+    private Stats getStats(String source) {
+        Stats sourceStats = stats.get(source);
+        if (sourceStats == null) {
+            // Stops a large number of different SQL statements using up memory.
+            sourceStats = stats.size() < MAX_SOURCES ? stats.computeIfAbsent(source, s -> new Stats(s)) :
+                stats.computeIfAbsent(OTHER_SOURCE, s -> new Stats(s));
+        }
+        return sourceStats;
+    }
+
+    /**
+     * @return The source of the current thread, or the start of the SQL with the white space reduced to single spaces.
+     */
+    static String getSource(String sql) {
+        String source = currentSource.get();
+        if (source != null) {
+            return source;
+        }
+        StringBuilder label = new StringBuilder("sql:");
+        boolean space = false;
+        for (int i = 0; i < sql.length() && label.length() < SQL_LABEL_LENGTH; i++) {
+            char c = sql.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = label.length() > 4;
+            } else {
+                if (space) {
+                    label.append(' ');
+                    space = false;
+                }
+                label.append(c);
+            }
+        }
+        return label.toString();
+    }
+}
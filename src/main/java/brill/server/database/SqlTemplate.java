@@ -0,0 +1,154 @@
+// © 2021 Brill Software Limited - Database Package, distributed under the MIT License.
+package brill.server.database;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import brill.server.utils.SqlUtils;
+
+/**
+ * Named parameter SQL that has been parsed once, ready to be used by NamedPreparedStatement.
+ *
+ * The comments are stripped and the single colon parameters replaced by question marks. The SQL is split into
+ * segments at the double colon parameters, so the SQL for a particular set of values is built by joining the segments
+ * and values together, without scanning the SQL again.
+ *
+ * The templates are cached by SQL text. The query:/ files change rarely, and when one does change its new text
+ * is a new key.
+ *
+ */
+class SqlTemplate {
+    static final int MAX_CACHED_TEMPLATES = 500;
+
+    private static final Map<String, SqlTemplate> cache = new ConcurrentHashMap<String, SqlTemplate>();
+
+    private final List<String> segments;
+    private final List<String> namedSegments;
+    private final List<String> orderedParameters;
+    private final List<String> directInsertParameters;
+
+    private SqlTemplate(List<String> segments, List<String> namedSegments, List<String> orderedParameters,
+                        List<String> directInsertParameters) {
+        this.segments = segments;
+        this.namedSegments = namedSegments;
+        this.orderedParameters = Collections.unmodifiableList(orderedParameters);
+        this.directInsertParameters = Collections.unmodifiableList(directInsertParameters);
+    }
+
+    /**
+     * Gets the parsed template for the SQL, parsing it if it's not already in the cache.
+     *
+     * @param sqlWithComments Named parameter SQL.
+     * @return The template.
+     */
+    static SqlTemplate get(String sqlWithComments) {
+        SqlTemplate template = cache.get(sqlWithComments);
+        if (template == null) {
+            if (cache.size() >= MAX_CACHED_TEMPLATES) {
+                cache.clear();
+            }
+            template = parse(sqlWithComments);
+            cache.put(sqlWithComments, template);
+        }
+        return template;
+    }
+
+    static SqlTemplate parse(String sqlWithComments) {
+        List<String> segments = new ArrayList<String>();
+        List<String> namedSegments = new ArrayList<String>();
+        List<String> orderedParameters = new ArrayList<String>();
+        List<String> directInsertParameters = new ArrayList<String>();
+        String sql = SqlUtils.stripComments(sqlWithComments);
+        int length = sql.length();
+        StringBuilder segment = new StringBuilder(length);
+        StringBuilder namedSegment = new StringBuilder(length);
+        boolean inSingleQuote = false;
+        boolean inDoubleQuote = false;
+
+        for (int i = 0; i < length; i++) {
+            char c = sql.charAt(i);
+            if (inSingleQuote) {
+                if (c == '\'') {
+                    inSingleQuote = false;
+                }
+            } else if (inDoubleQuote) {
+                if (c == '"') {
+                    inDoubleQuote = false;
+                }
+            } else if (c == '\'') {
+                inSingleQuote = true;
+            } else if (c == '"') {
+                inDoubleQuote = true;
+            } else if (c == ':' && i + 1 < length && Character.isJavaIdentifierStart(sql.charAt(i + 1))) {
+                int j = i + 2;
+                while (j < length && Character.isJavaIdentifierPart(sql.charAt(j))) {
+                    j++;
+                }
+                String name = sql.substring(i + 1, j);
+                orderedParameters.add(name);
+                segment.append('?');
+                namedSegment.append(':').append(name);
+                i = j - 1;
+                continue;
+            } else if (c == ':' && i + 2 < length && sql.charAt(i + 1) == ':' && Character.isJavaIdentifierStart(sql.charAt(i + 2))) {
+                int j = i + 3;
+                while (j < length && Character.isJavaIdentifierPart(sql.charAt(j))) {
+                    j++;
+                }
+                directInsertParameters.add(sql.substring(i + 2, j));
+                segments.add(segment.toString());
+                namedSegments.add(namedSegment.toString());
+                segment.setLength(0);
+                namedSegment.setLength(0);
+                i = j - 1;
+                continue;
+            }
+            segment.append(c);
+            namedSegment.append(c);
+        }
+        segments.add(segment.toString());
+        namedSegments.add(namedSegment.toString());
+
+        return new SqlTemplate(segments, namedSegments, orderedParameters, directInsertParameters);
+    }
+
+    /**
+     * @param directInsertValues The values of the double colon parameters, in the same order as getDirectInsertParameters.
+     * @return The SQL for a Prepared Statement, with question marks for the single colon parameters.
+     */
+    String getPreparedSql(List<String> directInsertValues) {
+        return join(segments, directInsertValues);
+    }
+
+    /**
+     * @param directInsertValues The values of the double colon parameters, in the same order as getDirectInsertParameters.
+     * @return The SQL with the single colon parameters still in place.
+     */
+    String getNamedSql(List<String> directInsertValues) {
+        return join(namedSegments, directInsertValues);
+    }
+
+    private static String join(List<String> segments, List<String> values) {
+        if (segments.size() == 1) {
+            return segments.get(0);
+        }
+        StringBuilder sql = new StringBuilder();
+        for (int i = 0; i < segments.size(); i++) {
+            if (i > 0) {
+                sql.append(values.get(i - 1));
+            }
+            sql.append(segments.get(i));
+        }
+        return sql.toString();
+    }
+
+    List<String> getOrderedParameters() {
+        return orderedParameters;
+    }
+
+    List<String> getDirectInsertParameters() {
+        return directInsertParameters;
+    }
+}
@@ -0,0 +1,87 @@
+// © 2021 Brill Software Limited - Database Package, distributed under the MIT License.
+package brill.server.database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Least recently used cache of the Prepared Statements for one connection, keyed by the SQL with question mark
+ * parameters. The statements stay open while the connection is returned to the pool and used again, so the SQL that's
+ * run over and over, such as the session logging inserts, is only prepared once per connection.
+ *
+ * A connection is only used by one thread at a time, so the cache isn't synchronized. The hit and miss counts are
+ * shared by all the connections.
+ *
+ */
+class StatementCache {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(StatementCache.class);
+
+    static final LongAdder hits = new LongAdder();
+    static final LongAdder misses = new LongAdder();
+
+    private final int maxSize;
+    private final LinkedHashMap<String, PreparedStatement> statements;
+
+    StatementCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true);
+    }
+
+    /**
+     * Gets the cached statement for the SQL, or prepares a new one. A cached statement has its parameters cleared.
+     *
+     * NOTE: The statement must not be closed by the caller.
+     *
+     * @param conn The connection to prepare the statement on.
+     * @param sql SQL with question mark parameters.
+     * @return The Prepared Statement.
+     * @throws SQLException
+     */
+    PreparedStatement prepareStatement(Connection conn, String sql) throws SQLException {
+        if (maxSize <= 0) {
+            return conn.prepareStatement(sql);
+        }
+        PreparedStatement stmt = statements.get(sql);
+        if (stmt != null && !stmt.isClosed()) {
+            hits.increment();
+            stmt.clearParameters();
+            return stmt;
+        }
+        misses.increment();
+        stmt = conn.prepareStatement(sql);
+        statements.put(sql, stmt);
+        if (statements.size() > maxSize) {
+            Iterator<Map.Entry<String, PreparedStatement>> it = statements.entrySet().iterator();
+            close(it.next().getValue());
+            it.remove();
+        }
+        return stmt;
+    }
+
+    /**
+     * Closes all the statements. Called when the connection is closed or replaced.
+     */
+    void clear() {
+        for (PreparedStatement stmt : statements.values()) {
+            close(stmt);
+        }
+        statements.clear();
+    }
+
+    int size() {
+        return statements.size();
+    }
+
+    private void close(PreparedStatement stmt) {
+        try {
+            stmt.close();
+        } catch (SQLException e) {
+            log.debug("Unable to close cached statement: " + e.getMessage());
+        }
+    }
+}
@@ -1,6 +1,10 @@
 // © 2021 Brill Software Limited - Brill Middleware, distributed under the MIT License.
 package brill.server.domain;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import javax.json.JsonValue;
 import org.springframework.web.socket.WebSocketSession;
 
@@ -28,4 +32,18 @@ public class Subscriber {
         return filterValue;
     }
 
-}
\ No newline at end of file
+    /**
+     * Groups subscribers that have the same filter. Used when the content sent depends on the filter, such as the
+     * results of running a query or script, so the content is only created once for each different filter.
+     * 
+     * @param subscribers The subscribers to a topic.
+     * @return Map of filter to the subscribers with that filter.
+     */
+    public static Map<String, List<Subscriber>> groupByFilter(List<Subscriber> subscribers) {
+        Map<String, List<Subscriber>> groups = new LinkedHashMap<String, List<Subscriber>>();
+        for (Subscriber subscriber : subscribers) {
+            groups.computeIfAbsent(subscriber.getFilter(), k -> new ArrayList<Subscriber>()).add(subscriber);
+        }
+        return groups;
+    }
+}
@@ -0,0 +1,191 @@
+// © 2021 Brill Software Limited - Git Package, distributed under the MIT License.
+package brill.server.git;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import brill.server.utils.JsonUtils;
+
+/**
+ * File Content Cache - holds the contents of recently read workspace files, so that page views don't read the same
+ * JSON, JavaScript and images from disk every time.
+ *
+ * The cache is bounded by the total size of the file contents and the least recently used files are evicted first.
+ * Files larger than the maximum file size are never cached. Along with the bytes, each entry keeps the content as a
+ * String and, for JSONC, the content with the comments stripped, once they've been asked for.
+ *
+ * Files are only cached once their workspace is being watched by the WorkspaceWatcher, so that changes made outside of
+ * the server remove the files from the cache. The server's own changes invalidate the files straight away rather than
+ * waiting for the watcher.
+ *
+ */
+class FileContentCache implements WorkspaceWatcher.Listener {
+
+    /**
+     * The content of a cached file. The bytes are shared and must not be modified.
+     */
+    static class Content {
+        private final byte[] bytes;
+        private volatile String text;
+        private volatile String strippedText;
+
+        Content(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        byte[] getBytes() {
+            return bytes;
+        }
+
+        String getText() {
+            String result = text;
+            if (result == null) {
+                result = new String(bytes, Charset.defaultCharset());
+                text = result;
+            }
+            return result;
+        }
+
+        String getStrippedText() {
+            String result = strippedText;
+            if (result == null) {
+                result = JsonUtils.stripComments(getText());
+                strippedText = result;
+            }
+            return result;
+        }
+    }
+
+    private final WorkspaceWatcher watcher;
+    private final long maxBytes;
+    private final long maxFileBytes;
+    private final LinkedHashMap<String, Content> entries = new LinkedHashMap<String, Content>(64, 0.75f, true);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private long totalBytes = 0;
+    private long generation = 0; // Incremented by every invalidation, so that a read that overlaps one isn't cached.
+
+    /**
+     * @param watcher Watches the workspaces for changes made outside of the server.
+     * @param maxBytes Maximum total size of the cached files.
+     * @param maxFileBytes Maximum size of a file that's cached.
+     */
+    FileContentCache(WorkspaceWatcher watcher, long maxBytes, long maxFileBytes) {
+        this.watcher = watcher;
+        this.maxBytes = maxBytes;
+        this.maxFileBytes = Math.min(maxFileBytes, maxBytes);
+        watcher.addListener(this);
+    }
+
+    /**
+     * Gets the content of a file, from the cache if it's there, otherwise from disk.
+     *
+     * @param file The file.
+     * @return The content or null if the file doesn't exist or isn't a regular file.
+     * @throws IOException
+     */
+    Content get(Path file) throws IOException {
+        Path path = file.toAbsolutePath().normalize();
+        String key = path.toString();
+        long startGeneration;
+        synchronized (this) {
+            Content content = entries.get(key);
+            if (content != null) {
+                hits.increment();
+                return content;
+            }
+            startGeneration = generation;
+        }
+        misses.increment();
+
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+        // Files outside the workspaces, or in a workspace that can't be watched, are read but not cached.
+        boolean watched = watcher.watch(path);
+        Content content = new Content(Files.readAllBytes(path));
+        if (watched && content.bytes.length <= maxFileBytes) {
+            synchronized (this) {
+                if (generation == startGeneration && !entries.containsKey(key)) {
+                    entries.put(key, content);
+                    totalBytes += content.bytes.length;
+                    evict();
+                }
+            }
+        }
+        return content;
+    }
+
+    /**
+     * Removes a file, or a directory and all the files under it, from the cache.
+     *
+     * @param path File or directory.
+     */
+    void invalidate(Path path) {
+        String key = path.toAbsolutePath().normalize().toString();
+        String dirPrefix = key + path.getFileSystem().getSeparator();
+        synchronized (this) {
+            generation++;
+            Iterator<Map.Entry<String, Content>> it = entries.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Content> entry = it.next();
+                if (entry.getKey().equals(key) || entry.getKey().startsWith(dirPrefix)) {
+                    totalBytes -= entry.getValue().bytes.length;
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void pathChanged(Path path) {
+        invalidate(path);
+    }
+
+    /**
+     * Stops listening to the watcher and empties the cache.
+     */
+    void close() {
+        watcher.removeListener(this);
+        synchronized (this) {
+            entries.clear();
+            totalBytes = 0;
+            generation++;
+        }
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    long getEvictions() {
+        return evictions.sum();
+    }
+
+    synchronized long getBytes() {
+        return totalBytes;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    private void evict() {
+        Iterator<Content> it = entries.values().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            totalBytes -= it.next().bytes.length;
+            it.remove();
+            evictions.increment();
+        }
+    }
+}
@@ -0,0 +1,563 @@
+// © 2021 Brill Software Limited - Git Package, distributed under the MIT License.
+package brill.server.git;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+
+/**
+ * File Tree Index - holds the directories and file names of each workspace in memory, so that the file:/ topic trees
+ * are produced without listing and sorting every directory on disk.
+ *
+ * The tree of a workspace is read from disk the first time it's asked for, and from then on is kept up to date. The
+ * server's own changes refresh the files and directories they touch, git operations that change the working tree
+ * drop the tree so that it's read again, and the WorkspaceWatcher refreshes the paths changed outside of the server.
+ * A workspace that can't be watched is read from disk each time.
+ *
+ * The nodes are never changed once they've been created. A change replaces the nodes on the path from the root to the
+ * change, so the trees can be read without locking while they're being updated.
+ *
+ * Each workspace has a version that's incremented for every file or directory that's added, removed or renamed. The
+ * changes are kept in a log, so that subscribers can be sent just the changes since the version they have. Dropping a
+ * tree clears the log, as the changes aren't known, and subscribers then need the whole tree.
+ *
+ */
+class FileTreeIndex implements WorkspaceWatcher.Listener {
+
+    /**
+     * Reads the content of a file for trees that include the file content.
+     */
+    @FunctionalInterface
+    interface ContentReader {
+        byte[] read(Path file) throws IOException;
+    }
+
+    /**
+     * A file or directory. Directories have their children sorted in the order the CMS shows them.
+     */
+    static class Node {
+        private final String name;
+        private final Map<String, Node> children; // Null for a file.
+
+        private Node(String name, Map<String, Node> children) {
+            this.name = name;
+            this.children = children;
+        }
+
+        boolean isDirectory() {
+            return children != null;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        Node getChild(String childName) {
+            return children == null ? null : children.get(childName);
+        }
+
+        Iterable<Node> getChildren() {
+            return children.values();
+        }
+    }
+
+    /**
+     * A tree and the version it's at.
+     */
+    private static class Tree {
+        private final Node root;
+        private final long version;
+
+        Tree(Node root, long version) {
+            this.root = root;
+            this.version = version;
+        }
+    }
+
+    private static final String ADD = "add";
+    private static final String REMOVE = "remove";
+    private static final String RENAME = "rename";
+
+    /**
+     * A file or directory that's been added, removed or renamed. Paths start with a / and are within the workspace.
+     */
+    private static class Change {
+        private final String op;
+        private final String path;
+        private final String newPath; // Renames only.
+        private final Node node; // Adds only.
+        private long version;
+
+        Change(String op, String path, String newPath, Node node) {
+            this.op = op;
+            this.path = path;
+            this.newPath = newPath;
+            this.node = node;
+        }
+    }
+
+    /**
+     * The version of a workspace and the changes that led to it. Kept when the tree is dropped, so that versions keep
+     * increasing.
+     */
+    private static class History {
+        private long version = 0;
+        private long startVersion = 0; // Changes after this version are in the log.
+        private final Deque<Change> changes = new ArrayDeque<Change>();
+    }
+
+    static final int MAX_CHANGES = 1000;
+
+    private final WorkspaceWatcher watcher;
+    private final Map<Path, Tree> trees = new ConcurrentHashMap<Path, Tree>();
+    private final Map<Path, History> histories = new HashMap<Path, History>();
+
+    FileTreeIndex(WorkspaceWatcher watcher) {
+        this.watcher = watcher;
+        watcher.addListener(this);
+    }
+
+    /**
+     * Gets the tree below a path in the same form as the file:/ topic. A path that doesn't exist gives a branch with no
+     * children.
+     *
+     * @param workspacePath Directory of the workspace.
+     * @param path Path within the workspace, starting with a /, or an empty string for the whole workspace.
+     * @param includeFileContent True to include the base64 encoded content of each file.
+     * @param hiddenApps Names of directories and files to leave out, or null.
+     * @param includeVersion True to add the version of the tree to the top node.
+     * @param reader Reads the file content.
+     * @return The tree.
+     * @throws IOException
+     */
+    JsonObject getTree(Path workspacePath, String path, boolean includeFileContent, List<String> hiddenApps,
+            boolean includeVersion, ContentReader reader) throws IOException {
+        Path workspace = workspacePath.toAbsolutePath().normalize();
+        Tree tree = getWorkspaceTree(workspace);
+        Node node = tree.root;
+        for (String name : split(path)) {
+            node = node == null ? null : node.getChild(name);
+        }
+        JsonObjectBuilder objBuilder;
+        if (node == null) {
+            objBuilder = Json.createObjectBuilder().add("id", "file:" + path).add("name", path.substring(path.lastIndexOf('/') + 1))
+                .add("tooltip", "").add("type", GitRepository.BRANCH);
+        } else {
+            objBuilder = Json.createObjectBuilder(toJson(workspace, node, path, includeFileContent, hiddenApps, reader));
+        }
+        if (includeVersion) {
+            objBuilder.add("version", tree.version);
+        }
+        return objBuilder.build();
+    }
+
+    /**
+     * @param workspacePath Directory of the workspace.
+     * @return The current version of the workspace tree.
+     */
+    long getVersion(Path workspacePath) {
+        return getWorkspaceTree(workspacePath.toAbsolutePath().normalize()).version;
+    }
+
+    /**
+     * Gets the changes to the tree below a path, as the content of a publish-patch message. Each change has the version
+     * it produced, so a client that already has some of the changes can skip them.
+     *
+     * Changes:
+     * {"op": "add", "version": 12, "parentId": "file:/app/pages", "node": {"id": "file:/app/pages/new.json", ...}}
+     * {"op": "remove", "version": 13, "parentId": "file:/app/pages", "id": "file:/app/pages/old.json"}
+     * {"op": "rename", "version": 14, "parentId": "file:/app", "id": "file:/app/pages", "newId": "file:/app/views",
+     *  "name": "views"}
+     *
+     * A renamed directory keeps its children, whose ids start with the new id.
+     *
+     * @param workspacePath Directory of the workspace.
+     * @param path Path of the subscribed topic within the workspace, or an empty string for the whole workspace.
+     * @param hiddenApps Names of directories and files to leave out, or null.
+     * @param sinceVersion The version the subscribers have.
+     * @param toVersion The version to send changes up to.
+     * @return {"baseVersion": sinceVersion, "version": toVersion, "changes": [...]} or null if the changes aren't all
+     * known or can't be expressed as a patch, in which case the subscribers need the whole tree.
+     */
+    JsonObject getPatch(Path workspacePath, String path, List<String> hiddenApps, long sinceVersion, long toVersion) {
+        Path workspace = workspacePath.toAbsolutePath().normalize();
+        List<Change> changes = new ArrayList<Change>();
+        synchronized (this) {
+            History history = histories.get(workspace);
+            if (history == null || sinceVersion < history.startVersion || toVersion > history.version) {
+                return null;
+            }
+            for (Change change : history.changes) {
+                if (change.version > sinceVersion && change.version <= toVersion) {
+                    changes.add(change);
+                }
+            }
+        }
+
+        JsonArrayBuilder arrayBuilder = Json.createArrayBuilder();
+        for (Change change : changes) {
+            boolean inside = isInside(path, change.path) && !isHidden(change.path, hiddenApps);
+            if (affects(change.path, path) || (change.newPath != null && affects(change.newPath, path))) {
+                return null;
+            }
+            if (change.op.equals(RENAME)) {
+                boolean newInside = isInside(path, change.newPath) && !isHidden(change.newPath, hiddenApps);
+                if (inside != newInside) {
+                    return null;
+                }
+            }
+            if (!inside) {
+                continue;
+            }
+            JsonObjectBuilder objBuilder = Json.createObjectBuilder();
+            objBuilder.add("op", change.op);
+            objBuilder.add("version", change.version);
+            if (change.op.equals(ADD)) {
+                objBuilder.add("parentId", "file:" + getParent(change.path));
+                objBuilder.add("node", toJsonWithoutContent(change.node, change.path, hiddenApps));
+            } else if (change.op.equals(REMOVE)) {
+                objBuilder.add("parentId", "file:" + getParent(change.path));
+                objBuilder.add("id", "file:" + change.path);
+            } else {
+                objBuilder.add("parentId", "file:" + getParent(change.newPath));
+                objBuilder.add("id", "file:" + change.path);
+                objBuilder.add("newId", "file:" + change.newPath);
+                objBuilder.add("name", change.newPath.substring(change.newPath.lastIndexOf('/') + 1));
+            }
+            arrayBuilder.add(objBuilder);
+        }
+        return Json.createObjectBuilder().add("baseVersion", sinceVersion).add("version", toVersion)
+            .add("changes", arrayBuilder).build();
+    }
+
+    /**
+     * Reads a file or directory from disk again after it's been created, changed or deleted.
+     *
+     * @param path File or directory.
+     */
+    @Override
+    public void pathChanged(Path path) {
+        refresh(path);
+    }
+
+    synchronized void refresh(Path changedPath) {
+        Path path = changedPath.toAbsolutePath().normalize();
+        Path workspace = watcher.getWorkspace(path);
+        if (workspace != null && trees.containsKey(workspace)) {
+            List<Change> changes = new ArrayList<Change>();
+            Node root = update(workspace, trees.get(workspace).root, path, changes);
+            record(workspace, root, changes);
+        }
+    }
+
+    /**
+     * Reads a file or directory that's been moved, recording it as a rename when it's been moved within the tree.
+     *
+     * @param sourcePath The old path.
+     * @param targetPath The new path.
+     */
+    synchronized void move(Path sourcePath, Path targetPath) {
+        Path source = sourcePath.toAbsolutePath().normalize();
+        Path target = targetPath.toAbsolutePath().normalize();
+        Path workspace = watcher.getWorkspace(source);
+        if (workspace == null || !workspace.equals(watcher.getWorkspace(target)) || !trees.containsKey(workspace)) {
+            refresh(source);
+            refresh(target);
+            return;
+        }
+        List<Change> changes = new ArrayList<Change>();
+        Node root = update(workspace, trees.get(workspace).root, source, changes);
+        root = update(workspace, root, target, changes);
+        String targetName = "/" + workspace.relativize(target).toString().replace(File.separatorChar, '/');
+        if (changes.size() == 2 && changes.get(0).op.equals(REMOVE) && changes.get(1).op.equals(ADD) &&
+                changes.get(1).path.equals(targetName)) {
+            Change rename = new Change(RENAME, changes.get(0).path, changes.get(1).path, null);
+            changes.clear();
+            changes.add(rename);
+        }
+        record(workspace, root, changes);
+    }
+
+    /**
+     * Drops the tree of a workspace, so that it's read from disk the next time it's needed.
+     *
+     * @param workspacePath Directory of the workspace.
+     */
+    synchronized void removeWorkspace(Path workspacePath) {
+        Path workspace = workspacePath.toAbsolutePath().normalize();
+        trees.remove(workspace);
+        History history = histories.get(workspace);
+        if (history != null) {
+            history.version++;
+            history.startVersion = history.version;
+            history.changes.clear();
+        }
+    }
+
+    synchronized void close() {
+        watcher.removeListener(this);
+        trees.clear();
+        histories.clear();
+    }
+
+    private Tree getWorkspaceTree(Path workspace) {
+        Tree tree = trees.get(workspace);
+        if (tree != null) {
+            return tree;
+        }
+        if (!watcher.watch(workspace)) {
+            return new Tree(readNode(workspace.toFile(), ""), getVersionForUnwatched(workspace));
+        }
+        synchronized (this) {
+            tree = trees.get(workspace);
+            if (tree == null) {
+                tree = new Tree(readNode(workspace.toFile(), ""), histories.computeIfAbsent(workspace, k -> new History()).version);
+                trees.put(workspace, tree);
+            }
+            return tree;
+        }
+    }
+
+    /**
+     * Without the watcher the changes can't be known, so each read of the tree is a new version that has no log.
+     */
+    private synchronized long getVersionForUnwatched(Path workspace) {
+        History history = histories.computeIfAbsent(workspace, k -> new History());
+        history.version++;
+        history.startVersion = history.version;
+        history.changes.clear();
+        return history.version;
+    }
+
+    /**
+     * Reads a path from disk and creates a new root with it in. The tree isn't published here, as the changes don't
+     * have their versions yet.
+     *
+     * @param changes The files and directories added and removed are added to this.
+     * @return The new root.
+     */
+    private Node update(Path workspace, Node root, Path path, List<Change> changes) {
+        Path relative = workspace.relativize(path);
+        String[] names = relative.toString().isEmpty() ? new String[0] : new String[relative.getNameCount()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = relative.getName(i).toString();
+        }
+        if (isHidden(names)) {
+            return root;
+        }
+        if (names.length == 0) {
+            Node newRoot = readNode(workspace.toFile(), "");
+            diff(root, newRoot, "", changes);
+            return newRoot;
+        }
+
+        // When a parent isn't in the tree yet, the highest missing directory is read instead.
+        int depth = 0;
+        Node node = root;
+        while (depth < names.length - 1 && node.getChild(names[depth]) != null && node.getChild(names[depth]).isDirectory()) {
+            node = node.getChild(names[depth]);
+            depth++;
+        }
+        String[] changedNames = Arrays.copyOf(names, depth + 1);
+        File file = workspace.resolve(String.join(File.separator, changedNames)).toFile();
+        Node replacement = file.exists() ? readNode(file, names[depth]) : null;
+        diff(node.getChild(names[depth]), replacement, "/" + String.join("/", changedNames), changes);
+        return replace(root, names, 0, depth, replacement);
+    }
+
+    /**
+     * Finds the files and directories added and removed between two versions of a node. A file that's only had its
+     * content changed isn't a change to the tree.
+     */
+    private static void diff(Node oldNode, Node newNode, String path, List<Change> changes) {
+        if (oldNode == null && newNode == null) {
+            return;
+        }
+        if (oldNode == null) {
+            changes.add(new Change(ADD, path, null, newNode));
+            return;
+        }
+        if (newNode == null || oldNode.isDirectory() != newNode.isDirectory()) {
+            changes.add(new Change(REMOVE, path, null, null));
+            if (newNode != null) {
+                changes.add(new Change(ADD, path, null, newNode));
+            }
+            return;
+        }
+        if (!oldNode.isDirectory()) {
+            return;
+        }
+        for (Node oldChild : oldNode.getChildren()) {
+            diff(oldChild, newNode.getChild(oldChild.name), path + "/" + oldChild.name, changes);
+        }
+        for (Node newChild : newNode.getChildren()) {
+            if (oldNode.getChild(newChild.name) == null) {
+                changes.add(new Change(ADD, path + "/" + newChild.name, null, newChild));
+            }
+        }
+    }
+
+    /**
+     * Gives each change a version and adds it to the log, removing the oldest changes once there are too many. Then
+     * publishes the new root with the latest version, so that a reader never sees new content with an old version.
+     */
+    private void record(Path workspace, Node root, List<Change> changes) {
+        History history = histories.computeIfAbsent(workspace, k -> new History());
+        for (Change change : changes) {
+            change.version = ++history.version;
+            history.changes.addLast(change);
+        }
+        while (history.changes.size() > MAX_CHANGES) {
+            history.startVersion = history.changes.removeFirst().version;
+        }
+        trees.put(workspace, new Tree(root, history.version));
+    }
+
+    /**
+     * Creates a new node for the path, with the nodes above it copied and the nodes beside them shared.
+     */
+    private Node replace(Node node, String[] names, int index, int depth, Node replacement) {
+        Map<String, Node> children = new LinkedHashMap<String, Node>(node.children);
+        if (index == depth) {
+            if (replacement == null) {
+                children.remove(names[index]);
+            } else {
+                children.put(names[index], replacement);
+            }
+            return new Node(node.name, sort(children));
+        }
+        children.put(names[index], replace(node.getChild(names[index]), names, index + 1, depth, replacement));
+        return new Node(node.name, children);
+    }
+
+    private static Node readNode(File file, String name) {
+        if (file.isFile()) {
+            return new Node(name, null);
+        }
+        Map<String, Node> children = new LinkedHashMap<String, Node>();
+        String[] contents = file.list();
+        if (contents != null) {
+            for (String child : contents) {
+                if (!isHidden(child)) {
+                    children.put(child, readNode(new File(file, child), child));
+                }
+            }
+        }
+        return new Node(name, sort(children));
+    }
+
+    private static Map<String, Node> sort(Map<String, Node> children) {
+        String[] names = children.keySet().toArray(new String[0]);
+        Arrays.sort(names, new Sort());
+        Map<String, Node> sorted = new LinkedHashMap<String, Node>();
+        for (String name : names) {
+            sorted.put(name, children.get(name));
+        }
+        return sorted;
+    }
+
+    private static JsonObject toJson(Path workspace, Node node, String path, boolean includeFileContent, List<String> hiddenApps,
+            ContentReader reader) throws IOException {
+        JsonObjectBuilder objBuilder = Json.createObjectBuilder();
+        if (!node.isDirectory()) {
+            objBuilder.add("id", "file:" + path);
+            objBuilder.add("name", path.substring(path.lastIndexOf('/') + 1));
+            objBuilder.add("tooltip", "");
+            objBuilder.add("type", GitRepository.LEAF);
+            if (includeFileContent) {
+                byte[] fileContent = reader.read(workspace.resolve(path.substring(1)));
+                objBuilder.add("base64", Base64.getEncoder().encodeToString(fileContent));
+            }
+            return objBuilder.build();
+        }
+
+        if (path.length() == 0) {
+            objBuilder.add("id", "file:/");
+            objBuilder.add("name", "/");
+        } else {
+            objBuilder.add("id", "file:" + path);
+            objBuilder.add("name", path.substring(path.lastIndexOf('/') + 1));
+        }
+        objBuilder.add("tooltip", "");
+        objBuilder.add("type", GitRepository.BRANCH);
+
+        JsonArrayBuilder arrayBuilder = Json.createArrayBuilder();
+        for (Node child : node.getChildren()) {
+            if (hiddenApps == null || !hiddenApps.contains(child.name)) {
+                arrayBuilder.add(toJson(workspace, child, path + "/" + child.name, includeFileContent, hiddenApps, reader));
+            }
+        }
+        objBuilder.add("children", arrayBuilder.build());
+        return objBuilder.build();
+    }
+
+    private static JsonObject toJsonWithoutContent(Node node, String path, List<String> hiddenApps) {
+        try {
+            return toJson(null, node, path, false, hiddenApps, null);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // Not thrown when the content isn't included.
+        }
+    }
+
+    /**
+     * True if a path is below the topic path.
+     */
+    private static boolean isInside(String topicPath, String path) {
+        return topicPath.isEmpty() || path.startsWith(topicPath + "/");
+    }
+
+    /**
+     * True if a change to a path changes the topic path itself, or a directory above it.
+     */
+    private static boolean affects(String path, String topicPath) {
+        return !topicPath.isEmpty() && (topicPath.equals(path) || topicPath.startsWith(path + "/"));
+    }
+
+    private static String getParent(String path) {
+        int lastSlash = path.lastIndexOf('/');
+        return lastSlash <= 0 ? "/" : path.substring(0, lastSlash);
+    }
+
+    private static boolean isHidden(String path, List<String> hiddenApps) {
+        if (hiddenApps == null) {
+            return false;
+        }
+        for (String name : split(path)) {
+            if (hiddenApps.contains(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String[] split(String path) {
+        return path.isEmpty() || path.equals("/") ? new String[0] : path.substring(1).split("/");
+    }
+
+    private static boolean isHidden(String name) {
+        return name.equals(".DS_Store") || name.equals(".git");
+    }
+
+    private static boolean isHidden(String[] names) {
+        for (String name : names) {
+            if (isHidden(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -42,7 +42,6 @@ import org.eclipse.jgit.patch.FileHeader;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevTree;
 import org.eclipse.jgit.revwalk.RevWalk;
-import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
 import org.eclipse.jgit.treewalk.TreeWalk;
 import org.eclipse.jgit.util.io.DisabledOutputStream;
 
@@ -74,15 +73,59 @@ public class GitRepository {
 
     private String remoteRepositoryUrl; // Default repo URL.
     private String localRepoDir; // Directory under which the workspaces are held.
+    private final RepositoryRegistry repositories = new RepositoryRegistry(this::workspaceChanged); // Open repositories of the workspaces.
+    private final WorkspaceWatcher watcher; // Tells the file cache and tree index about changes made outside the server.
+    private final FileTreeIndex treeIndex; // Directories and files of the workspaces.
+    private volatile FileContentCache fileCache; // Contents of recently read files. Null when caching is turned off.
 
     public GitRepository() {
-        remoteRepositoryUrl = "";
-        localRepoDir = "";
+        this("", "");
     }
 
     public GitRepository(String remoteRepositoryUrl, String localRepoDir) {
         this.remoteRepositoryUrl = remoteRepositoryUrl;
         this.localRepoDir = localRepoDir;
+        watcher = new WorkspaceWatcher(Paths.get(localRepoDir));
+        treeIndex = new FileTreeIndex(watcher);
+    }
+
+    /**
+     * Turns on caching of the file contents returned by getFile(), getBinaryFile() and getFileBase64Encoded().
+     *
+     * @param maxBytes Maximum total size of the cached files. Zero turns caching off.
+     * @param maxFileBytes Files larger than this are always read from disk.
+     */
+    public void setFileCacheSize(long maxBytes, long maxFileBytes) {
+        FileContentCache oldCache = fileCache;
+        fileCache = maxBytes > 0 ? new FileContentCache(watcher, maxBytes, maxFileBytes) : null;
+        if (oldCache != null) {
+            oldCache.close();
+        }
+    }
+
+    public long getFileCacheHits() {
+        FileContentCache cache = fileCache;
+        return cache == null ? 0 : cache.getHits();
+    }
+
+    public long getFileCacheMisses() {
+        FileContentCache cache = fileCache;
+        return cache == null ? 0 : cache.getMisses();
+    }
+
+    public long getFileCacheEvictions() {
+        FileContentCache cache = fileCache;
+        return cache == null ? 0 : cache.getEvictions();
+    }
+
+    public long getFileCacheBytes() {
+        FileContentCache cache = fileCache;
+        return cache == null ? 0 : cache.getBytes();
+    }
+
+    public int getFileCacheSize() {
+        FileContentCache cache = fileCache;
+        return cache == null ? 0 : cache.size();
     }
 
     /**
@@ -97,6 +140,8 @@ public class GitRepository {
         }
         try {
             File localPath = new File(format("%s/%s", localRepoDir, workspace));
+            repositories.remove(localPath.toPath());
+            removeCachedWorkspace(localPath.toPath());
 
             log.info("Cloning from " + repository + " to " + localPath);
     
@@ -111,6 +156,7 @@ public class GitRepository {
     
                  }).setDirectory(localPath).setBranch(branch).call();
             log.info("Completed downloading repository to " + git.getRepository().getDirectory());
+            workspaceChanged(localPath.toPath());
         } catch (InvalidRemoteException ire) {
             log.error(format("Remote git respository %s not found.", repository));
             throw new GitServiceException(format("Remote git respository %s not found.", repository), ire);
@@ -187,6 +233,7 @@ public class GitRepository {
         // Create symbolic link
         try {
             Files.createSymbolicLink(linkPath, targetPath);
+            invalidateFiles(linkPath);
         } catch (IOException e) {
             throw new GitServiceException("Failed to create symbolic link: " + e.getMessage());
         }
@@ -200,12 +247,14 @@ public class GitRepository {
      * @throws GitServiceException
      */
     public ArrayList<String> pull(String workspace, String branch) throws GitServiceException {
+        RepositoryRegistry.Lease lease = null;
         Git git = null;
         PullResult pullResult = null;
         try {
             log.info(format("Pull for branch %s", branch));
             Path repoPath = Paths.get(format("%s/%s", localRepoDir, workspace));
-            Repository repo = new FileRepositoryBuilder().setGitDir(repoPath.resolve(".git").toFile()).build();
+            lease = repositories.acquire(repoPath, true, true);
+            Repository repo = lease.getRepository();
             git = new Git(repo);
             PullCommand pull = git.pull();
             try {
@@ -233,6 +282,9 @@ public class GitRepository {
             if (git != null) {
                 git.close();
             }
+            if (lease != null) {
+                lease.close();
+            }
         }
     }
 
@@ -245,12 +297,14 @@ public class GitRepository {
      * @throws GitServiceException
      */
     public ArrayList<String> rebase(String workspace, String branch) throws GitServiceException {
+        RepositoryRegistry.Lease lease = null;
         Git git = null;
         RebaseResult rebaseResult = null;
         try {
             log.info(format("Rebase for branch %s", branch));
             Path repoPath = Paths.get(format("%s/%s", localRepoDir, workspace));
-            Repository repo = new FileRepositoryBuilder().setGitDir(repoPath.resolve(".git").toFile()).build();
+            lease = repositories.acquire(repoPath, true, true);
+            Repository repo = lease.getRepository();
             git = new Git(repo);
             String remoteBranch = this.getTrackingBranch(workspace);
             int lastSlash = remoteBranch.lastIndexOf("/");
@@ -269,6 +323,9 @@ public class GitRepository {
             if (git != null) {
                 git.close();
             }
+            if (lease != null) {
+                lease.close();
+            }
         }
     }
 
@@ -393,15 +450,39 @@ public class GitRepository {
      * @throws GitServiceException
      */
     public void deleteLocalRepo(String workspace) throws GitServiceException {
+        RepositoryRegistry.Lease lease = null;
         try {
                 File directory = new File(format("%s/%s", localRepoDir, workspace));
+                if (doesWorkspaceAlreadyExist(workspace)) {
+                    // Wait for any git operations on the workspace to finish.
+                    lease = repositories.acquire(directory.toPath(), true);
+                }
+                repositories.remove(directory.toPath());
                 if (directory.exists() && directory.isDirectory()) {
                     FileUtils.deleteDirectory(directory);
                 }
+                removeCachedWorkspace(directory.toPath());
         } catch (IOException ioe) {
             log.error(format("Failed to delete local git repository %s", localRepoDir));
             throw new GitServiceException(format("Failed to delete local git repository %s", localRepoDir), ioe);
+        } finally {
+            if (lease != null) {
+                lease.close();
+            }
+        }
+    }
+
+    /**
+     * Closes the open repositories. Called by Spring when the server shuts down.
+     */
+    public void close() {
+        repositories.removeAll();
+        FileContentCache cache = fileCache;
+        if (cache != null) {
+            cache.close();
         }
+        treeIndex.close();
+        watcher.close();
     }
 
     /**
@@ -424,17 +505,50 @@ public class GitRepository {
     }
 
     public JsonObject getFileTree(String branch, String path, boolean includeFileContent, List<String> hiddenApps) throws GitServiceException {
+        return getFileTree(branch, path, includeFileContent, hiddenApps, false);
+    }
+
+    /**
+     * Gets the file tree, optionally with the version of the tree in the top node for clients that are sent patches.
+     */
+    public JsonObject getFileTree(String branch, String path, boolean includeFileContent, List<String> hiddenApps,
+            boolean includeVersion) throws GitServiceException {
         String fullPath = "";
         try {
             if (path.endsWith("/")) {
                 path = path.substring(0, path.length() - 1);
             }
-            return processTreeNode(format("%s/%s", localRepoDir, branch), path, includeFileContent, hiddenApps);
+            return treeIndex.getTree(Paths.get(localRepoDir, branch), path, includeFileContent, hiddenApps, includeVersion, file -> {
+                FileContentCache.Content content = readFile(file.toString());
+                if (content == null) {
+                    throw new IOException(format("Failed to find file %s", file));
+                }
+                return content.getBytes();
+            });
         } catch (Exception ioe) {
             throw new GitServiceException(format("IOException when reading from %s", fullPath), ioe);
         }
     }
 
+    /**
+     * @return The current version of the workspace file tree.
+     */
+    public long getFileTreeVersion(String workspace) {
+        return treeIndex.getVersion(Paths.get(localRepoDir, workspace));
+    }
+
+    /**
+     * Gets the changes to a file tree between two versions, as the content of a publish-patch message.
+     *
+     * @return The patch or null when the subscribers need the whole tree.
+     */
+    public JsonObject getFileTreePatch(String workspace, String path, List<String> hiddenApps, long sinceVersion, long toVersion) {
+        if (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        return treeIndex.getPatch(Paths.get(localRepoDir, workspace), path, hiddenApps, sinceVersion, toVersion);
+    }
+
     private JsonObject processTreeNode(String root, String path, boolean includeFileContent, List<String> hiddenApps) throws IOException {
         JsonObjectBuilder objBuilder = Json.createObjectBuilder();
         File file = new File(root + path);
@@ -522,9 +636,27 @@ public class GitRepository {
         String fullPath = "";
         try {
             fullPath = format("%s/%s%s", localRepoDir, branch, path);
-            File file = new File(fullPath);
-            if (file.exists() && file.isFile()) {
-                return new String(Files.readAllBytes(file.toPath()));
+            FileContentCache.Content content = readFile(fullPath);
+            if (content != null) {
+                return content.getText();
+            }
+        } catch (IOException ioe) {
+            throw new GitServiceException(format("IOException when reading from %s", fullPath), ioe);
+        }
+
+        throw new GitServiceException(format("Failed to find file %s", fullPath));
+    }
+
+    /**
+     * Gets a JSONC file with the comments stripped. The stripped content is cached along with the file.
+     */
+    public String getFileWithoutComments(String branch, String path) throws GitServiceException {
+        String fullPath = "";
+        try {
+            fullPath = format("%s/%s%s", localRepoDir, branch, path);
+            FileContentCache.Content content = readFile(fullPath);
+            if (content != null) {
+                return content.getStrippedText();
             }
         } catch (IOException ioe) {
             throw new GitServiceException(format("IOException when reading from %s", fullPath), ioe);
@@ -537,9 +669,9 @@ public class GitRepository {
         String fullPath = "";
         try {
             fullPath = format("%s/%s%s", localRepoDir, branch, path);
-            File file = new File(fullPath);
-            if (file.exists() && file.isFile()) {
-                return Files.readAllBytes(file.toPath());
+            FileContentCache.Content content = readFile(fullPath);
+            if (content != null) {
+                return content.getBytes();
             }
         } catch (IOException ioe) {
             throw new GitServiceException(format("IOException when reading bytes from %s", fullPath), ioe);
@@ -552,10 +684,9 @@ public class GitRepository {
         String fullPath = "";
         try {
             fullPath = format("%s/%s%s", localRepoDir, branch, path);
-            File file = new File(fullPath);
-            if (file.exists() && file.isFile()) {
-                byte[] fileContent = FileUtils.readFileToByteArray(file);
-                String encodedString = Base64.getEncoder().encodeToString(fileContent);
+            FileContentCache.Content content = readFile(fullPath);
+            if (content != null) {
+                String encodedString = Base64.getEncoder().encodeToString(content.getBytes());
                 return encodedString;
             }
         } catch (IOException ioe) {
@@ -566,12 +697,14 @@ public class GitRepository {
     }
 
     public String getLastCommittedFile(String branch, String path) throws GitServiceException {
+        RepositoryRegistry.Lease lease = null;
         ObjectReader reader = null;
         RevWalk walk = null;
         TreeWalk treewalk = null;
         try {
             Path repoPath = Paths.get(format("%s/%s", localRepoDir, branch));
-            Repository repo = new FileRepositoryBuilder().setGitDir(repoPath.resolve(".git").toFile()).build();
+            lease = repositories.acquire(repoPath, false);
+            Repository repo = lease.getRepository();
             reader = repo.newObjectReader();
 
             ObjectId lastCommitId = repo.resolve(Constants.HEAD);
@@ -605,6 +738,9 @@ public class GitRepository {
             if (treewalk != null) {
                 treewalk.close();
             }
+            if (lease != null) {
+                lease.close();
+            }
         }
     }
 
@@ -635,6 +771,7 @@ public class GitRepository {
                 file = new File(newFullPath);
             }
             Files.write(file.toPath(), newContent);
+            invalidateFiles(file.toPath());
         } catch (AccessDeniedException e) {
             throw new GitServiceException(format("File is write protected.<br />Sorry but you you are not allowed to modify %s", fullPath)); 
         }
@@ -655,6 +792,7 @@ public class GitRepository {
                 throw new GitServiceException(format("Unable to create %s as it already exists.", path));
             }
             boolean success = file.createNewFile();
+            invalidateFiles(file.toPath());
             if (!success) {
                 throw new GitServiceException(format("Unable to create %s", path));
             }
@@ -667,6 +805,7 @@ public class GitRepository {
         String fullPath = format("%s/%s%s", localRepoDir, branch, path);
         try {
             Files.createDirectories(Paths.get(fullPath));
+            invalidateFiles(Paths.get(fullPath));
         } catch (IOException e) {
             throw new GitServiceException(format("Unable to create folder %s", fullPath), e);
         }
@@ -688,6 +827,8 @@ public class GitRepository {
             throw new GitServiceException(format("Delete failed for %s", fullPath), e);
         } catch (IOException e) {
             throw new GitServiceException(format("Unable to delete directory %s", fullPath), e);
+        } finally {
+            invalidateFiles(Paths.get(fullPath));
         }
     }
 
@@ -709,6 +850,13 @@ public class GitRepository {
             Files.move(sourceFile.toPath(), targetFile.toPath());
         } catch (Exception e) {
             throw new GitServiceException(format("Unable to move %s to destination", source, target), e);
+        } finally {
+            FileContentCache cache = fileCache;
+            if (cache != null) {
+                cache.invalidate(Paths.get(source));
+                cache.invalidate(Paths.get(target));
+            }
+            treeIndex.move(Paths.get(source), Paths.get(target));
         }
     }
 
@@ -726,6 +874,7 @@ public class GitRepository {
             File newFile = new File(newPath);
 
             Files.copy(sourceFile.toPath(), newFile.toPath());
+            invalidateFiles(newFile.toPath());
 
         } catch (IOException e) {
             throw new GitServiceException(format("Unable to duplicate file %s", path), e);
@@ -739,12 +888,53 @@ public class GitRepository {
             File sourceFolder = new File(fullPath);
             File newFolder = new File(newPath);
             FileUtils.copyDirectory(sourceFolder, newFolder);
+            invalidateFiles(newFolder.toPath());
     
         } catch (IOException e) {
             throw new GitServiceException(format("Unable to duplicate folder %s", path), e);
         }
     }
 
+    private FileContentCache.Content readFile(String fullPath) throws IOException {
+        FileContentCache cache = fileCache;
+        if (cache != null) {
+            return cache.get(Paths.get(fullPath));
+        }
+        File file = new File(fullPath);
+        if (file.exists() && file.isFile()) {
+            return new FileContentCache.Content(Files.readAllBytes(file.toPath()));
+        }
+        return null;
+    }
+
+    /**
+     * Removes a file or directory from the file cache and reads it into the file tree index again.
+     */
+    private void invalidateFiles(Path path) {
+        FileContentCache cache = fileCache;
+        if (cache != null) {
+            cache.invalidate(path);
+        }
+        treeIndex.refresh(path);
+    }
+
+    /**
+     * Called with the workspace directory when a git operation that may have changed the working tree, such as pull,
+     * rebase or checkout, releases its write lease.
+     */
+    private void workspaceChanged(Path workspacePath) {
+        FileContentCache cache = fileCache;
+        if (cache != null) {
+            cache.invalidate(workspacePath);
+        }
+        treeIndex.removeWorkspace(workspacePath);
+    }
+
+    private void removeCachedWorkspace(Path workspacePath) {
+        watcher.unwatch(workspacePath);
+        workspaceChanged(workspacePath);
+    }
+
    /**
      * Performs a "git status"
      * 
@@ -752,10 +942,12 @@ public class GitRepository {
      * @throws GitServiceException
      */
     public JsonObject status(String branch) throws GitServiceException {
+        RepositoryRegistry.Lease lease = null;
         Git git = null;
         try {
             Path repoPath = Paths.get(format("%s/%s", localRepoDir, branch));
-            Repository repo = new FileRepositoryBuilder().setGitDir(repoPath.resolve(".git").toFile()).build();
+            lease = repositories.acquire(repoPath, false);
+            Repository repo = lease.getRepository();
             git = new Git(repo); 
             Status status = git.status().call();
 
@@ -769,6 +961,9 @@ public class GitRepository {
             if (git != null) {
                 git.close();
             }
+            if (lease != null) {
+                lease.close();
+            }
         }
     }
 
@@ -799,11 +994,13 @@ public class GitRepository {
      * @throws GitServiceException
      */
     public List<String> getBranchList(String workspace, boolean excludeCurrentBranch) throws GitServiceException {
+        RepositoryRegistry.Lease lease = null;
         Git git = null;
         try {
 
             Path repoPath = Paths.get(format("%s/%s", localRepoDir, workspace));
-            Repository repo = new FileRepositoryBuilder().setGitDir(repoPath.resolve(".git").toFile()).build();
+            lease = repositories.acquire(repoPath, false);
+            Repository repo = lease.getRepository();
             git = new Git(repo);
 
             String exclude = "";
@@ -831,14 +1028,19 @@ public class GitRepository {
             if (git != null) {
                 git.close();
             }
+            if (lease != null) {
+                lease.close();
+            }
         }
     }
 
     public String getCurrentBranch(String workspace) throws GitServiceException {
+        RepositoryRegistry.Lease lease = null;
         //Git git = null;
         try {
             Path repoPath = Paths.get(format("%s/%s", localRepoDir, workspace));
-            Repository repo = new FileRepositoryBuilder().setGitDir(repoPath.resolve(".git").toFile()).build();
+            lease = repositories.acquire(repoPath, false);
+            Repository repo = lease.getRepository();
             // git = new Git(repo);
         
             String fullBranch = repo.getFullBranch();
@@ -849,6 +1051,10 @@ public class GitRepository {
 
         } catch (IOException e) {
             throw new GitServiceException("Unable to get current brnach.", e);
+        } finally {
+            if (lease != null) {
+                lease.close();
+            }
         }
         // finally {
         //     if (git != null) {
@@ -881,10 +1087,12 @@ public class GitRepository {
     }
 
     public String createNewBranch(String workspace, String existingBranch, String newBranch) throws GitServiceException {
+        RepositoryRegistry.Lease lease = null;
         Git git = null;
         try {
             Path repoPath = Paths.get(format("%s/%s", localRepoDir, workspace));
-            Repository repo = new FileRepositoryBuilder().setGitDir(repoPath.resolve(".git").toFile()).build();
+            lease = repositories.acquire(repoPath, true, true);
+            Repository repo = lease.getRepository();
             git = new Git(repo);
 
             git.branchCreate().setUpstreamMode(SetupUpstreamMode.TRACK).setName(newBranch).setStartPoint("origin/" + existingBranch).call();
@@ -904,14 +1112,19 @@ public class GitRepository {
             if (git != null) {
                 git.close();
             }
+            if (lease != null) {
+                lease.close();
+            }
         }
     }
 
     public void switchBranch(String workspace, String newBranch) throws GitServiceException {
+        RepositoryRegistry.Lease lease = null;
         Git git = null;
         try {
             Path repoPath = Paths.get(format("%s/%s", localRepoDir, workspace));
-            Repository repo = new FileRepositoryBuilder().setGitDir(repoPath.resolve(".git").toFile()).build();
+            lease = repositories.acquire(repoPath, true, true);
+            Repository repo = lease.getRepository();
             git = new Git(repo);
 
             git.checkout().setName(newBranch).call();
@@ -923,14 +1136,19 @@ public class GitRepository {
             if (git != null) {
                 git.close();
             }
+            if (lease != null) {
+                lease.close();
+            }
         }
     }
 
     public String mergeBranch(String workspace, String mergeBranch) throws GitServiceException {
+        RepositoryRegistry.Lease lease = null;
         Git git = null;
         try {
             Path repoPath = Paths.get(format("%s/%s", localRepoDir, workspace));
-            Repository repo = new FileRepositoryBuilder().setGitDir(repoPath.resolve(".git").toFile()).build();
+            lease = repositories.acquire(repoPath, true, true);
+            Repository repo = lease.getRepository();
             git = new Git(repo);
 
             ListBranchCommand branchListCmd = git.branchList();
@@ -962,14 +1180,19 @@ public class GitRepository {
             if (git != null) {
                 git.close();
             }
+            if (lease != null) {
+                lease.close();
+            }
         }
     }
 
     public void deleteBranch(String workspace, String branch, boolean deleteFromRepo, boolean forceDelete) throws GitServiceException {
+        RepositoryRegistry.Lease lease = null;
         Git git = null;
         try {
             Path repoPath = Paths.get(format("%s/%s", localRepoDir, workspace));
-            Repository repo = new FileRepositoryBuilder().setGitDir(repoPath.resolve(".git").toFile()).build();
+            lease = repositories.acquire(repoPath, true);
+            Repository repo = lease.getRepository();
             git = new Git(repo);
 
             // Check that we're not attempting to delete any protected branches.
@@ -1023,14 +1246,19 @@ public class GitRepository {
             if (git != null) {
                 git.close();
             }
+            if (lease != null) {
+                lease.close();
+            }
         }
     }
 
     public void checkoutBranch(String workspace, String branch) throws GitServiceException {
+        RepositoryRegistry.Lease lease = null;
         Git git = null;
         try {
             Path repoPath = Paths.get(format("%s/%s", localRepoDir, workspace));
-            Repository repo = new FileRepositoryBuilder().setGitDir(repoPath.resolve(".git").toFile()).build();
+            lease = repositories.acquire(repoPath, true, true);
+            Repository repo = lease.getRepository();
             git = new Git(repo);  
             git.branchCreate().setForce(true).setName(branch).setStartPoint("origin/" + branch).call();
             git.checkout().setUpstreamMode(SetupUpstreamMode.TRACK).setName(branch).call();
@@ -1042,6 +1270,9 @@ public class GitRepository {
             if (git != null) {
                 git.close();
             }
+            if (lease != null) {
+                lease.close();
+            }
         }
     }
 
@@ -1056,10 +1287,12 @@ public class GitRepository {
      * @throws GitServiceException
      */
     public JsonObject getCommitsForBranchOrFile(String workspace, String branch, String fileName) throws GitServiceException {
+        RepositoryRegistry.Lease lease = null;
         Git git = null;
         try {
             Path repoPath = Paths.get(format("%s/%s", localRepoDir, workspace));
-            Repository repo = new FileRepositoryBuilder().setGitDir(repoPath.resolve(".git").toFile()).build();
+            lease = repositories.acquire(repoPath, false);
+            Repository repo = lease.getRepository();
             git = new Git(repo);  
             
             SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd kk:mm");
@@ -1098,16 +1331,21 @@ public class GitRepository {
             if (git != null) {
                 git.close();
             }
+            if (lease != null) {
+                lease.close();
+            }
         }      
     }
 
     public JsonObject getLog(String workspace, String branch, boolean merge, boolean rebase, boolean pull) throws GitServiceException {
+        RepositoryRegistry.Lease lease = null;
         Git git = null;
         try {
             String compareBranch = branch.equals("develop") ? "master" : "develop";
  
             Path repoPath = Paths.get(format("%s/%s", localRepoDir, workspace));
-            Repository repo = new FileRepositoryBuilder().setGitDir(repoPath.resolve(".git").toFile()).build();
+            lease = repositories.acquire(repoPath, true);
+            Repository repo = lease.getRepository();
             git = new Git(repo);
 
             git.fetch().call();
@@ -1182,6 +1420,9 @@ public class GitRepository {
             if (git != null) {
                 git.close();
             }
+            if (lease != null) {
+                lease.close();
+            }
         }      
     }
 
@@ -1201,10 +1442,12 @@ public class GitRepository {
      * @return Remote bracnh e.g. remotes/origin/develop
      */
     public String getTrackingBranch(String workspace) throws GitServiceException {
+        RepositoryRegistry.Lease lease = null;
         Git git = null;
         try {
             Path repoPath = Paths.get(format("%s/%s", localRepoDir, workspace));
-            Repository repo = new FileRepositoryBuilder().setGitDir(repoPath.resolve(".git").toFile()).build();
+            lease = repositories.acquire(repoPath, false);
+            Repository repo = lease.getRepository();
             String remoteBranch = new BranchConfig(repo.getConfig(), repo.getBranch()).getTrackingBranch();
             if (remoteBranch == null) {
                 throw new GitServiceException("The remote tracking branch is not set up. Use <code>git branch -u remote/remote_branch</code> to set the remote tracking branch.");
@@ -1218,6 +1461,9 @@ public class GitRepository {
             if (git != null) {
                 git.close();
             }
+            if (lease != null) {
+                lease.close();
+            }
         }      
     }
 
@@ -1228,10 +1474,12 @@ public class GitRepository {
      * @return Remote bracnh e.g. git:/
      */
     public String getRemoteRepo(String workspace) throws GitServiceException {
+        RepositoryRegistry.Lease lease = null;
         Git git = null;
         try {
             Path repoPath = Paths.get(format("%s/%s", localRepoDir, workspace));
-            Repository repo = new FileRepositoryBuilder().setGitDir(repoPath.resolve(".git").toFile()).build();
+            lease = repositories.acquire(repoPath, false);
+            Repository repo = lease.getRepository();
             git = new Git(repo);
             String remoteBranch = new BranchConfig(repo.getConfig(), repo.getBranch()).getRemote();
             List<RemoteConfig> remotesList = git.remoteList().call();
@@ -1251,6 +1499,9 @@ public class GitRepository {
             if (git != null) {
                 git.close();
             }
+            if (lease != null) {
+                lease.close();
+            }
         }      
     }
 
@@ -1386,10 +1637,12 @@ public class GitRepository {
      * @throws GitServiceException
      */
     public void add(String workspace, String file) throws GitServiceException {
+        RepositoryRegistry.Lease lease = null;
         Git git = null;
         try {
             Path repoPath = Paths.get(format("%s/%s", localRepoDir, workspace));
-            Repository repo = new FileRepositoryBuilder().setGitDir(repoPath.resolve(".git").toFile()).build();
+            lease = repositories.acquire(repoPath, true);
+            Repository repo = lease.getRepository();
             git = new Git(repo);
             git.add().addFilepattern(file).call();
 
@@ -1399,6 +1652,9 @@ public class GitRepository {
             if (git != null) {
                 git.close();
             }
+            if (lease != null) {
+                lease.close();
+            }
         }
     }
 
@@ -1411,10 +1667,12 @@ public class GitRepository {
      * @throws GitServiceException
      */
     public void rebaseContinue(String branch) throws GitServiceException {
+        RepositoryRegistry.Lease lease = null;
         Git git = null;
         try {
             Path repoPath = Paths.get(format("%s/%s", localRepoDir, branch));
-            Repository repo = new FileRepositoryBuilder().setGitDir(repoPath.resolve(".git").toFile()).build();
+            lease = repositories.acquire(repoPath, true, true);
+            Repository repo = lease.getRepository();
             git = new Git(repo);
             git.rebase().setOperation(Operation.CONTINUE).call();
 
@@ -1424,6 +1682,9 @@ public class GitRepository {
             if (git != null) {
                 git.close();
             }
+            if (lease != null) {
+                lease.close();
+            }
         }
     }
 
@@ -1437,10 +1698,12 @@ public class GitRepository {
      * @throws GitServiceException
      */
     public void rm(String workspace, String file) throws GitServiceException {
+        RepositoryRegistry.Lease lease = null;
         Git git = null;
         try {
             Path repoPath = Paths.get(format("%s/%s", localRepoDir, workspace));
-            Repository repo = new FileRepositoryBuilder().setGitDir(repoPath.resolve(".git").toFile()).build();
+            lease = repositories.acquire(repoPath, true, true);
+            Repository repo = lease.getRepository();
             git = new Git(repo);
             git.rm().addFilepattern(file).call();
 
@@ -1450,6 +1713,9 @@ public class GitRepository {
             if (git != null) {
                 git.close();
             }
+            if (lease != null) {
+                lease.close();
+            }
         }
     }
 
@@ -1461,10 +1727,12 @@ public class GitRepository {
      * @throws GitServiceException
      */
     public void restore(String workspace, String file) throws GitServiceException {
+        RepositoryRegistry.Lease lease = null;
         Git git = null;
         try {
             Path repoPath = Paths.get(format("%s/%s", localRepoDir, workspace));
-            Repository repo = new FileRepositoryBuilder().setGitDir(repoPath.resolve(".git").toFile()).build();
+            lease = repositories.acquire(repoPath, true, true);
+            Repository repo = lease.getRepository();
             git = new Git(repo);
 
             git.checkout().addPath(file).call();
@@ -1475,6 +1743,9 @@ public class GitRepository {
             if (git != null) {
                 git.close();
             }
+            if (lease != null) {
+                lease.close();
+            }
         }
     }
 
@@ -1489,10 +1760,12 @@ public class GitRepository {
      * @throws GitServiceException
      */
     public void unstage(String branch, String file) throws GitServiceException {
+        RepositoryRegistry.Lease lease = null;
         Git git = null;
         try {
             Path repoPath = Paths.get(format("%s/%s", localRepoDir, branch));
-            Repository repo = new FileRepositoryBuilder().setGitDir(repoPath.resolve(".git").toFile()).build();
+            lease = repositories.acquire(repoPath, true);
+            Repository repo = lease.getRepository();
             git = new Git(repo);
             git.reset().addPath(file).call();
         } catch (IOException | GitAPIException e) {
@@ -1501,6 +1774,9 @@ public class GitRepository {
             if (git != null) {
                 git.close();
             }
+            if (lease != null) {
+                lease.close();
+            }
         }
     }
 
@@ -1513,10 +1789,12 @@ public class GitRepository {
      * @throws GitServiceException
      */
     public void commit(String branch, String message, String authorName, String authorEmail) throws GitServiceException {
+        RepositoryRegistry.Lease lease = null;
         Git git = null;
         try {
             Path repoPath = Paths.get(format("%s/%s", localRepoDir, branch));
-            Repository repo = new FileRepositoryBuilder().setGitDir(repoPath.resolve(".git").toFile()).build();
+            lease = repositories.acquire(repoPath, true);
+            Repository repo = lease.getRepository();
             git = new Git(repo);
 
             // See if there are any staged files
@@ -1550,6 +1828,9 @@ public class GitRepository {
             if (git != null) {
                 git.close();
             }
+            if (lease != null) {
+                lease.close();
+            }
         }
     }
 
@@ -1562,10 +1843,12 @@ public class GitRepository {
      * @throws GitServiceException
      */
     public void stash(String branch, String message) throws GitServiceException {
+        RepositoryRegistry.Lease lease = null;
         Git git = null;
         try {
             Path repoPath = Paths.get(format("%s/%s", localRepoDir, branch));
-            Repository repo = new FileRepositoryBuilder().setGitDir(repoPath.resolve(".git").toFile()).build();
+            lease = repositories.acquire(repoPath, true, true);
+            Repository repo = lease.getRepository();
             git = new Git(repo);
 
             git.stashCreate().setIncludeUntracked(true).setWorkingDirectoryMessage(message).call();
@@ -1576,6 +1859,9 @@ public class GitRepository {
             if (git != null) {
                 git.close();
             }
+            if (lease != null) {
+                lease.close();
+            }
         }
     }
 
@@ -1587,10 +1873,12 @@ public class GitRepository {
      * @throws GitServiceException
      */
     public void stashPop(String branch, String stashRef) throws GitServiceException {
+        RepositoryRegistry.Lease lease = null;
         Git git = null;
         try {
             Path repoPath = Paths.get(format("%s/%s", localRepoDir, branch));
-            Repository repo = new FileRepositoryBuilder().setGitDir(repoPath.resolve(".git").toFile()).build();
+            lease = repositories.acquire(repoPath, true, true);
+            Repository repo = lease.getRepository();
             git = new Git(repo);
             git.stashApply().setStashRef(stashRef).call();
             stashDrop(branch, stashRef);
@@ -1601,6 +1889,9 @@ public class GitRepository {
             if (git != null) {
                 git.close();
             }
+            if (lease != null) {
+                lease.close();
+            }
         }
     }
 
@@ -1612,10 +1903,12 @@ public class GitRepository {
      * @throws GitServiceException
      */
     public void stashDrop(String branch, String stashRef) throws GitServiceException {
+        RepositoryRegistry.Lease lease = null;
         Git git = null;
         try {
             Path repoPath = Paths.get(format("%s/%s", localRepoDir, branch));
-            Repository repo = new FileRepositoryBuilder().setGitDir(repoPath.resolve(".git").toFile()).build();
+            lease = repositories.acquire(repoPath, true);
+            Repository repo = lease.getRepository();
             git = new Git(repo);
 
             StashListCommand stashList = git.stashList();
@@ -1629,6 +1922,9 @@ public class GitRepository {
             if (git != null) {
                 git.close();
             }
+            if (lease != null) {
+                lease.close();
+            }
         }
     }
 
@@ -1653,11 +1949,13 @@ public class GitRepository {
      */
     public synchronized void stageCommitPushChange(String branch, String appName, String fileName,
             String message) throws GitServiceException {
+        RepositoryRegistry.Lease lease = null;
         Git git = null;
         String filePattern = format("%s%s", appName, fileName);
         try {
             Path repoPath = Paths.get(format("%s/%s", localRepoDir, branch));
-            Repository repo = new FileRepositoryBuilder().setGitDir(repoPath.resolve(".git").toFile()).build();
+            lease = repositories.acquire(repoPath, true);
+            Repository repo = lease.getRepository();
             git = new Git(repo);
             git.add().addFilepattern(filePattern).call();
             git.commit().setMessage(message).call();
@@ -1668,6 +1966,9 @@ public class GitRepository {
             if (git != null) {
                 git.close();
             }
+            if (lease != null) {
+                lease.close();
+            }
         }
     }
 
@@ -1683,11 +1984,13 @@ public class GitRepository {
      * @throws GitServiceException
      */
     public synchronized boolean mergeDevelopIntoMaster(boolean forceMerge) throws GitServiceException {
+        RepositoryRegistry.Lease lease = null;
         Git git = null;
         try {
             MergeStrategy mergeStrategy = forceMerge ? MergeStrategy.THEIRS : MergeStrategy.RECURSIVE;
             Path masterRepoPath = Paths.get(format("%s/%s", localRepoDir, PRODUCTION_WORKSPACE));
-            Repository masterRepo = new FileRepositoryBuilder().setGitDir(masterRepoPath.resolve(".git").toFile()).build();
+            lease = repositories.acquire(masterRepoPath, true, true);
+            Repository masterRepo = lease.getRepository();
 
             git = new Git(masterRepo);
             git.pull().call();
@@ -1724,6 +2027,9 @@ public class GitRepository {
             if (git != null) {
                 git.close();
             }
+            if (lease != null) {
+                lease.close();
+            }
         }
     }
 
@@ -1736,11 +2042,13 @@ public class GitRepository {
      * @throws GitServiceException
     */
     public synchronized String tagMaster(boolean majorRelease) throws GitServiceException {
+        RepositoryRegistry.Lease lease = null;
         Git git = null;
         String releaseTag = "";
         try {
             Path masterRepoPath = Paths.get(format("%s/%s", localRepoDir, PRODUCTION_WORKSPACE));
-            Repository masterRepo = new FileRepositoryBuilder().setGitDir(masterRepoPath.resolve(".git").toFile()).build();
+            lease = repositories.acquire(masterRepoPath, true);
+            Repository masterRepo = lease.getRepository();
             git = new Git(masterRepo);
 
             // Find latest tag.
@@ -1771,6 +2079,9 @@ public class GitRepository {
             if (git != null) {
                 git.close();
             }
+            if (lease != null) {
+                lease.close();
+            }
         }            
         return releaseTag;
     }
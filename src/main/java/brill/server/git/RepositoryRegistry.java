@@ -0,0 +1,189 @@
+// © 2021 Brill Software Limited - Git Package, distributed under the MIT License.
+package brill.server.git;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+
+/**
+ * Repository Registry - keeps a JGit Repository open for each workspace, so that the refs, config and pack indexes
+ * are read once and the object caches stay warm from one request to the next.
+ *
+ * A Lease is acquired for each use of a repository and must be closed afterwards. The leases are counted, so a
+ * repository that's removed from the registry, because the workspace is being deleted or cloned again, is only closed
+ * once the last lease has been returned.
+ *
+ * Each workspace has a read/write lock. Operations that change the repository, such as commit, pull and checkout, hold
+ * the write lock. Operations that only read, such as status and log, hold the read lock and can run at the same time.
+ * Operations that change the working tree, such as pull, checkout and merge, say so when they acquire the write lock,
+ * and the write listener is told when the lock is released, as the files of the workspace may have changed. Commits
+ * and branch changes that leave the files alone don't tell the listener, so the file caches stay warm.
+ *
+ */
+class RepositoryRegistry {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(RepositoryRegistry.class);
+
+    /**
+     * The use of a repository while holding its read or write lock.
+     */
+    class Lease implements AutoCloseable {
+        private final Entry entry;
+        private final Lock lock;
+        private final boolean filesChanged;
+        private boolean closed = false;
+
+        private Lease(Entry entry, Lock lock, boolean filesChanged) {
+            this.entry = entry;
+            this.lock = lock;
+            this.filesChanged = filesChanged;
+        }
+
+        Repository getRepository() {
+            return entry.repository;
+        }
+
+        /**
+         * Releases the lock and the reference to the repository.
+         */
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            lock.unlock();
+            release(entry);
+            if (filesChanged && writeListener != null) {
+                writeListener.accept(Paths.get(entry.key));
+            }
+        }
+    }
+
+    private static class Entry {
+        private final String key;
+        private final Repository repository;
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private int refCount = 1; // The registry holds one reference until the entry is removed.
+        private boolean removed = false;
+
+        private Entry(String key, Repository repository) {
+            this.key = key;
+            this.repository = repository;
+        }
+    }
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private final Consumer<Path> writeListener;
+
+    RepositoryRegistry() {
+        this(null);
+    }
+
+    /**
+     * @param writeListener Called with the workspace directory each time a lease that changed the files is closed.
+     */
+    RepositoryRegistry(Consumer<Path> writeListener) {
+        this.writeListener = writeListener;
+    }
+
+    /**
+     * Gets the repository of a workspace, opening it if it's not already open, and locks it.
+     *
+     * @param workspacePath Directory of the workspace, that contains the .git directory.
+     * @param write True for the write lock, false for the read lock.
+     * @return The lease, which must be closed.
+     * @throws IOException The repository doesn't exist or can't be read.
+     */
+    Lease acquire(Path workspacePath, boolean write) throws IOException {
+        return acquire(workspacePath, write, false);
+    }
+
+    /**
+     * Gets the repository of a workspace, opening it if it's not already open, and locks it.
+     *
+     * @param workspacePath Directory of the workspace, that contains the .git directory.
+     * @param write True for the write lock, false for the read lock.
+     * @param filesChanged True when the operation may change the files of the working tree. The write listener is
+     *                     called when the lease is closed.
+     * @return The lease, which must be closed.
+     * @throws IOException The repository doesn't exist or can't be read.
+     */
+    Lease acquire(Path workspacePath, boolean write, boolean filesChanged) throws IOException {
+        Entry entry;
+        synchronized (this) {
+            String key = getKey(workspacePath);
+            entry = entries.get(key);
+            if (entry == null) {
+                Repository repository = new FileRepositoryBuilder().setGitDir(workspacePath.resolve(".git").toFile())
+                    .setMustExist(true).build();
+                entry = new Entry(key, repository);
+                entries.put(key, entry);
+                log.debug("Opened git repository " + key);
+            }
+            entry.refCount++;
+        }
+        Lock lock = write ? entry.lock.writeLock() : entry.lock.readLock();
+        lock.lock();
+        return new Lease(entry, lock, filesChanged);
+    }
+
+    /**
+     * Removes the repository of a workspace from the registry. Called before the workspace is deleted or cloned, so
+     * that the next lease opens the new repository. The repository is closed when the last lease is returned.
+     *
+     * @param workspacePath Directory of the workspace.
+     */
+    void remove(Path workspacePath) {
+        remove(getKey(workspacePath));
+    }
+
+    /**
+     * Removes and closes all the repositories.
+     */
+    void removeAll() {
+        String[] keys;
+        synchronized (this) {
+            keys = entries.keySet().toArray(new String[0]);
+        }
+        for (String key : keys) {
+            remove(key);
+        }
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    private void remove(String key) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.remove(key);
+            if (entry == null || entry.removed) {
+                return;
+            }
+            entry.removed = true;
+        }
+        release(entry);
+    }
+
+    private void release(Entry entry) {
+        synchronized (this) {
+            if (--entry.refCount > 0) {
+                return;
+            }
+        }
+        entry.repository.close();
+        log.debug("Closed git repository " + entry.key);
+    }
+
+    private static String getKey(Path workspacePath) {
+        return workspacePath.toAbsolutePath().normalize().toString();
+    }
+}
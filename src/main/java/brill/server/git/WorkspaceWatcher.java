@@ -0,0 +1,237 @@
+// © 2021 Brill Software Limited - Git Package, distributed under the MIT License.
+package brill.server.git;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import brill.server.utils.NamedThreadFactory;
+import static java.lang.String.format;
+
+/**
+ * Workspace Watcher - uses a WatchService to tell the file cache and the file tree index about changes to the
+ * workspaces that are made outside of the server, for example by a git command line or an editor.
+ *
+ * A workspace is watched from the first time one of its files is cached or its tree is indexed. WatchService isn't
+ * recursive, so each directory is registered, and new directories are registered as they're created. The .git
+ * directory is skipped as its changes are also seen in the working tree. Symbolic links, such as the link to the
+ * shared media library, are followed.
+ *
+ */
+class WorkspaceWatcher {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(WorkspaceWatcher.class);
+
+    /**
+     * Told about each file or directory that's been created, modified or deleted. When events have been lost, it's
+     * told about the directory they were for, and anything under it might have changed.
+     */
+    interface Listener {
+        void pathChanged(Path path);
+    }
+
+    private final Path rootDir;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private final Set<Path> watchedWorkspaces = new HashSet<Path>();
+    private final Map<WatchKey, Set<Path>> watchedDirs = new HashMap<WatchKey, Set<Path>>();
+    private WatchService watchService;
+
+    /**
+     * @param rootDir Directory under which the workspaces are held.
+     */
+    WorkspaceWatcher(Path rootDir) {
+        this.rootDir = rootDir.toAbsolutePath().normalize();
+    }
+
+    void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Gets the workspace directory that a path is in.
+     *
+     * @param path Absolute and normalized path.
+     * @return The workspace directory or null if the path isn't under the root directory.
+     */
+    Path getWorkspace(Path path) {
+        if (!path.startsWith(rootDir) || path.getNameCount() <= rootDir.getNameCount()) {
+            return null;
+        }
+        return rootDir.resolve(path.getName(rootDir.getNameCount()));
+    }
+
+    /**
+     * Makes sure that the workspace of a path is being watched, starting the watcher if necessary.
+     *
+     * @param path Absolute and normalized path of the workspace or a file in it.
+     * @return False if the path isn't in a workspace or the workspace can't be watched.
+     */
+    synchronized boolean watch(Path path) {
+        Path workspace = getWorkspace(path);
+        if (workspace == null || !Files.isDirectory(workspace)) {
+            return false;
+        }
+        if (watchedWorkspaces.contains(workspace)) {
+            return true;
+        }
+        try {
+            if (watchService == null) {
+                watchService = FileSystems.getDefault().newWatchService();
+                WatchService service = watchService;
+                new NamedThreadFactory("git-file-watcher-").newThread(() -> processEvents(service)).start();
+            }
+            registerAll(workspace);
+            watchedWorkspaces.add(workspace);
+            log.debug("Watching workspace " + workspace);
+            return true;
+        } catch (IOException e) {
+            log.warn(format("Unable to watch %s: %s", workspace, e.getMessage()));
+            unwatch(workspace);
+            return false;
+        }
+    }
+
+    /**
+     * Stops watching a workspace. Used when the workspace is deleted or cloned again. The workspace is watched again
+     * the next time watch() is called for it.
+     *
+     * @param workspacePath Directory of the workspace.
+     */
+    synchronized void unwatch(Path workspacePath) {
+        Path workspace = workspacePath.toAbsolutePath().normalize();
+        watchedWorkspaces.remove(workspace);
+        Iterator<Map.Entry<WatchKey, Set<Path>>> it = watchedDirs.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<WatchKey, Set<Path>> entry = it.next();
+            entry.getValue().removeIf(dir -> dir.startsWith(workspace));
+            if (entry.getValue().isEmpty()) {
+                entry.getKey().cancel();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Stops the watcher thread.
+     */
+    void close() {
+        WatchService service;
+        synchronized (this) {
+            service = watchService;
+            watchService = null;
+            watchedWorkspaces.clear();
+            watchedDirs.clear();
+        }
+        if (service != null) {
+            try {
+                service.close();
+            } catch (IOException e) {
+                log.warn("Unable to close the file watcher: " + e.getMessage());
+            }
+        }
+    }
+
+    private synchronized void registerAll(Path dir) throws IOException {
+        if (watchService == null) {
+            return;
+        }
+        Files.walkFileTree(dir, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path subDir, BasicFileAttributes attrs) throws IOException {
+                if (subDir.getFileName() != null && subDir.getFileName().toString().equals(".git")) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                WatchKey key = subDir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                // A directory reached through symbolic links from more than one workspace shares the same key.
+                watchedDirs.computeIfAbsent(key, k -> new HashSet<Path>()).add(subDir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                // Links that loop back, and files deleted while the directories are walked.
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void processEvents(WatchService service) {
+        while (true) {
+            WatchKey key;
+            try {
+                key = service.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Set<Path> dirs;
+            synchronized (this) {
+                Set<Path> watched = watchedDirs.get(key);
+                dirs = watched == null ? null : new HashSet<Path>(watched);
+            }
+            if (dirs == null) {
+                key.pollEvents();
+                key.reset();
+                continue;
+            }
+            for (WatchEvent<?> event : key.pollEvents()) {
+                for (Path dir : dirs) {
+                    processEvent(dir, event);
+                }
+            }
+            if (!key.reset()) {
+                synchronized (this) {
+                    watchedDirs.remove(key);
+                }
+            }
+        }
+    }
+
+    private void processEvent(Path dir, WatchEvent<?> event) {
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+            notifyListeners(dir);
+            return;
+        }
+        Path child = dir.resolve((Path) event.context());
+        notifyListeners(child);
+        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(child)) {
+            try {
+                registerAll(child);
+            } catch (IOException e) {
+                log.warn(format("Unable to watch %s: %s", child, e.getMessage()));
+            }
+            // Anything created in the new directory before it was registered wasn't seen.
+            notifyListeners(child);
+        }
+    }
+
+    private void notifyListeners(Path path) {
+        for (Listener listener : listeners) {
+            try {
+                listener.pathChanged(path);
+            } catch (Exception e) {
+                log.error(format("File watcher listener failed for %s", path), e);
+            }
+        }
+    }
+}
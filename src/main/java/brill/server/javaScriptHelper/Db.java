@@ -2,12 +2,15 @@
 package brill.server.javaScriptHelper;
 
 import java.sql.SQLException;
+import javax.json.Json;
 import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
 import javax.json.JsonObject;
 import brill.server.database.CachedConnection;
 import brill.server.database.Database;
 import brill.server.exception.SecurityServiceException;
 import brill.server.service.PasswordService;
+import brill.server.service.QueryResultCache;
 import brill.server.utils.JsonUtils;
 import static java.lang.String.format;
 
@@ -23,16 +26,21 @@ public class Db {
 
     public Database database = null;
     private boolean dbWriteAllowed;
+    private QueryResultCache resultCache;
 
-    public Db(Database database, boolean dbWriteAllowed) {
+    public Db(Database database, boolean dbWriteAllowed, QueryResultCache resultCache) {
         this.database = database;
         this.dbWriteAllowed = dbWriteAllowed;
+        this.resultCache = resultCache;
     }
 
     public String executeQuery(String query, String jsonParams) throws SQLException {
         CachedConnection conn = null;
         try {
             log.trace(format("Executing query: %s", query + " jsonParams = " + jsonParams));
+            if (resultCache != null) {
+                resultCache.queryExecuted(query);
+            }
 
             conn = database.getConnection();
             JsonArray responseJson = conn.executeQuery(query, jsonParams);
@@ -49,6 +57,9 @@ public class Db {
         CachedConnection conn = null;
 
         try {
+            if (resultCache != null) {
+                resultCache.queryExecuted(query);
+            }
             conn = database.getConnection();
             JsonObject jsonObj = JsonUtils.jsonFromString(jsonParams);
             JsonArray responseJson = conn.executeNamedParametersQuery(query, jsonObj);
@@ -71,6 +82,42 @@ public class Db {
             int rowCount = conn.executeNamedParametersUpdate(query, jsonObj);
             return rowCount;
         } finally {
+            if (resultCache != null) {
+                resultCache.updateExecuted(query);
+            }
+            if (conn != null) {
+                conn.close();
+            }
+        }
+    }
+
+    /**
+     * Executes the update once for each object in the JSON array, in one batch and transaction. Much quicker than
+     * calling executeNamedParamsUpdate for each row when importing data.
+     * 
+     * @param query SQL that has named parameters.
+     * @param jsonParamsArray JSON array of parameter objects.
+     * @return JSON array of the number of rows updated for each object.
+     * @throws SQLException
+     */
+    public String executeNamedParamsBatch(String query, String jsonParamsArray) throws SQLException {
+        CachedConnection conn = null;
+        if (!dbWriteAllowed) {
+            throw new SQLException("You require the db_write permission to perform that operation.");
+        }
+        try {
+            conn = database.getConnection();
+            JsonArray rows = JsonUtils.jsonArrayFromString(jsonParamsArray);
+            int[] rowCounts = conn.executeNamedParametersBatch(query, rows);
+            JsonArrayBuilder builder = Json.createArrayBuilder();
+            for (int rowCount : rowCounts) {
+                builder.add(rowCount);
+            }
+            return builder.build().toString();
+        } finally {
+            if (resultCache != null) {
+                resultCache.updateExecuted(query);
+            }
             if (conn != null) {
                 conn.close();
             }
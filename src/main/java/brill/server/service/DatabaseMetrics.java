@@ -0,0 +1,136 @@
+// © 2021 Brill Software Limited - Brill Framework, distributed under the MIT License.
+package brill.server.service;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import brill.server.database.Database;
+import brill.server.database.QueryStats;
+import brill.server.domain.Subscriber;
+import brill.server.utils.NamedThreadFactory;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Database Metrics - passes the statement timings recorded by the database package on to Micrometer and publishes
+ * them to the metrics:/db topic.
+ *
+ * Each query:/ and javascript:/ topic has its own latency histogram, along with the rows returned and the bytes of
+ * JSON sent to the client. The time spent waiting for a connection from the pool is also recorded. Statements slower
+ * than database.metrics.slowQueryMs are logged by QueryStats.
+ *
+ * Only the first database.metrics.maxSources sources get their own meters. The timings for any further sources are
+ * recorded under a source of "other", so that a large number of topics can't create an unbounded number of meters.
+ *
+ * Subscribers to metrics:/db are sent the statistics every database.metrics.publishIntervalSeconds, with the topics
+ * that have taken the most time first.
+ *
+ */
+@Service
+public class DatabaseMetrics implements QueryStats.Listener {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(DatabaseMetrics.class);
+
+    public static final String TOPIC = "metrics:/db";
+
+    private final QueryStats queryStats;
+    private final MeterRegistry meterRegistry;
+    private final WebSocketService wsService;
+    private final int maxSources;
+    private final Set<String> meterSources = ConcurrentHashMap.newKeySet();
+    private final Map<String, Timer> timers = new ConcurrentHashMap<String, Timer>();
+    private final Map<String, DistributionSummary> rowSummaries = new ConcurrentHashMap<String, DistributionSummary>();
+    private final Map<String, DistributionSummary> byteSummaries = new ConcurrentHashMap<String, DistributionSummary>();
+    private final Timer poolWaitTimer;
+    private final ScheduledExecutorService publisher;
+
+    public DatabaseMetrics(@Qualifier("database") Database database, MeterRegistry meterRegistry, WebSocketService wsService,
+            @Value("${database.metrics.slowQueryMs:1000}") long slowQueryMs,
+            @Value("${database.metrics.publishIntervalSeconds:10}") int publishIntervalSeconds,
+            @Value("${database.metrics.maxSources:50}") int maxSources) {
+        this.queryStats = database.getQueryStats();
+        this.meterRegistry = meterRegistry;
+        this.wsService = wsService;
+        this.maxSources = maxSources;
+        poolWaitTimer = Timer.builder("brill.db.pool.wait")
+            .description("Time waiting for a database connection").register(meterRegistry);
+        queryStats.setSlowQueryTime(slowQueryMs);
+        queryStats.setListener(this);
+
+        if (publishIntervalSeconds > 0) {
+            publisher = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("db-metrics-"));
+            publisher.scheduleWithFixedDelay(this::publish, publishIntervalSeconds, publishIntervalSeconds, TimeUnit.SECONDS);
+        } else {
+            publisher = null;
+        }
+    }
+
+    @Override
+    public void queryExecuted(String statsSource, long elapsedNanos, int rows, boolean failed) {
+        String source = getMeterSource(statsSource);
+        timers.computeIfAbsent(source + (failed ? "\nerror" : "\nsuccess"), k -> Timer.builder("brill.db.query")
+            .description("Time to execute a statement and read the results")
+            .tag("source", source).tag("outcome", failed ? "error" : "success")
+            .publishPercentileHistogram()
+            .minimumExpectedValue(Duration.ofMillis(1)).maximumExpectedValue(Duration.ofSeconds(60))
+            .register(meterRegistry)).record(elapsedNanos, TimeUnit.NANOSECONDS);
+        rowSummaries.computeIfAbsent(source, k -> DistributionSummary.builder("brill.db.query.rows")
+            .description("Rows returned or updated by a statement").tag("source", source)
+            .register(meterRegistry)).record(rows);
+    }
+
+    @Override
+    public void resultWritten(String statsSource, long bytes) {
+        String source = getMeterSource(statsSource);
+        byteSummaries.computeIfAbsent(source, k -> DistributionSummary.builder("brill.db.result.bytes")
+            .description("Bytes of JSON sent to the client for a query").tag("source", source).baseUnit("bytes")
+            .register(meterRegistry)).record(bytes);
+    }
+
+    private String getMeterSource(String source) {
+        if (meterSources.contains(source) || (meterSources.size() < maxSources && meterSources.add(source))) {
+            return source;
+        }
+        return QueryStats.OTHER_SOURCE;
+    }
+
+    @Override
+    public void poolWaited(long elapsedNanos) {
+        poolWaitTimer.record(elapsedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return The statistics as a JSON string, for the metrics:/db topic.
+     */
+    public String getJson() {
+        return queryStats.toJson(maxSources).toString();
+    }
+
+    void publish() {
+        try {
+            List<Subscriber> subscribers = wsService.getSubscribers(TOPIC);
+            if (subscribers == null || subscribers.isEmpty()) {
+                return;
+            }
+            wsService.broadcast(subscribers, "publish", TOPIC, getJson());
+        } catch (Exception e) {
+            log.error("Exception while publishing the database metrics.", e);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (publisher != null) {
+            publisher.shutdownNow();
+        }
+    }
+}
@@ -3,14 +3,17 @@ package brill.server.service;
 
 import javax.json.JsonArray;
 import javax.json.JsonObject;
+import javax.json.stream.JsonGenerator;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Service;
 import brill.server.database.CachedConnection;
 import brill.server.database.Database;
+import brill.server.database.NamedPreparedStatement;
 import static java.lang.String.format;
 import java.sql.SQLException;
 import java.time.LocalDateTime;
+import java.util.Base64;
 
 
 /**
@@ -19,15 +22,20 @@ import java.time.LocalDateTime;
 @Service
 public class DatabaseService {
 
+    public static final String CONTINUATION = "continuation";
+
     Database database;
+    QueryResultCache resultCache;
 
-    public DatabaseService(@Autowired @Qualifier("database") Database database) {
+    public DatabaseService(@Autowired @Qualifier("database") Database database, QueryResultCache resultCache) {
         this.database = database;
+        this.resultCache = resultCache;
     }
 
     public String query(String query) {
         CachedConnection conn = null;
         try {
+            resultCache.queryExecuted(query);
             conn = database.getConnection();
             String responseJson = conn.executeQuery(query).toString();
             return responseJson;
@@ -41,6 +49,7 @@ public class DatabaseService {
     public JsonArray query(String query, String jsonParams) throws SQLException {
         CachedConnection conn = null;
         try {
+            resultCache.queryExecuted(query);
             conn = database.getConnection();
             JsonArray responseJson = conn.executeQuery(query, jsonParams);
             return responseJson;
@@ -54,6 +63,7 @@ public class DatabaseService {
     public JsonArray queryUsingNamedParameters(String query, JsonObject jsonParams) throws SQLException {
         CachedConnection conn = null;
         try {
+            resultCache.queryExecuted(query);
             conn = database.getConnection();
             JsonArray responseJson = conn.executeNamedParametersQuery(query, jsonParams);
             return responseJson;
@@ -64,6 +74,87 @@ public class DatabaseService {
         }
     }
 
+    /**
+     * Executes a named parameter query and writes the results to the generator as a JSON array, without building
+     * the whole result in memory.
+     */
+    public void queryUsingNamedParameters(String query, JsonObject jsonParams, JsonGenerator generator) throws SQLException {
+        CachedConnection conn = null;
+        try {
+            resultCache.queryExecuted(query);
+            conn = database.getConnection();
+            conn.executeNamedParametersQuery(query, jsonParams, generator);
+        } finally {
+            if (conn != null) {
+                conn.close();
+            }
+        }
+    }
+
+    /**
+     * Executes a named parameter query and writes one page of the results to the generator as a JSON array. A
+     * continuation token for the next page is written after the array, or null when there are no more rows.
+     * 
+     * @param query SQL that has named parameters.
+     * @param jsonParams The parameter values.
+     * @param generator Generator positioned at the value of the content field of a message.
+     * @param continuation Token from the previous page, or null for the first page.
+     * @param pageSize Maximum number of rows.
+     * @throws SQLException
+     */
+    public void queryPageUsingNamedParameters(String query, JsonObject jsonParams, JsonGenerator generator, 
+                                              String continuation, int pageSize) throws SQLException {
+        int offset = getContinuationOffset(continuation);
+        CachedConnection conn = null;
+        try {
+            resultCache.queryExecuted(query);
+            conn = database.getConnection();
+            boolean more = conn.executeNamedParametersQuery(query, jsonParams, generator, offset, pageSize);
+            if (more) {
+                generator.write(CONTINUATION, createContinuationToken(offset + pageSize));
+            } else {
+                generator.writeNull(CONTINUATION);
+            }
+        } finally {
+            if (conn != null) {
+                conn.close();
+            }
+        }
+    }
+
+    /**
+     * @param filter A query filter.
+     * @return The page size from the filter, or 0 if the results aren't to be paged.
+     */
+    public static int getPageSize(JsonObject filter) {
+        if (filter == null) {
+            return 0;
+        }
+        return Math.max(0, filter.getInt(NamedPreparedStatement.PAGE_SIZE, 0));
+    }
+
+    private static String createContinuationToken(int offset) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(("offset:" + offset).getBytes());
+    }
+
+    private static int getContinuationOffset(String continuation) throws SQLException {
+        if (continuation == null || continuation.isEmpty()) {
+            return 0;
+        }
+        try {
+            String token = new String(Base64.getUrlDecoder().decode(continuation));
+            if (token.startsWith("offset:")) {
+                int offset = Integer.parseInt(token.substring("offset:".length()));
+                if (offset >= 0) {
+                    return offset;
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            // Drop through.
+        }
+        throw new SQLException(format("Invalid continuation token: %s", continuation));
+    }
+
     public int executeUpdate(String query, String jsonParams) throws SQLException {
         CachedConnection conn = null;
         try {
@@ -71,6 +162,7 @@ public class DatabaseService {
             int rowsUpdated  = conn.executeUpdate(query, jsonParams);
             return rowsUpdated;
         } finally {
+            resultCache.updateExecuted(query);
             if (conn != null) {
                 conn.close();
             }
@@ -84,12 +176,44 @@ public class DatabaseService {
             int rowsUpdated = conn.executeNamedParametersUpdate(sql, jsonParams);
             return rowsUpdated;
         } finally {
+            resultCache.updateExecuted(sql);
+            if (conn != null) {
+                conn.close();
+            }
+        }
+    }
+
+    /**
+     * Executes a named parameter update for each object in the array, as one batch and transaction on a single
+     * connection.
+     * 
+     * @param sql SQL that has named parameters.
+     * @param rows JSON array of parameter objects.
+     * @return The number of rows updated for each object.
+     * @throws SQLException
+     */
+    public int[] executeNamedParametersBatch(String sql, JsonArray rows) throws SQLException {
+        CachedConnection conn = null;
+        try {
+            conn = database.getConnection();
+            return conn.executeNamedParametersBatch(sql, rows);
+        } finally {
+            resultCache.updateExecuted(sql);
             if (conn != null) {
                 conn.close();
             }
         }
     }
 
+    /**
+     * Records the size of a query result sent to a client, for the database statistics.
+     * 
+     * @param bytes Length of the JSON.
+     */
+    public void recordResultBytes(long bytes) {
+        database.getQueryStats().recordResultBytes(bytes);
+    }
+
     public JsonObject getUserDetails(String user) throws SQLException {
         CachedConnection conn = null;
         try {
@@ -115,8 +239,9 @@ public class DatabaseService {
         try {
             conn = database.getConnection();
 
-            int rowsUpdated = conn.executeUpdate("update brill_cms_user set password = ?, changePassword = 'N' where username = ?",
-                    format("{\"password\": \"%s\", \"username\": \"%s\"}", newPwdHash, user));
+            String sql = "update brill_cms_user set password = ?, changePassword = 'N' where username = ?";
+            int rowsUpdated = conn.executeUpdate(sql, format("{\"password\": \"%s\", \"username\": \"%s\"}", newPwdHash, user));
+            resultCache.updateExecuted(sql);
 
             if (rowsUpdated != 1) {
                 throw new SQLException("Failed to update password.");
@@ -133,8 +258,10 @@ public class DatabaseService {
         try {
             conn = database.getConnection();
 
-            int rowsUpdated = conn.executeUpdate("update brill_cms_user set last_login = ? where username = ?",
+            String sql = "update brill_cms_user set last_login = ? where username = ?";
+            int rowsUpdated = conn.executeUpdate(sql,
                 format("{\"last_login\": \"%s\", \"username\": \"%s\"}", LocalDateTime.now().toString() , user));
+            resultCache.updateExecuted(sql);
                    
             if (rowsUpdated != 1) {
                 throw new SQLException("Failed to update login details.");
@@ -12,6 +12,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.json.JsonObject;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
@@ -34,6 +36,8 @@ public class GitService {
     @Qualifier("gitAppsRepo")
     GitRepository gitRepo;
 
+    private final Map<String, Long> publishedTreeVersions = new ConcurrentHashMap<String, Long>(); // By workspace.
+
     @Autowired
     private WebSocketService wsService;
 
@@ -61,19 +65,28 @@ public class GitService {
     }
 
     public JsonObject getFileTree(String workspace, String topic, JsonObject filter) throws GitServiceException {
-        boolean includeFileContent = false;
-        List<String> hiddenApps = new ArrayList<String>();
-        if (filter != null) {    
-            if (filter.containsKey("includeFileContent") &&
-                filter.get("includeFileContent").getValueType().name().equals("TRUE")) {
-                    includeFileContent = true;
-                }
-            if (filter.containsKey("hiddenApps")) {
-                hiddenApps =  Arrays.asList(filter.getString("hiddenApps").split(","));
-            }
+        return gitRepo.getFileTree(workspace, getPath(topic), isFilterTrue(filter, "includeFileContent"), getHiddenApps(filter),
+            isPatchFilter(filter));
+    }
+
+    private static boolean isFilterTrue(JsonObject filter, String name) {
+        return filter != null && filter.containsKey(name) && filter.get(name).getValueType().name().equals("TRUE");
+    }
+
+    private static List<String> getHiddenApps(JsonObject filter) {
+        if (filter != null && filter.containsKey("hiddenApps")) {
+            return Arrays.asList(filter.getString("hiddenApps").split(","));
         }
+        return new ArrayList<String>();
+    }
 
-        return gitRepo.getFileTree(workspace, getPath(topic), includeFileContent, hiddenApps);
+    /**
+     * Subscribers that set "patches": true in the filter are sent publish-patch messages with just the changes to the
+     * tree, rather than the whole tree. The trees they're sent include the version. Trees that include the file
+     * content are always sent whole.
+     */
+    private static boolean isPatchFilter(JsonObject filter) {
+        return isFilterTrue(filter, "patches") && !isFilterTrue(filter, "includeFileContent");
     }
 
     public JsonObject getFileTree(String workspace, String topic) throws GitServiceException {
@@ -103,6 +116,10 @@ public class GitService {
         return gitRepo.getFile(workspace, getPath(topic));
     }
 
+    public String getFileWithoutComments(String workspace, String topic) throws GitServiceException {
+        return gitRepo.getFileWithoutComments(workspace, getPath(topic));
+    }
+
     public byte[] getBinaryFile(String workspace, String topic) throws GitServiceException {
         return gitRepo.getBinaryFile(workspace, getPath(topic));
     }
@@ -181,12 +198,10 @@ public class GitService {
         // Publish the change to everyone subscribed to git:status:/
         List<Subscriber> subscribers = wsService.getSubscribers("git:status:/");
         String content = getStatus(workspace).toString();
-        for (Subscriber subscriber : subscribers) {
-            try {
-                wsService.sendMessageToClient(subscriber.getSession(), "publish", "git:status:/", content);
-            } catch (WebSocketException e) {
-                log.error("Unable to updte client with git:status:/");
-            }
+        try {
+            wsService.broadcast(subscribers, "publish", "git:status:/", content);
+        } catch (WebSocketException e) {
+            log.error("Unable to updte client with git:status:/");
         }
     }
 
@@ -265,18 +280,55 @@ public class GitService {
         publishTopicTree(workspace);
     }
 
+    /**
+     * Publishes the revised file tree to the subscribers to file:/ and to any Topic Branches below it, such as 
+     * file:/MyApp/ The subscription index provides these without checking every session.
+     *
+     * Subscribers that asked for patches are sent a publish-patch message with the changes since the last publish,
+     * for example:
+     * {"event": "publish-patch", "topic": "file:/", "content": {"baseVersion": 11, "version": 12, "changes": [
+     *   {"op": "add", "version": 12, "parentId": "file:/app/pages", "node": {"id": "file:/app/pages/new.json", ...}}]}}
+     *
+     * A client applies the changes with a version above the version of its tree. If the baseVersion is above the
+     * version of its tree, changes have been missed and the client should subscribe again to get the whole tree.
+     * When the changes aren't known, such as after a pull, the whole tree is published instead.
+     */
     private void publishTopicTree(String workspace) throws GitServiceException{
-        String topic = "file:/";
-        //String content = getFileTree(workspace, topic).toString();
-        List<Subscriber> subscribers = wsService.getSubscribers(topic);
-        for (Subscriber subscriber : subscribers) {
-            if (wsService.getWorkspace(subscriber.getSession()).equals(workspace)) {
+        long version = gitRepo.getFileTreeVersion(workspace);
+        Long publishedVersion = publishedTreeVersions.put(workspace, version);
+        long sinceVersion = publishedVersion == null ? 0 : publishedVersion;
+        for (Map.Entry<String, List<Subscriber>> entry : wsService.getSubscribersStartingWith("file:/").entrySet()) {
+            String topic = entry.getKey();
+            if (!topic.endsWith("/")) {
+                continue;
+            }
+            List<Subscriber> subscribers = new ArrayList<Subscriber>();
+            for (Subscriber subscriber : entry.getValue()) {
+                if (wsService.getWorkspace(subscriber.getSession()).equals(workspace)) {
+                    subscribers.add(subscriber);
+                }
+            }
+            // The tree is only created once for each different filter.
+            for (List<Subscriber> group : Subscriber.groupByFilter(subscribers).values()) {
                 try {
-                    JsonObject filter = JsonUtils.jsonFromString(subscriber.getFilter());
+                    JsonObject filter = JsonUtils.jsonFromString(group.get(0).getFilter());
+                    if (isPatchFilter(filter)) {
+                        JsonObject patch = gitRepo.getFileTreePatch(workspace, getPath(topic), getHiddenApps(filter),
+                            sinceVersion, version);
+                        if (patch != null) {
+                            if (version > sinceVersion) {
+                                wsService.broadcast(group, "publish-patch", topic, patch.toString());
+                            }
+                            continue;
+                        }
+                    }
                     String content = getFileTree(workspace, topic, filter).toString();
-                    wsService.sendMessageToClient(subscriber.getSession(), "publish", topic, content);
+                    wsService.broadcast(group, "publish", topic, content);
                 } catch (WebSocketException e) {
                     // Ignore
+                } catch (GitServiceException e) {
+                    // The Topic Branch may have been deleted or moved.
+                    log.warn(format("Unable to publish topic tree %s : %s", topic, e.getMessage()));
                 }
             }
         }
@@ -340,22 +392,18 @@ public class GitService {
             String fileContent = gitRepo.getFile(workspace, "/" + filePath);
             String topic = "file:/" + filePath;
             List<Subscriber> subscribers = wsService.getSubscribers(topic);
-            for (Subscriber subscriber : subscribers) {
-                try {
-                    wsService.sendMessageToClient(subscriber.getSession(), "publish", topic, fileContent, true);
-                } catch (WebSocketException e) {
-                    // Ignore
-                }
+            try {
+                wsService.broadcast(subscribers, "publish", topic, fileContent, true, false);
+            } catch (WebSocketException e) {
+                // Ignore
             }
             if (filePath.endsWith(".json")) {
                 topic = "json:/" + filePath;
                 subscribers = wsService.getSubscribers(topic);
-                for (Subscriber subscriber : subscribers) {
-                    try {
-                        wsService.sendMessageToClient(subscriber.getSession(), "publish", topic, fileContent, false, true);
-                    } catch (WebSocketException e) {
-                        // Ignore
-                    }
+                try {
+                    wsService.broadcast(subscribers, "publish", topic, fileContent, false, true);
+                } catch (WebSocketException e) {
+                    // Ignore
                 }
             }
         }
@@ -370,22 +418,18 @@ public class GitService {
             String fileContent = gitRepo.getFile(workspace, "/" + filePath);
             String topic = "file:/" + filePath;
             List<Subscriber> subscribers = wsService.getSubscribers(topic);
-            for (Subscriber subscriber : subscribers) {
-                try {
-                    wsService.sendMessageToClient(subscriber.getSession(), "publish", topic, fileContent, true);
-                } catch (WebSocketException e) {
-                    // Ignore
-                }
+            try {
+                wsService.broadcast(subscribers, "publish", topic, fileContent, true, false);
+            } catch (WebSocketException e) {
+                // Ignore
             }
             if (filePath.endsWith(".json")) {
                 topic = "json:/" + filePath;
                 subscribers = wsService.getSubscribers(topic);
-                for (Subscriber subscriber : subscribers) {
-                    try {
-                        wsService.sendMessageToClient(subscriber.getSession(), "publish", topic, fileContent, false, true);
-                    } catch (WebSocketException e) {
-                        // Ignore
-                    }
+                try {
+                    wsService.broadcast(subscribers, "publish", topic, fileContent, false, true);
+                } catch (WebSocketException e) {
+                    // Ignore
                 }
             }
         }
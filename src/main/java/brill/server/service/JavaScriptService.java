@@ -25,6 +25,9 @@ public class JavaScriptService {
     @Qualifier("database")
     Database database;
 
+    @Autowired
+    QueryResultCache resultCache;
+
     /**
      * Executes JavaScript using Rhino. Parameters are passed to the script using a Json string called "filter". The script is expected to
      * return the result as a Json string.
@@ -50,7 +53,7 @@ public class JavaScriptService {
             Object wrappedFilterJson = Context.javaToJS(filterJson, scope);  
             ScriptableObject.putProperty(scope, "filter", wrappedFilterJson);
 
-            Object wrappedDb = Context.javaToJS(new Db(database, dbWriteAllowed), scope);
+            Object wrappedDb = Context.javaToJS(new Db(database, dbWriteAllowed, resultCache), scope);
             ScriptableObject.putProperty(scope, "db", wrappedDb);
 
             Object wrappedUsername = Context.javaToJS(username, scope);
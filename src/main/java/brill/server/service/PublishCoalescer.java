@@ -0,0 +1,90 @@
+// © 2021 Brill Software Limited - Brill Framework, distributed under the MIT License.
+package brill.server.service;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import brill.server.exception.WebSocketException;
+import brill.server.utils.NamedThreadFactory;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import static java.lang.String.format;
+
+/**
+ * Publish Coalescer - limits how often the subscribers to a topic are sent new content.
+ *
+ * The CMS JSON editor publishes a topic on every edit. With websocket.publish.coalesceMs set, the first publish of a
+ * topic is delayed by that many ms, and any further publishes of the topic during the delay replace it. The
+ * subscribers are only sent the latest content, at most once per window. The default of 0 sends every publish straight
+ * away.
+ *
+ * Only the sending to subscribers is delayed. The caller still saves the file on every publish.
+ *
+ */
+@Service
+public class PublishCoalescer {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(PublishCoalescer.class);
+
+    /**
+     * Sends the content to the subscribers of a topic.
+     */
+    @FunctionalInterface
+    public interface Publication {
+        void publish() throws WebSocketException;
+    }
+
+    private final long windowMs;
+    private final ScheduledExecutorService scheduler;
+    private final Map<String, Publication> pending = new ConcurrentHashMap<String, Publication>();
+    private final Counter coalescedCounter;
+
+    public PublishCoalescer(MeterRegistry meterRegistry, @Value("${websocket.publish.coalesceMs:0}") long windowMs) {
+        this.windowMs = windowMs;
+        this.scheduler = windowMs > 0 ? Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("ws-publish-")) : null;
+        this.coalescedCounter = Counter.builder("brill.websocket.publish.coalesced")
+            .description("Publishes replaced by a later publish to the same topic").register(meterRegistry);
+    }
+
+    /**
+     * Sends the content to the subscribers, either straight away or at the end of the window.
+     *
+     * @param topic The topic being published.
+     * @param publication Sends the content to the subscribers.
+     * @throws WebSocketException Only thrown when the publication is sent straight away.
+     */
+    public void publish(String topic, Publication publication) throws WebSocketException {
+        if (scheduler == null) {
+            publication.publish();
+            return;
+        }
+        if (pending.put(topic, publication) == null) {
+            scheduler.schedule(() -> flush(topic), windowMs, TimeUnit.MILLISECONDS);
+        } else {
+            coalescedCounter.increment();
+        }
+    }
+
+    private void flush(String topic) {
+        Publication publication = pending.remove(topic);
+        if (publication == null) {
+            return;
+        }
+        try {
+            publication.publish();
+        } catch (Exception e) {
+            log.error(format("Publication of %s failed: %s", topic, e.getMessage()));
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+    }
+}
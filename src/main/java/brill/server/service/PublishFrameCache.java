@@ -0,0 +1,128 @@
+// © 2021 Brill Software Limited - Brill Framework, distributed under the MIT License.
+package brill.server.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.socket.TextMessage;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Publish Frame Cache - keeps the publish messages sent to json:/ subscribers, along with the permission the page
+ * requires, so that a repeat subscribe to the same page is sent without parsing and re-serializing the JSON.
+ *
+ * Entries are keyed by workspace and topic, and hold the file content that produced them. An entry is only used while
+ * the file content is unchanged. The file cache returns the same String until the file changes, so the check is
+ * usually a reference comparison.
+ *
+ * websocket.frameCache.maxEntries limits the number of entries, with the least recently used being removed first.
+ * Zero turns the cache off.
+ *
+ */
+@Service
+public class PublishFrameCache {
+
+    /**
+     * A message ready to send and the permission needed to receive it.
+     */
+    public static class Frame {
+        private final TextMessage message;
+        private final String permission;
+
+        public Frame(TextMessage message, String permission) {
+            this.message = message;
+            this.permission = permission;
+        }
+
+        public TextMessage getMessage() {
+            return message;
+        }
+
+        /**
+         * @return The required permission or an empty string when there isn't one.
+         */
+        public String getPermission() {
+            return permission;
+        }
+    }
+
+    /**
+     * Produces the frame to cache.
+     */
+    @FunctionalInterface
+    public interface Loader {
+        Frame load() throws Exception;
+    }
+
+    private static class Entry {
+        private final String source;
+        private final Frame frame;
+
+        Entry(String source, Frame frame) {
+            this.source = source;
+            this.frame = frame;
+        }
+    }
+
+    private final int maxEntries;
+    private final LinkedHashMap<String, Entry> entries;
+    private final Counter hitCounter;
+    private final Counter missCounter;
+
+    public PublishFrameCache(MeterRegistry meterRegistry,
+            @Value("${websocket.frameCache.maxEntries:500}") int maxEntries) {
+        this.maxEntries = maxEntries;
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > PublishFrameCache.this.maxEntries;
+            }
+        };
+        hitCounter = Counter.builder("brill.publish.frame.cache.hits")
+            .description("Subscriptions sent a cached message").register(meterRegistry);
+        missCounter = Counter.builder("brill.publish.frame.cache.misses")
+            .description("Subscriptions that parsed the content").register(meterRegistry);
+        Gauge.builder("brill.publish.frame.cache.size", this, PublishFrameCache::size)
+            .description("Cached messages").register(meterRegistry);
+    }
+
+    /**
+     * Gets the cached frame, or loads it and caches it.
+     *
+     * @param workspace The workspace of the session.
+     * @param topic The topic.
+     * @param source The file content the frame is produced from.
+     * @param loader Produces the frame when it's not in the cache or the content has changed.
+     * @return The frame.
+     * @throws Exception Thrown by the loader.
+     */
+    public Frame get(String workspace, String topic, String source, Loader loader) throws Exception {
+        if (maxEntries <= 0) {
+            return loader.load();
+        }
+        String key = workspace + '\n' + topic;
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null && (entry.source == source || entry.source.equals(source))) {
+                hitCounter.increment();
+                return entry.frame;
+            }
+        }
+        missCounter.increment();
+
+        Frame frame = loader.load();
+        synchronized (entries) {
+            entries.put(key, new Entry(source, frame));
+        }
+        return frame;
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+}
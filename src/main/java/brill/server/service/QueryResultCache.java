@@ -0,0 +1,275 @@
+// © 2021 Brill Software Limited - Brill Framework, distributed under the MIT License.
+package brill.server.service;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.json.Json;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonValue;
+import javax.json.JsonValue.ValueType;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.socket.TextMessage;
+import brill.server.utils.JsonUtils;
+import brill.server.utils.SqlUtils;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Query Result Cache - keeps the messages published to query:/ and javascript:/ subscribers, so that visitors
+ * subscribing to the same topic with the same filter don't each run the SQL again.
+ *
+ * Entries are keyed by workspace, topic and filter, and hold the SQL or JavaScript that produced them. An entry is
+ * only used if the SQL or JavaScript hasn't changed since. The DatabaseService and the JavaScript Db helper record the
+ * tables read while a result is produced, and the tables written by every update. A write to a table removes the
+ * entries that read it. Results that read no tables that could be found, or that wrote to the database, aren't cached.
+ *
+ * The table names are found by scanning the SQL, not from the database. A query that reads through a view is recorded
+ * under the view's name, so a write to a base table of the view doesn't remove the entry, and nor do writes made by
+ * triggers, stored procedures or other applications. Results that read views must be left to expire, so the TTL
+ * should be kept short when the queries use views.
+ *
+ * The cache is off unless database.resultCache.ttlMs is set. database.resultCache.maxEntries limits the number of
+ * entries, with the least recently used being removed first.
+ *
+ */
+@Service
+public class QueryResultCache {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(QueryResultCache.class);
+
+    /**
+     * Produces the message to cache.
+     */
+    @FunctionalInterface
+    public interface Loader {
+        TextMessage load() throws Exception;
+    }
+
+    private static class Entry {
+        private final String source;
+        private final TextMessage message;
+        private final Set<String> tables;
+        private final long expiryTime;
+
+        Entry(String source, TextMessage message, Set<String> tables, long expiryTime) {
+            this.source = source;
+            this.message = message;
+            this.tables = tables;
+            this.expiryTime = expiryTime;
+        }
+    }
+
+    /**
+     * The tables read and written by the current thread while a result is being loaded.
+     */
+    private static class Tracking {
+        private final Set<String> tablesRead = new HashSet<String>();
+        private boolean unknownTables;
+        private boolean written;
+    }
+
+    private final long ttlMs;
+    private final int maxEntries;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final Map<String, Set<String>> keysByTable = new HashMap<String, Set<String>>();
+    private final ThreadLocal<Tracking> tracking = new ThreadLocal<Tracking>();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private final Counter hitCounter;
+    private final Counter missCounter;
+    private final Counter invalidatedCounter;
+
+    public QueryResultCache(MeterRegistry meterRegistry,
+            @Value("${database.resultCache.ttlMs:0}") long ttlMs,
+            @Value("${database.resultCache.maxEntries:1000}") int maxEntries) {
+        this.ttlMs = ttlMs;
+        this.maxEntries = maxEntries;
+        hitCounter = Counter.builder("brill.db.result.cache.hits")
+            .description("Subscriptions sent a cached result").register(meterRegistry);
+        missCounter = Counter.builder("brill.db.result.cache.misses")
+            .description("Subscriptions that ran the query").register(meterRegistry);
+        invalidatedCounter = Counter.builder("brill.db.result.cache.invalidated")
+            .description("Cached results removed by a write to a table they read").register(meterRegistry);
+        Gauge.builder("brill.db.result.cache.size", this, QueryResultCache::size)
+            .description("Cached results").register(meterRegistry);
+    }
+
+    public boolean isEnabled() {
+        return ttlMs > 0 && maxEntries > 0;
+    }
+
+    /**
+     * Creates the key for a result.
+     *
+     * @param workspace The workspace of the session.
+     * @param topic The topic.
+     * @param filter The subscription filter. Objects are compared with their keys in any order.
+     * @param username The user, for JavaScript that may return different results for each user, otherwise null.
+     * @return The key.
+     */
+    public static String createKey(String workspace, String topic, String filter, String username) {
+        return workspace + '\n' + topic + '\n' + normalizeFilter(filter) + '\n' + (username == null ? "" : username);
+    }
+
+    /**
+     * Gets the cached message, or loads it and caches it.
+     *
+     * @param key Key from createKey.
+     * @param source The SQL or JavaScript that produces the result.
+     * @param loader Produces the message when it's not in the cache.
+     * @return The message.
+     * @throws Exception Thrown by the loader.
+     */
+    public TextMessage get(String key, String source, Loader loader) throws Exception {
+        if (!isEnabled()) {
+            return loader.load();
+        }
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                if (entry.expiryTime > System.currentTimeMillis() && entry.source.equals(source)) {
+                    hitCounter.increment();
+                    return entry.message;
+                }
+                remove(key);
+            }
+        }
+        missCounter.increment();
+
+        long invalidationsBefore = invalidations.get();
+        Tracking outerTracking = tracking.get();
+        Tracking loadTracking = new Tracking();
+        tracking.set(loadTracking);
+        TextMessage message;
+        try {
+            message = loader.load();
+        } finally {
+            tracking.set(outerTracking);
+        }
+
+        if (loadTracking.written || loadTracking.unknownTables || loadTracking.tablesRead.isEmpty()) {
+            return message;
+        }
+        synchronized (entries) {
+            // Don't cache a result if a table may have been updated while it was being loaded.
+            if (invalidations.get() != invalidationsBefore) {
+                return message;
+            }
+            remove(key);
+            entries.put(key, new Entry(source, message, loadTracking.tablesRead, System.currentTimeMillis() + ttlMs));
+            for (String table : loadTracking.tablesRead) {
+                keysByTable.computeIfAbsent(table, t -> new HashSet<String>()).add(key);
+            }
+            if (entries.size() > maxEntries) {
+                Iterator<String> it = entries.keySet().iterator();
+                remove(it.next());
+            }
+        }
+        return message;
+    }
+
+    /**
+     * Records the tables a query reads. Called for every query, but only does anything while a result is loaded.
+     *
+     * @param sql The query.
+     */
+    public void queryExecuted(String sql) {
+        Tracking current = tracking.get();
+        if (current == null) {
+            return;
+        }
+        Set<String> tables = SqlUtils.getTablesRead(sql);
+        if (tables.isEmpty()) {
+            current.unknownTables = true;
+        }
+        current.tablesRead.addAll(tables);
+    }
+
+    /**
+     * Removes the results that read the tables an update writes to. When the tables can't be found, all the results
+     * are removed.
+     *
+     * @param sql The INSERT, UPDATE, DELETE or DDL statement.
+     */
+    public void updateExecuted(String sql) {
+        Tracking current = tracking.get();
+        if (current != null) {
+            current.written = true;
+        }
+        if (!isEnabled()) {
+            return;
+        }
+        invalidations.incrementAndGet();
+        Set<String> tables = SqlUtils.getTablesWritten(sql);
+        synchronized (entries) {
+            if (tables.isEmpty()) {
+                invalidatedCounter.increment(entries.size());
+                entries.clear();
+                keysByTable.clear();
+                return;
+            }
+            for (String table : tables) {
+                Set<String> keys = keysByTable.remove(table);
+                if (keys != null) {
+                    for (String key : keys) {
+                        if (remove(key)) {
+                            invalidatedCounter.increment();
+                        }
+                    }
+                }
+            }
+        }
+        log.trace("Result cache invalidated for tables " + tables);
+    }
+
+    private boolean remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry == null) {
+            return false;
+        }
+        for (String table : entry.tables) {
+            Set<String> keys = keysByTable.get(table);
+            if (keys != null) {
+                keys.remove(key);
+                if (keys.isEmpty()) {
+                    keysByTable.remove(table);
+                }
+            }
+        }
+        return true;
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Sorts the keys of the filter objects, so that {"a":1,"b":2} and {"b":2,"a":1} give the same key.
+     */
+    static String normalizeFilter(String filter) {
+        if (filter == null || filter.isEmpty() || !filter.trim().startsWith("{")) {
+            return filter == null ? "" : filter;
+        }
+        return normalize(JsonUtils.jsonFromString(filter)).toString();
+    }
+
+    private static JsonValue normalize(JsonValue value) {
+        if (value.getValueType() != ValueType.OBJECT) {
+            return value;
+        }
+        JsonObjectBuilder builder = Json.createObjectBuilder();
+        for (Map.Entry<String, JsonValue> entry : new TreeMap<String, JsonValue>(value.asJsonObject()).entrySet()) {
+            builder.add(entry.getKey(), normalize(entry.getValue()));
+        }
+        return builder.build();
+    }
+}
@@ -35,25 +35,42 @@ public class SecurityService {
     }
 
     public void checkPermission(WebSocketSession session, String content) throws SecurityServiceException {
+        checkRequiredPermission(session, getRequiredPermission(content));
+    }
+
+    /**
+     * Gets the permission that a JSON page requires, from its top level "permission" field.
+     *
+     * @param content JSON content.
+     * @return The permission or an empty string when no permission is required.
+     */
+    public String getRequiredPermission(String content) {
         String contentStr = content.stripLeading();
         if (contentStr.startsWith("{")) {
             JsonReader reader = Json.createReader(new StringReader(content));
             JsonObject contentObj = reader.readObject();
             if (contentObj.containsKey("permission")) {
-                String requiredPermission = contentObj.getString("permission");
-                if (requiredPermission.length() == 0) {
-                    return;
-                }
-                if (!wsService.hasPermission(session, requiredPermission)) {
-                    String username = wsService.getUsername(session);
-                    // Note that the client relies on the error message containing "Please login" or "permission"
-                    if (username.length() == 0) {
-                        throw new SecurityServiceException(format("Session expired or not logged in. Please login.", requiredPermission));
-                    } else {
-                        throw new SecurityServiceException(format("Sorry but you don't have the <b>%s</b> permission.", requiredPermission));
-                    }  
-                }
+                return contentObj.getString("permission");
             }
         }
+        return "";
+    }
+
+    /**
+     * Checks the session has a permission obtained from getRequiredPermission().
+     */
+    public void checkRequiredPermission(WebSocketSession session, String requiredPermission) throws SecurityServiceException {
+        if (requiredPermission.length() == 0) {
+            return;
+        }
+        if (!wsService.hasPermission(session, requiredPermission)) {
+            String username = wsService.getUsername(session);
+            // Note that the client relies on the error message containing "Please login" or "permission"
+            if (username.length() == 0) {
+                throw new SecurityServiceException(format("Session expired or not logged in. Please login.", requiredPermission));
+            } else {
+                throw new SecurityServiceException(format("Sorry but you don't have the <b>%s</b> permission.", requiredPermission));
+            }  
+        }
     }
 }
\ No newline at end of file
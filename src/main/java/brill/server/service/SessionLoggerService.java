@@ -273,7 +273,7 @@ public class SessionLoggerService {
             JsonObject jsonParam = Json.createObjectBuilder().add("sessionId", sessionId).build();
             JsonObject queryResult = db.queryUsingNamedParameters(sql1, jsonParam).getJsonObject(0);
             String startTime = queryResult.getString("start_date_time");
-            int pages = queryResult.getInt("pages") + 1;
+            int pages = queryResult.getInt("pages", 0) + 1;
     
             // Updtate session_length and pages in the session_log table.
             String sql2 = "update session_log set session_length = ((UNIX_TIMESTAMP(:currentTime) - UNIX_TIMESTAMP(:startTime)))" +
@@ -7,11 +7,13 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.StringReader;
+import java.io.StringWriter;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -21,9 +23,13 @@ import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
 import javax.json.JsonReader;
 import javax.json.JsonValue;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonGeneratorFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.springframework.web.socket.BinaryMessage;
 import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
 import org.springframework.web.socket.WebSocketSession;
 import brill.server.config.WebSocketConfig;
 import brill.server.domain.Subscriber;
@@ -32,6 +38,9 @@ import brill.server.exception.WebSocketException;
 import brill.server.utils.DirUtils;
 import brill.server.utils.JsonUtils;
 import brill.server.utils.LogUtils;
+import brill.server.webSockets.BinaryFrame;
+import brill.server.webSockets.SendBufferDecorator;
+import brill.server.webSockets.SubscriptionIndex;
 import brill.server.webSockets.WebSocketSessionManager;
 import java.util.Base64;
 import static java.lang.String.format;
@@ -49,6 +58,8 @@ public class WebSocketService {
     public static String INFO_SEVERITY = "info";
     public static String SUCCESS_SEVERITY = "success";
 
+    private static final JsonGeneratorFactory generatorFactory = Json.createGeneratorFactory(null);
+
     private static String REPOSITORY = "repository";
     private static String WORKSPACE = "workspace";
     private static String USERNAME = "username";
@@ -58,6 +69,7 @@ public class WebSocketService {
     private static String SUBSCRIPTIONS = "subscriptions";
     private static String PERMISSIONS = "permissions";
     private static String SHARED_SECRET = "shared_secret";
+    private static String BINARY_FRAMES = "binary_frames";
 
     private static String DEFAULT_WORKSPACE = "production";
 
@@ -69,10 +81,13 @@ public class WebSocketService {
 
     private WebSocketSessionManager sessionManager;
     private CryptoService cryptoService;
+    private SubscriptionIndex subscriptionIndex;
 
-    public WebSocketService(WebSocketSessionManager sessionManager, CryptoService cryptoService) {
+    public WebSocketService(WebSocketSessionManager sessionManager, CryptoService cryptoService, 
+                            SubscriptionIndex subscriptionIndex) {
          this.sessionManager = sessionManager;
          this.cryptoService = cryptoService;
+         this.subscriptionIndex = subscriptionIndex;
     }
 
     /**
@@ -89,60 +104,213 @@ public class WebSocketService {
     public void sendMessageToClient(WebSocketSession session, String event, String topic, String content, 
                                     boolean base64EncodeContent, boolean jsonc) throws WebSocketException {
         try {
-            JsonObjectBuilder jsonObjBuilder = Json.createObjectBuilder();
-            jsonObjBuilder.add("event", event);
-            jsonObjBuilder.add("topic", topic);
-            
-            if (base64EncodeContent) {
-                String contentEncoded = new String(Base64.getEncoder().encode(content.getBytes()));
-                JsonReader reader = Json.createReader(new StringReader("{\"base64\": \"" + contentEncoded + "\"}"));
-                JsonValue contentValue = reader.readValue();
-                jsonObjBuilder.add("content", contentValue);
-            } else {
-                if (content == null) {
-                    content = "null";
-                }
-                if (jsonc) {
-                    content = JsonUtils.stripComments(content);
-                } else {
-                    content = content.stripLeading();
-                }
-                JsonReader reader = Json.createReader(new StringReader(content));
-                if (content.startsWith("{")) {
-                    JsonObject contentObj = reader.readObject();
-                    jsonObjBuilder.add("content", contentObj);
+            if (base64EncodeContent && isBinaryFrames(session)) {
+                sendBinaryFrame(session, event, topic, createBinaryFrame(event, topic, BinaryFrame.getContentType(topic), content.getBytes()));
+                return;
+            }
+            TextMessage textMessage = createTextMessage(event, topic, content, base64EncodeContent, jsonc);
+            send(session, event, topic, textMessage);
+            if (loggingLevel.equals("TRACE")) {
+                log.trace(LogUtils.truncate(textMessage.getPayload()));
+            }
+        } catch (IOException ioe) {
+            log.warn(format("WebSocket sendMessageToClient exception: %s",ioe.getMessage()));
+        }
+    }
+
+    /**
+     * Sends the same message to all the subscribers. The message is built once and the same TextMessage is queued
+     * on each subscriber's session, rather than parsing the content and building the JSON for every subscriber.
+     * When the content is base64 encoded, subscribers using binary frames are sent a binary message, which is 
+     * also only built once.
+     * 
+     * @param subscribers The subscribers to send the message to.
+     * @param event Most of the time the event will be 'publish'.
+     * @param topic The topic.
+     * @param content A string containing JSON or JSONC or binary content if it's to be base64 encoded.
+     * @param base64EncodeContent Set to true to base64 encode the content.
+     * @param jsonc Indicates the content is JSONC rather than JSON and therefore may contain comments.
+     * 
+     */
+    public void broadcast(List<Subscriber> subscribers, String event, String topic, String content, 
+                          boolean base64EncodeContent, boolean jsonc) throws WebSocketException {
+        TextMessage textMessage = null;
+        BinaryMessage binaryFrame = null;
+        for (Subscriber subscriber : subscribers) {
+            WebSocketSession session = subscriber.getSession();
+            try {
+                if (base64EncodeContent && isBinaryFrames(session)) {
+                    if (binaryFrame == null) {
+                        binaryFrame = createBinaryFrame(event, topic, BinaryFrame.getContentType(topic), content.getBytes());
+                    }
+                    sendBinaryFrame(session, event, topic, binaryFrame);
                 } else {
-                    if (content.startsWith("[")) {
-                        JsonArray contentArray = reader.readArray();
-                        jsonObjBuilder.add("content", contentArray);
-                    } else {
-                        if (content.length() != 0) {
-                            JsonValue contentValue = reader.readValue();
-                            jsonObjBuilder.add("content", contentValue);
-                        } else {
-                            jsonObjBuilder.add("content", "");
+                    if (textMessage == null) {
+                        textMessage = createTextMessage(event, topic, content, base64EncodeContent, jsonc);
+                        if (loggingLevel.equals("TRACE")) {
+                            log.trace(format("Broadcast to %s subscribers: %s", subscribers.size(), 
+                                LogUtils.truncate(textMessage.getPayload())));
                         }
                     }
-                } 
-            }
-            JsonObject responseObj = jsonObjBuilder.build();
-            String response = responseObj.toString();
-            if (response.length() > WebSocketConfig.WEB_SOCKET_MAX_MESSAGE_SIZE) {
-                throw new WebSocketException(format("Maximum WebSocket message length of %s exceeded. Length = %s", 
-                    WebSocketConfig.WEB_SOCKET_MAX_MESSAGE_SIZE, response.length()));
+                    send(session, event, topic, textMessage);
+                }
+            } catch (IOException ioe) {
+                log.warn(format("WebSocket broadcast exception for session %s: %s", session.getId(), ioe.getMessage()));
             }
-            session.sendMessage(new TextMessage(responseObj.toString()));
-            if (loggingLevel.equals("TRACE")) {
-                log.trace(LogUtils.truncate(responseObj.toString()));
+        }
+    }
+
+    public void broadcast(List<Subscriber> subscribers, String event, String topic, String content) throws WebSocketException {
+        broadcast(subscribers, event, topic, content, false, false);
+    }
+
+    /**
+     * Writes JSON content straight into a message, without the content first being built as a String or tree.
+     * Further fields of the message, such as a continuation token, can be written after the content value.
+     */
+    @FunctionalInterface
+    public interface ContentWriter {
+        void write(JsonGenerator generator) throws Exception;
+    }
+
+    /**
+     * Sends a message with content written by the ContentWriter. Used for query results, where the rows are written
+     * from the ResultSet into the message rather than converted to a JsonArray, a String and then parsed again.
+     * 
+     * @param session The WebSocket session.
+     * @param event Most of the time the event will be 'publish'.
+     * @param topic The topic.
+     * @param contentWriter Writes the content value.
+     * @throws WebSocketException The content couldn't be written or the message is too large.
+     */
+    public void sendMessageToClient(WebSocketSession session, String event, String topic, ContentWriter contentWriter) 
+            throws WebSocketException {
+        try {
+            send(session, event, topic, createTextMessage(event, topic, contentWriter));
+        } catch (IOException ioe) {
+            log.warn(format("WebSocket sendMessageToClient exception: %s",ioe.getMessage()));
+        }
+    }
+
+    /**
+     * Sends a message with content written by the ContentWriter to all the subscribers. The content is only written
+     * once.
+     */
+    public void broadcast(List<Subscriber> subscribers, String event, String topic, ContentWriter contentWriter) 
+            throws WebSocketException {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        TextMessage textMessage = createTextMessage(event, topic, contentWriter);
+        for (Subscriber subscriber : subscribers) {
+            try {
+                send(subscriber.getSession(), event, topic, textMessage);
+            } catch (IOException ioe) {
+                log.warn(format("WebSocket broadcast exception for session %s: %s", subscriber.getSession().getId(), 
+                    ioe.getMessage()));
             }
+        }
+    }
+
+    /**
+     * Creates a message without sending it, so that it can be kept and sent to other sessions later.
+     */
+    public TextMessage createMessage(String event, String topic, ContentWriter contentWriter) throws WebSocketException {
+        return createTextMessage(event, topic, contentWriter);
+    }
+
+    /**
+     * Creates a message with JSON content without sending it, so that it can be kept and sent to other sessions later.
+     */
+    public TextMessage createMessage(String event, String topic, String content) throws WebSocketException {
+        return createTextMessage(event, topic, content, false, false);
+    }
+
+    /**
+     * Sends a message created by createMessage.
+     */
+    public void sendTextMessageToClient(WebSocketSession session, String event, String topic, TextMessage message) {
+        try {
+            send(session, event, topic, message);
         } catch (IOException ioe) {
             log.warn(format("WebSocket sendMessageToClient exception: %s",ioe.getMessage()));
         }
     }
 
+    private TextMessage createTextMessage(String event, String topic, ContentWriter contentWriter) throws WebSocketException {
+        StringWriter writer = new StringWriter();
+        try (JsonGenerator generator = generatorFactory.createGenerator(writer)) {
+            generator.writeStartObject();
+            generator.write("event", event);
+            generator.write("topic", topic);
+            generator.writeKey("content");
+            contentWriter.write(generator);
+            generator.writeEnd();
+        } catch (WebSocketException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new WebSocketException(e.getMessage(), e);
+        }
+        if (writer.getBuffer().length() > WebSocketConfig.WEB_SOCKET_MAX_MESSAGE_SIZE) {
+            throw new WebSocketException(format("Maximum WebSocket message length of %s exceeded. Length = %s", 
+                WebSocketConfig.WEB_SOCKET_MAX_MESSAGE_SIZE, writer.getBuffer().length()));
+        }
+        TextMessage textMessage = new TextMessage(writer.toString());
+        if (loggingLevel.equals("TRACE")) {
+            log.trace(LogUtils.truncate(textMessage.getPayload()));
+        }
+        return textMessage;
+    }
+
+    private TextMessage createTextMessage(String event, String topic, String content, boolean base64EncodeContent, 
+                                          boolean jsonc) throws WebSocketException {
+        JsonObjectBuilder jsonObjBuilder = Json.createObjectBuilder();
+        jsonObjBuilder.add("event", event);
+        jsonObjBuilder.add("topic", topic);
+        
+        if (base64EncodeContent) {
+            String contentEncoded = new String(Base64.getEncoder().encode(content.getBytes()));
+            JsonReader reader = Json.createReader(new StringReader("{\"base64\": \"" + contentEncoded + "\"}"));
+            JsonValue contentValue = reader.readValue();
+            jsonObjBuilder.add("content", contentValue);
+        } else {
+            if (content == null) {
+                content = "null";
+            }
+            if (jsonc) {
+                content = JsonUtils.stripComments(content);
+            } else {
+                content = content.stripLeading();
+            }
+            JsonReader reader = Json.createReader(new StringReader(content));
+            if (content.startsWith("{")) {
+                JsonObject contentObj = reader.readObject();
+                jsonObjBuilder.add("content", contentObj);
+            } else {
+                if (content.startsWith("[")) {
+                    JsonArray contentArray = reader.readArray();
+                    jsonObjBuilder.add("content", contentArray);
+                } else {
+                    if (content.length() != 0) {
+                        JsonValue contentValue = reader.readValue();
+                        jsonObjBuilder.add("content", contentValue);
+                    } else {
+                        jsonObjBuilder.add("content", "");
+                    }
+                }
+            } 
+        }
+        String response = jsonObjBuilder.build().toString();
+        if (response.length() > WebSocketConfig.WEB_SOCKET_MAX_MESSAGE_SIZE) {
+            throw new WebSocketException(format("Maximum WebSocket message length of %s exceeded. Length = %s", 
+                WebSocketConfig.WEB_SOCKET_MAX_MESSAGE_SIZE, response.length()));
+        }
+        return new TextMessage(response);
+    }
+
     /**
-     * Sends a binary message to the client. Currently uses a WebSockets text message and base 64 encoding. 
-     * In the future we could move to using a WebSockets binary message.
+     * Sends a binary message to the client. Clients that have asked for binary frames are sent a WebSockets binary 
+     * message (see BinaryFrame). Other clients are sent a WebSockets text message with the content base 64 encoded.
      * 
      * Note that converting a byte array to a string corrupts the data. So always keep the data in a byte array.
      * 
@@ -150,10 +318,16 @@ public class WebSocketService {
      * @param event Most of the time the event will be 'publish' or 'error'.
      * @param topic The topic.
      * @param binaryContent Binray content as a byte[].
+     * @param contentType The MIME type of the content, sent in the binary frame header.
      *      
      */
-    public void sendBinaryMessageToClient(WebSocketSession session, String event, String topic, byte[] binaryContent) throws WebSocketException {
+    public void sendBinaryMessageToClient(WebSocketSession session, String event, String topic, byte[] binaryContent, 
+                                          String contentType) throws WebSocketException {
         try {
+            if (isBinaryFrames(session)) {
+                sendBinaryFrame(session, event, topic, createBinaryFrame(event, topic, contentType, binaryContent));
+                return;
+            }
             JsonObjectBuilder jsonObjBuilder = Json.createObjectBuilder();
             jsonObjBuilder.add("event", event);
             jsonObjBuilder.add("topic", topic);
@@ -170,7 +344,7 @@ public class WebSocketService {
                 throw new WebSocketException(format("Maximum WebSocket message length of %s exceeded. Length = %s", 
                     WebSocketConfig.WEB_SOCKET_MAX_MESSAGE_SIZE, response.length()));
             }
-            session.sendMessage(new TextMessage(response));
+            send(session, event, topic, new TextMessage(response));
             if (loggingLevel.equals("TRACE")) {
                 log.trace(LogUtils.truncate(responseObj.toString()));
             }
@@ -179,6 +353,59 @@ public class WebSocketService {
         }
     }
 
+    public void sendBinaryMessageToClient(WebSocketSession session, String event, String topic, byte[] binaryContent) throws WebSocketException {
+        sendBinaryMessageToClient(session, event, topic, binaryContent, BinaryFrame.getContentType(topic));
+    }
+
+    private BinaryMessage createBinaryFrame(String event, String topic, String contentType, byte[] binaryContent) 
+            throws WebSocketException {
+        BinaryMessage frame = BinaryFrame.create(event, topic, contentType, binaryContent);
+        if (frame.getPayloadLength() > WebSocketConfig.WEB_SOCKET_MAX_MESSAGE_SIZE) {
+            throw new WebSocketException(format("Maximum WebSocket message length of %s exceeded. Length = %s", 
+                WebSocketConfig.WEB_SOCKET_MAX_MESSAGE_SIZE, frame.getPayloadLength()));
+        }
+        if (loggingLevel.equals("TRACE")) {
+            log.trace(format("Binary frame: event = %s, topic = %s, contentType = %s, length = %s", event, topic, 
+                contentType, binaryContent.length));
+        }
+        return frame;
+    }
+
+    /**
+     * Sends a binary frame. Sending a binary message moves the position of its ByteBuffer, so each session is 
+     * given its own view of the buffer. The bytes aren't copied.
+     */
+    private void sendBinaryFrame(WebSocketSession session, String event, String topic, BinaryMessage frame) throws IOException {
+        send(session, event, topic, new BinaryMessage(frame.getPayload().duplicate()));
+    }
+
+    /**
+     * Sends a message. A publish is sent along with its topic, so that when the client is slow the session's send 
+     * buffer can replace an earlier publish to the same topic that's still waiting to be sent.
+     */
+    private void send(WebSocketSession session, String event, String topic, WebSocketMessage<?> message) throws IOException {
+        if (session instanceof SendBufferDecorator && event.equals("publish")) {
+            ((SendBufferDecorator) session).sendMessage(topic, message);
+        } else {
+            session.sendMessage(message);
+        }
+    }
+
+    /**
+     * Records whether the client wants file and image content sent as WebSocket binary messages. Set when the client
+     * connects, as the client must be able to decode the binary frames.
+     * 
+     * @param session The WebSocket session.
+     * @param binaryFrames True for binary frames, false for base64 in text messages.
+     */
+    public void setBinaryFrames(WebSocketSession session, boolean binaryFrames) {
+        session.getAttributes().put(BINARY_FRAMES, binaryFrames);
+    }
+
+    public boolean isBinaryFrames(WebSocketSession session) {
+        return Boolean.TRUE.equals(session.getAttributes().get(BINARY_FRAMES));
+    }
+
     public void sendMessageToClient(WebSocketSession session, String event, String topic, String content, boolean base64EncodeContent) throws WebSocketException {
         sendMessageToClient(session, event, topic, content, base64EncodeContent, false);
     }
@@ -252,6 +479,7 @@ public class WebSocketService {
             subscriptions.put(topic, filterStr);
             map.put(SUBSCRIPTIONS, subscriptions);
         }
+        subscriptionIndex.add(session.getId(), topic, filter.toString());
         // Persist the session.
         serializeSession(session.getId(), map);
     }
@@ -260,6 +488,15 @@ public class WebSocketService {
         addSubscription(session, topic, JsonValue.EMPTY_JSON_OBJECT);
     }
 
+    /**
+     * @return The filter of the session's subscription to the topic, or null if the session isn't subscribed.
+     */
+    public String getSubscriptionFilter(WebSocketSession session, String topic) {
+        @SuppressWarnings("unchecked")
+        Map<String, String> subscriptions = (Map<String, String>) session.getAttributes().get(SUBSCRIPTIONS);
+        return subscriptions == null ? null : subscriptions.get(topic);
+    }
+
     public void removeSubscription(WebSocketSession session, String topic) {
         Map<String, Object> map = session.getAttributes();
         if (map.containsKey(SUBSCRIPTIONS)) {
@@ -267,6 +504,7 @@ public class WebSocketService {
             Map<String, String> subscriptions = (Map<String, String>) map.get(SUBSCRIPTIONS);
             subscriptions.remove(topic);
         } 
+        subscriptionIndex.remove(session.getId(), topic);
     }
     /**
      * Returns a list of sessions that are subscribed to a topic. Also includes the filter in
@@ -276,18 +514,55 @@ public class WebSocketService {
      * @return List of Subscibers. A Subscriber object incudes the WedSocket session and filter.
      */
     public List<Subscriber> getSubscribers(String topic) {
-        List<Subscriber> subscribers = new ArrayList<>();
+        return getSubscribers(topic, subscriptionIndex.getSubscriptions(topic));
+    }
+
+    /**
+     * Returns the subscribers to all the topics that start with the prefix, such as file:/MyApp/
+     * 
+     * @param prefix The start of the topics.
+     * @return Map of topic to the subscribers to the topic.
+     */
+    public Map<String, List<Subscriber>> getSubscribersStartingWith(String prefix) {
+        Map<String, List<Subscriber>> subscribersByTopic = new LinkedHashMap<String, List<Subscriber>>();
+        for (Map.Entry<String, Map<String, String>> entry : subscriptionIndex.getSubscriptionsStartingWith(prefix).entrySet()) {
+            List<Subscriber> subscribers = getSubscribers(entry.getKey(), entry.getValue());
+            if (subscribers.size() > 0) {
+                subscribersByTopic.put(entry.getKey(), subscribers);
+            }
+        }
+        return subscribersByTopic;
+    }
+
+    /**
+     * Returns the subscribers to the Topic Branches that the topic is below. For example, the subscribers to
+     * file:/ and file:/MyApp/ for a topic of file:/MyApp/Pages/home.json
+     * 
+     * @param topic The topic.
+     * @return Map of Topic Branch to the subscribers to the branch.
+     */
+    public Map<String, List<Subscriber>> getBranchSubscribers(String topic) {
+        Map<String, List<Subscriber>> subscribersByBranch = new LinkedHashMap<String, List<Subscriber>>();
+        for (String branch : subscriptionIndex.getBranchTopics(topic)) {
+            List<Subscriber> subscribers = getSubscribers(branch);
+            if (subscribers.size() > 0) {
+                subscribersByBranch.put(branch, subscribers);
+            }
+        }
+        return subscribersByBranch;
+    }
+
+    private List<Subscriber> getSubscribers(String topic, Map<String, String> subscriptions) {
+        List<Subscriber> subscribers = new ArrayList<>(subscriptions.size());
         Map<String,WebSocketSession> sessions = sessionManager.getActiveSessions();
-        for (Map.Entry<String, WebSocketSession> entry : sessions.entrySet()) {
-            WebSocketSession session = entry.getValue();
-            Map<String, Object> map = session.getAttributes();
-            if (map.containsKey(SUBSCRIPTIONS)) {
-                @SuppressWarnings("unchecked")
-                Map<String,String> subscriptions = (Map<String,String>) map.get(SUBSCRIPTIONS);
-                if (subscriptions.containsKey(topic)){
-                    String filter = subscriptions.get(topic);
-                    subscribers.add(new Subscriber(entry.getValue(), filter));
-                }
+        for (Map.Entry<String, String> entry : subscriptions.entrySet()) {
+            // Use the active session, which allows messages to be sent by more than one thread.
+            WebSocketSession session = sessions.get(entry.getKey());
+            if (session != null) {
+                subscribers.add(new Subscriber(session, entry.getValue()));
+            } else {
+                // The session closed while subscribing.
+                subscriptionIndex.remove(entry.getKey(), topic);
             }
         }
         return subscribers;
@@ -444,10 +719,20 @@ public class WebSocketService {
             throw new WebSocketException(format("Can't reconnect as username in previous session %s doesn't match username supplied.", prevSessionId));
         }
 
-        // Copy over all the attributes to the new session.
+        // Copy over all the attributes to the new session. Binary frames are negotiated by each connection.
         for (Map.Entry<String, Object> entry : prevSessAttribs.entrySet()) {
+            if (entry.getKey().equals(BINARY_FRAMES)) {
+                continue;
+            }
             currSessAttribs.put(entry.getKey(), entry.getValue());
         } 
+        if (currSessAttribs.containsKey(SUBSCRIPTIONS)) {
+            @SuppressWarnings("unchecked")
+            Map<String, String> subscriptions = (Map<String, String>) currSessAttribs.get(SUBSCRIPTIONS);
+            for (Map.Entry<String, String> subscription : subscriptions.entrySet()) {
+                subscriptionIndex.add(session.getId(), subscription.getKey(), subscription.getValue());
+            }
+        }
 
         deleteSerializedSession(prevSessionId);
         
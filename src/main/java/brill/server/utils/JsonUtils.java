@@ -3,6 +3,7 @@ package brill.server.utils;
 import java.io.StringReader;
 import java.util.Map;
 import javax.json.Json;
+import javax.json.JsonArray;
 import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
 import javax.json.JsonReader;
@@ -81,6 +82,13 @@ public class JsonUtils {
         return object;
     }
 
+    public static JsonArray jsonArrayFromString(String jsonArrayStr) {
+        JsonReader jsonReader = Json.createReader(new StringReader(jsonArrayStr));
+        JsonArray array = jsonReader.readArray();
+        jsonReader.close();
+        return array;
+    }
+
     /**
      * 
      * 
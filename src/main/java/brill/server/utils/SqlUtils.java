@@ -1,5 +1,10 @@
 package brill.server.utils;
 
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 public class SqlUtils {
 
     /**
@@ -65,5 +70,79 @@ public class SqlUtils {
             lastC = c;
         }
         return result.toString();
-    } 
-}
\ No newline at end of file
+    }
+
+    private static final String TABLE_AND_ALIAS = "[\\w.`\"]+(?:\\s+(?:as\\s+)?(?!(?:where|join|inner|left|right|cross|" +
+        "outer|full|natural|straight_join|on|using|group|order|limit|having|union|window|for|lock)\\b)\\w+)?";
+    private static final Pattern TABLES_READ = Pattern.compile(
+        "\\b(?:from|join)\\s+(" + TABLE_AND_ALIAS + "(?:\\s*,\\s*" + TABLE_AND_ALIAS + ")*)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern TABLES_WRITTEN = Pattern.compile(
+        "\\b(?:insert\\s+(?:ignore\\s+)?into|replace\\s+into|delete\\s+from|truncate(?:\\s+table)?|" +
+        "(?:alter|drop|create)\\s+table(?:\\s+if\\s+(?:not\\s+)?exists)?)\\s+([\\w.`\"]+)",
+        Pattern.CASE_INSENSITIVE);
+    // The table references between UPDATE and SET, which can be a list or a join. Not the UPDATE of an INSERT's
+    // ON DUPLICATE KEY UPDATE.
+    private static final Pattern TABLES_UPDATED = Pattern.compile(
+        "(?<!key\\s)\\bupdate\\s+(?:low_priority\\s+)?(?:ignore\\s+)?(.+?)\\s+set\\b",
+        Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern QUOTED_STRING = Pattern.compile("'(?:[^'\\\\]|\\\\.)*'");
+
+    /**
+     * Finds the tables a query reads from, looking for the table names after FROM and JOIN. This is a lightweight
+     * scan of the SQL rather than a full parse, so callers must treat an empty result as unknown.
+     * 
+     * @param sql The query.
+     * @return Lowercase table names without any schema or quotes.
+     */
+    public static Set<String> getTablesRead(String sql) {
+        Set<String> tables = new HashSet<String>();
+        addTablesRead(tables, stripForScan(sql));
+        return tables;
+    }
+
+    /**
+     * Finds the tables an INSERT, UPDATE, DELETE, REPLACE or DDL statement writes to. For a multiple table UPDATE, all
+     * the tables between UPDATE and SET are included, as any of them can be written.
+     * 
+     * @param sql The statement.
+     * @return Lowercase table names without any schema or quotes. Empty when no table name was found.
+     */
+    public static Set<String> getTablesWritten(String sql) {
+        Set<String> tables = new HashSet<String>();
+        String scanned = stripForScan(sql);
+        Matcher matcher = TABLES_WRITTEN.matcher(scanned);
+        while (matcher.find()) {
+            addTable(tables, matcher.group(1));
+        }
+        matcher = TABLES_UPDATED.matcher(scanned);
+        while (matcher.find()) {
+            // The table references of an UPDATE have the same form as those after FROM.
+            addTablesRead(tables, "from " + matcher.group(1));
+        }
+        return tables;
+    }
+
+    private static void addTablesRead(Set<String> tables, String scanned) {
+        Matcher matcher = TABLES_READ.matcher(scanned);
+        while (matcher.find()) {
+            for (String table : matcher.group(1).split(",")) {
+                addTable(tables, table.trim().split("\\s+")[0]);
+            }
+        }
+    }
+
+    private static String stripForScan(String sql) {
+        return QUOTED_STRING.matcher(stripComments(sql)).replaceAll("''");
+    }
+
+    private static void addTable(Set<String> tables, String name) {
+        name = name.replace("`", "").replace("\"", "");
+        int dot = name.lastIndexOf('.');
+        if (dot != -1) {
+            name = name.substring(dot + 1);
+        }
+        if (name.length() > 0) {
+            tables.add(name.toLowerCase());
+        }
+    }
+}
@@ -0,0 +1,121 @@
+// © 2021 Brill Software Limited - Brill Middleware, distributed under the MIT License.
+package brill.server.webSockets;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.json.JsonObject;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.WebSocketSession;
+import brill.server.database.QueryStats;
+import brill.server.service.WebSocketService;
+import brill.server.utils.NamedThreadFactory;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import static java.lang.String.format;
+
+/**
+ * Async Event Executor - runs the @Event methods that have asyncProcessing set to "yes".
+ *
+ * The methods run on a pool of named threads rather than a new thread per message. The number of methods running at
+ * once is limited for the server as a whole and for each session. Once the limits are reached, further requests are
+ * queued up to the queue capacity and then rejected with an error message sent to the client.
+ *
+ * The server is built for Java 17, so the pool uses platform threads. The thread factory is the place to switch to
+ * virtual threads once the server moves to Java 21.
+ *
+ */
+@Component
+public class AsyncEventExecutor {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(AsyncEventExecutor.class);
+
+    private final WebSocketService wsService;
+    private final int maxPerSession;
+    private final ThreadPoolExecutor executor;
+
+    // Number of queued or running tasks for each session. Sessions with no tasks are removed from the map.
+    private final Map<String, Integer> tasksPerSession = new ConcurrentHashMap<String, Integer>();
+
+    public AsyncEventExecutor(WebSocketService wsService, MeterRegistry meterRegistry,
+            @Value("${websocket.async.maxConcurrent:32}") int maxConcurrent,
+            @Value("${websocket.async.maxPerSession:4}") int maxPerSession,
+            @Value("${websocket.async.queueCapacity:100}") int queueCapacity) {
+        this.wsService = wsService;
+        this.maxPerSession = maxPerSession;
+        this.executor = new ThreadPoolExecutor(maxConcurrent, maxConcurrent, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(queueCapacity), new NamedThreadFactory("ws-async-"));
+        this.executor.allowCoreThreadTimeOut(true);
+
+        Gauge.builder("brill.websocket.async.queued", executor, e -> e.getQueue().size())
+            .description("Async @Event tasks waiting for a thread").register(meterRegistry);
+        Gauge.builder("brill.websocket.async.active", executor, ThreadPoolExecutor::getActiveCount)
+            .description("Async @Event tasks running").register(meterRegistry);
+        Gauge.builder("brill.websocket.async.sessions", tasksPerSession, Map::size)
+            .description("Sessions with async @Event tasks").register(meterRegistry);
+    }
+
+    /**
+     * Runs the @Event method on the pool. When the session or the server has too many tasks already, the client is
+     * sent an error instead.
+     *
+     * @param handler The @Event method.
+     * @param session The WebSocket session.
+     * @param topic The message topic.
+     * @param message The message.
+     */
+    public void execute(EventHandler handler, WebSocketSession session, String topic, JsonObject message) {
+        if (!acquire(session.getId())) {
+            reject(session, topic, format("You already have %s requests being processed. Please wait for them to complete.", maxPerSession));
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                QueryStats.setSource(topic);
+                try {
+                    handler.invoke(session, message);
+                } catch (Throwable e) {
+                    log.error(format("Async %s exception: %s", handler, e.getMessage()));
+                } finally {
+                    QueryStats.setSource(null);
+                    release(session.getId());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            release(session.getId());
+            reject(session, topic, "The server is busy. Please try again shortly.");
+        }
+    }
+
+    private boolean acquire(String sessionId) {
+        boolean[] acquired = {false};
+        tasksPerSession.compute(sessionId, (id, count) -> {
+            int tasks = count == null ? 0 : count;
+            if (tasks >= maxPerSession) {
+                return count;
+            }
+            acquired[0] = true;
+            return tasks + 1;
+        });
+        return acquired[0];
+    }
+
+    private void release(String sessionId) {
+        tasksPerSession.computeIfPresent(sessionId, (id, count) -> count <= 1 ? null : count - 1);
+    }
+
+    private void reject(WebSocketSession session, String topic, String detail) {
+        log.warn(format("Async request rejected for session %s topic %s. Active = %s, Queued = %s", session.getId(), topic,
+            executor.getActiveCount(), executor.getQueue().size()));
+        wsService.sendErrorToClient(session, topic, "Server Busy", detail, WebSocketService.WARNING_SEVERITY);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,158 @@
+// © 2021 Brill Software Limited - Brill Middleware, distributed under the MIT License.
+package brill.server.webSockets;
+
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.regex.Pattern;
+import javax.json.JsonObject;
+import org.springframework.web.socket.WebSocketSession;
+import brill.server.webSockets.annotations.*;
+import static java.lang.String.format;
+
+/**
+ * Event Handler - a single @Event method of a @WebSocketController, prepared once at startup.
+ *
+ * The topicMatches regular expression is compiled to a Pattern, the method is converted to a MethodHandle bound to
+ * the controller and each parameter has a binder that supplies either the session or the message. Invoking the
+ * handler doesn't require any further reflection.
+ *
+ */
+public class EventHandler {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(EventHandler.class);
+
+    /**
+     * Supplies the value of one method parameter.
+     */
+    @FunctionalInterface
+    interface ParamBinder {
+        Object bind(WebSocketSession session, JsonObject message);
+    }
+
+    private static final ParamBinder SESSION_BINDER = (session, message) -> session;
+    private static final ParamBinder MESSAGE_BINDER = (session, message) -> message;
+    private static final ParamBinder NULL_BINDER = (session, message) -> null;
+
+    private final Object controller;
+    private final Method method;
+    private final String event;
+    private final String topicMatches;
+    private final Pattern topicPattern;
+    private final String permission;
+    private final boolean asyncProcessing;
+    private final MethodHandle handle;
+    private final ParamBinder[] binders;
+
+    EventHandler(Object controller, Method method, Event eventAnnotation) throws IllegalAccessException {
+        this.controller = controller;
+        this.method = method;
+        this.event = eventAnnotation.value();
+        this.topicMatches = eventAnnotation.topicMatches();
+        this.topicPattern = topicMatches.length() == 0 ? null : Pattern.compile(topicMatches);
+        this.permission = eventAnnotation.permission();
+        String async = eventAnnotation.asyncProcessing();
+        this.asyncProcessing = async.equalsIgnoreCase("yes") || async.equalsIgnoreCase("true");
+        this.binders = createBinders(method);
+
+        method.setAccessible(true);
+        MethodHandle mh = MethodHandles.lookup().unreflect(method).bindTo(controller);
+        this.handle = mh.asSpreader(Object[].class, binders.length)
+            .asType(MethodType.methodType(void.class, Object[].class));
+    }
+
+    /**
+     * Checks whether the topic matches. As before, an empty topic or an empty topicMatches matches everything.
+     *
+     * @param topic The message topic.
+     * @return true when the handler should be called for the topic.
+     */
+    public boolean matches(String topic) {
+        return topic.length() == 0 || topicPattern == null || topicPattern.matcher(topic).matches();
+    }
+
+    /**
+     * Calls the method. Any exception thrown by the method is passed straight back to the caller.
+     *
+     * @param session The WebSocket session.
+     * @param message The message.
+     * @throws Throwable Exception thrown by the @Event method.
+     */
+    public void invoke(WebSocketSession session, JsonObject message) throws Throwable {
+        Object[] args = new Object[binders.length];
+        for (int i = 0; i < binders.length; i++) {
+            args[i] = binders[i].bind(session, message);
+        }
+        handle.invokeExact(args);
+    }
+
+    public Object getController() {
+        return controller;
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    public String getEvent() {
+        return event;
+    }
+
+    public String getTopicMatches() {
+        return topicMatches;
+    }
+
+    public String getPermission() {
+        return permission;
+    }
+
+    public boolean isAsyncProcessing() {
+        return asyncProcessing;
+    }
+
+    @Override
+    public String toString() {
+        return format("%s.%s(event=%s, topicMatches=%s)", method.getDeclaringClass().getSimpleName(), method.getName(),
+            event, topicMatches);
+    }
+
+    /**
+     * Creates a binder for each parameter. Parameters must be annotated with @Session or @Message.
+     *
+     * @param method The @Event method.
+     * @return Array of binders, one per parameter.
+     */
+    private static ParamBinder[] createBinders(Method method) {
+        Class<?>[] parameterTypes = method.getParameterTypes();
+        Annotation[][] annotations = method.getParameterAnnotations();
+        ParamBinder[] binders = new ParamBinder[parameterTypes.length];
+        for (int paramNum = 0; paramNum < parameterTypes.length; paramNum++) {
+            binders[paramNum] = NULL_BINDER;
+            for (Annotation annotation : annotations[paramNum]) {
+                if (annotation instanceof Session) {
+                    if (!WebSocketSession.class.isAssignableFrom(parameterTypes[paramNum])) {
+                        log.warn(format("Annotation @Session parameter is expected to be of type WebSocketSession for method %s",
+                            method.getName()));
+                    }
+                    binders[paramNum] = SESSION_BINDER;
+                } else
+                if (annotation instanceof Message) {
+                    if (!parameterTypes[paramNum].isAssignableFrom(JsonObject.class)) {
+                        log.warn(format("Annotation @Message parameter is expected to be of type JsonObject for method %s",
+                            method.getName()));
+                    }
+                    binders[paramNum] = MESSAGE_BINDER;
+                } else {
+                    log.error(format("@WebSocketController: Unexpected parameter annotation @%s. Method: %s",
+                        annotation.annotationType().getName(), method.getName()));
+                }
+            }
+            if (annotations[paramNum].length == 0) {
+                log.error(format("@WebSocketController: Parameter %s of method %s has no @Session or @Message annotation.",
+                    paramNum, method.getName()));
+            }
+        }
+        return binders;
+    }
+}
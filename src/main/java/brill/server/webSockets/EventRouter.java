@@ -0,0 +1,132 @@
+// © 2021 Brill Software Limited - Brill Middleware, distributed under the MIT License.
+package brill.server.webSockets;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.springframework.util.ClassUtils;
+import brill.server.webSockets.annotations.Event;
+import static java.lang.String.format;
+
+/**
+ * Event Router - routing table for the @Event methods of the @WebSocketController classes.
+ *
+ * The table is built once at startup. Handlers are grouped by event name and within each event indexed by the literal
+ * prefix of their topicMatches in a TopicTrie, so a received message only has its topic checked against the few
+ * handlers that could match.
+ *
+ * Handlers that are duplicates or that can match the same topic are reported at startup, rather than only showing up
+ * at runtime when a message matches more than one @Event method.
+ *
+ */
+public class EventRouter {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(EventRouter.class);
+
+    // Topic endings used to probe whether two handlers with overlapping prefixes can match the same topic.
+    private static final String[] PROBE_SUFFIXES = {"", "a", "a/", "a/b", "a.b/", "a/b.json", "a/b.jsonc", "a/b.js",
+        "a/b.sql", "a/b.png", "a/b.txt", "a/server_public_key", "a/authenticate"};
+
+    private final Map<String, TopicTrie> triesByEvent = new HashMap<String, TopicTrie>();
+    private final List<String> conflicts = new ArrayList<String>();
+    private int handlerCount = 0;
+
+    public EventRouter(List<Object> webSocketControllers) {
+        for (Object wsController : webSocketControllers) {
+            Class<?> clazz = ClassUtils.getUserClass(wsController);
+            for (Method method : clazz.getDeclaredMethods()) {
+                if (method.isAnnotationPresent(Event.class)) {
+                    addHandler(wsController, method, method.getAnnotation(Event.class));
+                }
+            }
+        }
+        findConflicts();
+        log.debug(format("Event router created with %s @Event methods for %s events.", handlerCount, triesByEvent.size()));
+    }
+
+    private void addHandler(Object wsController, Method method, Event eventAnnotation) {
+        try {
+            EventHandler handler = new EventHandler(wsController, method, eventAnnotation);
+            triesByEvent.computeIfAbsent(handler.getEvent(), k -> new TopicTrie()).add(handler);
+            handlerCount++;
+        } catch (IllegalAccessException | RuntimeException e) {
+            log.error(format("@WebSocketController: Unable to register @Event method %s.%s : %s",
+                method.getDeclaringClass().getSimpleName(), method.getName(), e.getMessage()));
+        }
+    }
+
+    /**
+     * Finds the handlers that match the event and topic. Normally there's exactly one.
+     *
+     * @param event The message event.
+     * @param topic The message topic.
+     * @return List of matching handlers, which is empty when there's no match.
+     */
+    public List<EventHandler> route(String event, String topic) {
+        TopicTrie trie = triesByEvent.get(event);
+        if (trie == null) {
+            return Collections.emptyList();
+        }
+        List<EventHandler> matches = new ArrayList<EventHandler>(1);
+        trie.findMatches(topic, matches);
+        return matches;
+    }
+
+    public int getHandlerCount() {
+        return handlerCount;
+    }
+
+    /**
+     * @return Descriptions of the duplicate or overlapping @Event methods found at startup.
+     */
+    public List<String> getConflicts() {
+        return conflicts;
+    }
+
+    /**
+     * Checks each pair of handlers for the same event. Handlers with the same topicMatches are duplicates. Handlers
+     * whose literal prefixes overlap are probed with sample topics built from the prefixes, to find topics that
+     * both handlers would match.
+     */
+    private void findConflicts() {
+        for (TopicTrie trie : triesByEvent.values()) {
+            List<EventHandler> handlers = trie.getAllHandlers();
+            for (int i = 0; i < handlers.size(); i++) {
+                for (int j = i + 1; j < handlers.size(); j++) {
+                    EventHandler a = handlers.get(i);
+                    EventHandler b = handlers.get(j);
+                    if (a.getTopicMatches().equals(b.getTopicMatches())) {
+                        String conflict = format("Duplicate @Event methods %s and %s", a, b);
+                        log.error(conflict);
+                        conflicts.add(conflict);
+                        continue;
+                    }
+                    String topic = findTopicMatchedByBoth(a, b);
+                    if (topic != null) {
+                        String conflict = format("@Event methods %s and %s both match topic %s", a, b, topic);
+                        log.warn(conflict);
+                        conflicts.add(conflict);
+                    }
+                }
+            }
+        }
+    }
+
+    private String findTopicMatchedByBoth(EventHandler a, EventHandler b) {
+        String prefixA = TopicTrie.literalPrefix(a.getTopicMatches());
+        String prefixB = TopicTrie.literalPrefix(b.getTopicMatches());
+        if (!prefixA.startsWith(prefixB) && !prefixB.startsWith(prefixA)) {
+            return null;
+        }
+        String longestPrefix = prefixA.length() > prefixB.length() ? prefixA : prefixB;
+        for (String suffix : PROBE_SUFFIXES) {
+            String topic = longestPrefix + suffix;
+            if (topic.length() > 0 && a.matches(topic) && b.matches(topic)) {
+                return topic;
+            }
+        }
+        return null;
+    }
+}
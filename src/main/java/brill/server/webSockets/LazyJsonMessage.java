@@ -0,0 +1,389 @@
+// © 2021 Brill Software Limited - Brill Middleware, distributed under the MIT License.
+package brill.server.webSockets;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonBuilderFactory;
+import javax.json.JsonException;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonReaderFactory;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonGeneratorFactory;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParserFactory;
+import static java.lang.String.format;
+
+/**
+ * Lazy JSON Message - a received WebSocket message where only the event and topic have been read.
+ *
+ * The message is scanned with a streaming parser until the "event" and "topic" fields are found. Other values that
+ * come before them, such as the content of a publish, are skipped over without building a JsonObject tree. This is
+ * enough to route the message and check permissions. The full JsonObject is only built the first time a handler asks
+ * for something other than the event or topic, so a subscribe or unsubscribe is never parsed in full and a publish
+ * that's rejected isn't parsed at all.
+ *
+ * A publish handler can read the content with getContentFields() or getContentJson() instead, which stream the
+ * content rather than building the JsonObject of the message. For an upload, only the base64 string is built. The
+ * string itself still has to be held in memory, as the JSON-P parser has no way of reading a value in parts.
+ *
+ * The factories are created once. Json.createReader() and Json.createParser() look up the JSON provider on every call.
+ *
+ */
+public class LazyJsonMessage extends AbstractMap<String, JsonValue> implements JsonObject {
+
+    private static final JsonParserFactory parserFactory = Json.createParserFactory(null);
+    private static final JsonReaderFactory readerFactory = Json.createReaderFactory(null);
+    private static final JsonBuilderFactory builderFactory = Json.createBuilderFactory(null);
+    private static final JsonGeneratorFactory generatorFactory = Json.createGeneratorFactory(null);
+
+    private final String payload;
+    private final String event;
+    private final String topic;
+    private JsonObject message = null;
+
+    private LazyJsonMessage(String payload, String event, String topic) {
+        this.payload = payload;
+        this.event = event;
+        this.topic = topic;
+    }
+
+    /**
+     * Reads the event and topic from the message.
+     *
+     * @param payload The text of the WebSocket message.
+     * @return The message, with the event and topic set to null when they're not in the message.
+     * @throws JsonException When the message isn't a JSON object or the event or topic aren't strings.
+     */
+    public static LazyJsonMessage parse(String payload) throws JsonException {
+        String event = null;
+        String topic = null;
+        try (JsonParser parser = parserFactory.createParser(new StringReader(payload))) {
+            if (!parser.hasNext() || parser.next() != JsonParser.Event.START_OBJECT) {
+                throw new JsonException("WebSocket message is not a JSON object.");
+            }
+            while (event == null || topic == null) {
+                if (!parser.hasNext()) {
+                    throw new JsonException("WebSocket message is not a complete JSON object.");
+                }
+                JsonParser.Event parserEvent = parser.next();
+                if (parserEvent == JsonParser.Event.END_OBJECT) {
+                    break;
+                }
+                String key = parser.getString();
+                parserEvent = parser.next();
+                if (key.equals("event") || key.equals("topic")) {
+                    if (parserEvent != JsonParser.Event.VALUE_STRING) {
+                        throw new JsonException(format("WebSocket message %s is not a string.", key));
+                    }
+                    if (key.equals("event")) {
+                        event = parser.getString();
+                    } else {
+                        topic = parser.getString();
+                    }
+                } else if (parserEvent == JsonParser.Event.START_OBJECT) {
+                    parser.skipObject();
+                } else if (parserEvent == JsonParser.Event.START_ARRAY) {
+                    parser.skipArray();
+                }
+            }
+        }
+        return new LazyJsonMessage(payload, event, topic);
+    }
+
+    /**
+     * @return The event, or an empty string when the message doesn't have one.
+     */
+    public String getEvent() {
+        return event == null ? "" : event;
+    }
+
+    /**
+     * @return The topic, or an empty string when the message doesn't have one.
+     */
+    public String getTopic() {
+        return topic == null ? "" : topic;
+    }
+
+    /**
+     * @return True once the full JsonObject has been built.
+     */
+    public boolean isParsed() {
+        return message != null;
+    }
+
+    /**
+     * Gets fields of the content object, such as the base64 of a file being published. When the message hasn't been
+     * parsed in full, the content is streamed and only the values of the fields asked for are built.
+     *
+     * @param message The message, which doesn't have to be a LazyJsonMessage.
+     * @param names The names of the fields.
+     * @return Object with the fields that were found, or null when the content isn't an object.
+     * @throws JsonException When the message isn't valid JSON.
+     */
+    public static JsonObject getContentFields(JsonObject message, String... names) throws JsonException {
+        if (message instanceof LazyJsonMessage && !((LazyJsonMessage) message).isParsed()) {
+            return ((LazyJsonMessage) message).readContentFields(Arrays.asList(names));
+        }
+        JsonValue content = message.get("content");
+        if (content == null || content.getValueType() != ValueType.OBJECT) {
+            return null;
+        }
+        JsonObjectBuilder builder = builderFactory.createObjectBuilder();
+        for (String name : names) {
+            JsonValue value = content.asJsonObject().get(name);
+            if (value != null) {
+                builder.add(name, value);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Gets the content as JSON text, the same as message.get("content").toString(). When the message hasn't been
+     * parsed in full, the content is copied from a streaming parser to a generator without building a JsonValue tree.
+     *
+     * @param message The message, which doesn't have to be a LazyJsonMessage.
+     * @return The JSON text, or null when the message doesn't have any content.
+     * @throws JsonException When the message isn't valid JSON.
+     */
+    public static String getContentJson(JsonObject message) throws JsonException {
+        if (message instanceof LazyJsonMessage && !((LazyJsonMessage) message).isParsed()) {
+            return ((LazyJsonMessage) message).readContentJson();
+        }
+        JsonValue content = message.get("content");
+        return content == null ? null : content.toString();
+    }
+
+    private JsonObject readContentFields(List<String> names) {
+        try (JsonParser parser = createContentParser()) {
+            if (parser == null || parser.next() != JsonParser.Event.START_OBJECT) {
+                return null;
+            }
+            JsonObjectBuilder builder = builderFactory.createObjectBuilder();
+            while (parser.next() != JsonParser.Event.END_OBJECT) {
+                String key = parser.getString();
+                if (names.contains(key)) {
+                    parser.next();
+                    builder.add(key, parser.getValue());
+                } else {
+                    skipValue(parser);
+                }
+            }
+            skipRest(parser);
+            return builder.build();
+        }
+    }
+
+    private String readContentJson() {
+        try (JsonParser parser = createContentParser()) {
+            if (parser == null) {
+                return null;
+            }
+            JsonParser.Event parserEvent = parser.next();
+            if (parserEvent != JsonParser.Event.START_OBJECT && parserEvent != JsonParser.Event.START_ARRAY) {
+                String json = parser.getValue().toString();
+                skipRest(parser);
+                return json;
+            }
+            StringWriter writer = new StringWriter();
+            try (JsonGenerator generator = generatorFactory.createGenerator(writer)) {
+                int depth = 0;
+                do {
+                    switch (parserEvent) {
+                        case START_OBJECT:
+                            generator.writeStartObject();
+                            depth++;
+                            break;
+                        case START_ARRAY:
+                            generator.writeStartArray();
+                            depth++;
+                            break;
+                        case END_OBJECT:
+                        case END_ARRAY:
+                            generator.writeEnd();
+                            depth--;
+                            break;
+                        case KEY_NAME:
+                            generator.writeKey(parser.getString());
+                            break;
+                        default:
+                            generator.write(parser.getValue());
+                    }
+                    parserEvent = depth > 0 ? parser.next() : null;
+                } while (depth > 0);
+            }
+            skipRest(parser);
+            return writer.toString();
+        }
+    }
+
+    /**
+     * @return A parser positioned at the value of the content field, or null when there's no content field.
+     */
+    private JsonParser createContentParser() {
+        JsonParser parser = parserFactory.createParser(new StringReader(payload));
+        try {
+            parser.next(); // The start of the object, checked by parse().
+            while (parser.hasNext() && parser.next() != JsonParser.Event.END_OBJECT) {
+                if (parser.getString().equals("content")) {
+                    return parser;
+                }
+                skipValue(parser);
+            }
+        } catch (RuntimeException e) {
+            parser.close();
+            throw e;
+        }
+        parser.close();
+        return null;
+    }
+
+    private static void skipValue(JsonParser parser) {
+        JsonParser.Event parserEvent = parser.next();
+        if (parserEvent == JsonParser.Event.START_OBJECT) {
+            parser.skipObject();
+        } else if (parserEvent == JsonParser.Event.START_ARRAY) {
+            parser.skipArray();
+        }
+    }
+
+    /**
+     * Reads the fields after the content, so that a message that isn't complete is rejected as it is by a full parse.
+     */
+    private static void skipRest(JsonParser parser) {
+        while (true) {
+            if (!parser.hasNext()) {
+                throw new JsonException("WebSocket message is not a complete JSON object.");
+            }
+            if (parser.next() == JsonParser.Event.END_OBJECT) {
+                return;
+            }
+            skipValue(parser);
+        }
+    }
+
+    private JsonObject message() {
+        if (message == null) {
+            message = readerFactory.createReader(new StringReader(payload)).readObject();
+        }
+        return message;
+    }
+
+    @Override
+    public String getString(String name) {
+        if (message == null) {
+            if (name.equals("topic") && topic != null) {
+                return topic;
+            }
+            if (name.equals("event") && event != null) {
+                return event;
+            }
+        }
+        return message().getString(name);
+    }
+
+    @Override
+    public String getString(String name, String defaultValue) {
+        return message().getString(name, defaultValue);
+    }
+
+    @Override
+    public JsonArray getJsonArray(String name) {
+        return message().getJsonArray(name);
+    }
+
+    @Override
+    public JsonObject getJsonObject(String name) {
+        return message().getJsonObject(name);
+    }
+
+    @Override
+    public JsonNumber getJsonNumber(String name) {
+        return message().getJsonNumber(name);
+    }
+
+    @Override
+    public JsonString getJsonString(String name) {
+        return message().getJsonString(name);
+    }
+
+    @Override
+    public int getInt(String name) {
+        return message().getInt(name);
+    }
+
+    @Override
+    public int getInt(String name, int defaultValue) {
+        return message().getInt(name, defaultValue);
+    }
+
+    @Override
+    public boolean getBoolean(String name) {
+        return message().getBoolean(name);
+    }
+
+    @Override
+    public boolean getBoolean(String name, boolean defaultValue) {
+        return message().getBoolean(name, defaultValue);
+    }
+
+    @Override
+    public boolean isNull(String name) {
+        return message().isNull(name);
+    }
+
+    @Override
+    public ValueType getValueType() {
+        return ValueType.OBJECT;
+    }
+
+    @Override
+    public JsonValue get(Object key) {
+        return message().get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        if (message == null && (("topic".equals(key) && topic != null) || ("event".equals(key) && event != null))) {
+            return true;
+        }
+        return message().containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return message().size();
+    }
+
+    @Override
+    public Set<String> keySet() {
+        return message().keySet();
+    }
+
+    @Override
+    public Collection<JsonValue> values() {
+        return message().values();
+    }
+
+    @Override
+    public Set<Map.Entry<String, JsonValue>> entrySet() {
+        return message().entrySet();
+    }
+
+    @Override
+    public String toString() {
+        return message().toString();
+    }
+}
@@ -0,0 +1,271 @@
+// © 2021 Brill Software Limited - Brill Middleware, distributed under the MIT License.
+package brill.server.webSockets;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.WebSocketSessionDecorator;
+import static java.lang.String.format;
+
+/**
+ * Send Buffer Decorator - allows more than one thread to send messages to a session, with a policy for what happens
+ * when the client can't keep up.
+ *
+ * Works in the same way as Spring's ConcurrentWebSocketSessionDecorator. Messages are added to a buffer and sent by
+ * whichever thread holds the flush lock, so a thread sending to a slow client doesn't have to wait. When a send takes
+ * longer than the send time limit the session is closed. When the buffer is over the size limit, the overflow policy
+ * decides what happens:
+ *
+ *   TERMINATE   - the session is closed. The client reconnects and restores the session.
+ *   DROP_OLDEST - the oldest publishes are removed from the buffer until it's under the limit. Messages without a
+ *                 topic, such as errors, responses and pages, are never dropped. If the buffer is still over the
+ *                 limit, the session is closed.
+ *   COALESCE    - a publish replaces any publish to the same topic still in the buffer, so only the latest content
+ *                 of a topic is sent. If the buffer is still over the limit, the session is closed.
+ *
+ * Unlike ConcurrentWebSocketSessionDecorator, the session is closed here rather than by throwing an exception, so
+ * one slow client doesn't cause a broadcast to the other subscribers to fail.
+ *
+ */
+public class SendBufferDecorator extends WebSocketSessionDecorator {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(SendBufferDecorator.class);
+
+    public enum OverflowPolicy { TERMINATE, DROP_OLDEST, COALESCE }
+
+    private static class BufferedMessage {
+        private final String topic;
+        private final WebSocketMessage<?> message;
+
+        BufferedMessage(String topic, WebSocketMessage<?> message) {
+            this.topic = topic;
+            this.message = message;
+        }
+    }
+
+    private final int sendTimeLimit;
+    private final int bufferSizeLimit;
+    private final OverflowPolicy overflowPolicy;
+    private final SendBufferMonitor monitor;
+
+    private final Deque<BufferedMessage> buffer = new ArrayDeque<BufferedMessage>();
+    private final AtomicLong bufferSize = new AtomicLong();
+    private final Lock flushLock = new ReentrantLock();
+    private final Lock closeLock = new ReentrantLock();
+
+    private volatile long sendStartTime;
+    private volatile long maxBufferSize;
+    private volatile boolean limitExceeded;
+    private volatile boolean closeInProgress;
+
+    public SendBufferDecorator(WebSocketSession delegate, int sendTimeLimit, int bufferSizeLimit,
+            OverflowPolicy overflowPolicy, SendBufferMonitor monitor) {
+        super(delegate);
+        this.sendTimeLimit = sendTimeLimit;
+        this.bufferSizeLimit = bufferSizeLimit;
+        this.overflowPolicy = overflowPolicy;
+        this.monitor = monitor;
+    }
+
+    @Override
+    public void sendMessage(WebSocketMessage<?> message) throws IOException {
+        sendMessage(null, message);
+    }
+
+    /**
+     * Sends a message. With the COALESCE policy, a message with a topic replaces any message for the same topic that's
+     * waiting to be sent.
+     *
+     * @param topic The topic of a publish, or null for messages that must always be sent, such as errors.
+     * @param message The message.
+     * @throws IOException Sending failed.
+     */
+    public void sendMessage(String topic, WebSocketMessage<?> message) throws IOException {
+        if (shouldNotSend()) {
+            return;
+        }
+        synchronized (buffer) {
+            if (overflowPolicy == OverflowPolicy.COALESCE && topic != null) {
+                removeBufferedTopic(topic);
+            }
+            buffer.addLast(new BufferedMessage(topic, message));
+            long size = bufferSize.addAndGet(message.getPayloadLength());
+            if (size > maxBufferSize) {
+                maxBufferSize = size;
+            }
+        }
+        do {
+            if (!tryFlushMessageBuffer()) {
+                checkSessionLimits();
+                break;
+            }
+        } while (!isBufferEmpty() && !shouldNotSend());
+    }
+
+    private void removeBufferedTopic(String topic) {
+        Iterator<BufferedMessage> it = buffer.iterator();
+        while (it.hasNext()) {
+            BufferedMessage buffered = it.next();
+            if (topic.equals(buffered.topic)) {
+                it.remove();
+                bufferSize.addAndGet(-buffered.message.getPayloadLength());
+                if (monitor != null) {
+                    monitor.messageCoalesced();
+                }
+                return;
+            }
+        }
+    }
+
+    private BufferedMessage pollBuffer() {
+        synchronized (buffer) {
+            BufferedMessage buffered = buffer.pollFirst();
+            if (buffered != null) {
+                bufferSize.addAndGet(-buffered.message.getPayloadLength());
+            }
+            return buffered;
+        }
+    }
+
+    private boolean isBufferEmpty() {
+        synchronized (buffer) {
+            return buffer.isEmpty();
+        }
+    }
+
+    private boolean tryFlushMessageBuffer() throws IOException {
+        if (flushLock.tryLock()) {
+            try {
+                while (!shouldNotSend()) {
+                    BufferedMessage buffered = pollBuffer();
+                    if (buffered == null) {
+                        break;
+                    }
+                    sendStartTime = System.currentTimeMillis();
+                    getDelegate().sendMessage(buffered.message);
+                    sendStartTime = 0;
+                }
+            } finally {
+                sendStartTime = 0;
+                flushLock.unlock();
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private void checkSessionLimits() {
+        if (shouldNotSend() || !closeLock.tryLock()) {
+            return;
+        }
+        try {
+            if (getTimeSinceSendStarted() > sendTimeLimit) {
+                limitExceeded(format("Send time of %s ms exceeded the limit of %s ms", getTimeSinceSendStarted(), sendTimeLimit));
+            } else if (getBufferSize() > bufferSizeLimit) {
+                if (overflowPolicy != OverflowPolicy.DROP_OLDEST || !dropOldest()) {
+                    limitExceeded(format("Buffer size of %s bytes exceeded the limit of %s bytes", getBufferSize(), bufferSizeLimit));
+                }
+            }
+        } finally {
+            closeLock.unlock();
+        }
+    }
+
+    /**
+     * Removes the oldest publishes until the buffer is under the limit. Messages without a topic are kept.
+     *
+     * @return True if the buffer is now under the limit.
+     */
+    private boolean dropOldest() {
+        int dropped = 0;
+        synchronized (buffer) {
+            Iterator<BufferedMessage> it = buffer.iterator();
+            while (getBufferSize() > bufferSizeLimit && it.hasNext()) {
+                BufferedMessage buffered = it.next();
+                if (buffered.topic != null) {
+                    it.remove();
+                    bufferSize.addAndGet(-buffered.message.getPayloadLength());
+                    dropped++;
+                }
+            }
+        }
+        log.debug(format("Dropped %s messages for slow session %s. Buffer size is now %s bytes.", dropped, getId(), getBufferSize()));
+        if (monitor != null && dropped > 0) {
+            monitor.messagesDropped(dropped);
+        }
+        return getBufferSize() <= bufferSizeLimit;
+    }
+
+    private void limitExceeded(String reason) {
+        limitExceeded = true;
+        log.warn(format("Closing slow session %s (%s). %s", getId(), getRemoteAddress(), reason));
+        synchronized (buffer) {
+            buffer.clear();
+            bufferSize.set(0);
+        }
+        if (monitor != null) {
+            monitor.sessionTerminated();
+        }
+        try {
+            getDelegate().close(CloseStatus.SESSION_NOT_RELIABLE);
+        } catch (Exception e) {
+            log.debug(format("Exception while closing slow session %s : %s", getId(), e.getMessage()));
+        }
+    }
+
+    private boolean shouldNotSend() {
+        return limitExceeded || closeInProgress;
+    }
+
+    public long getBufferSize() {
+        return bufferSize.get();
+    }
+
+    public long getMaxBufferSize() {
+        return maxBufferSize;
+    }
+
+    public int getBufferedMessageCount() {
+        synchronized (buffer) {
+            return buffer.size();
+        }
+    }
+
+    /**
+     * @return How long the current send has been running in ms, or 0 when nothing is being sent.
+     */
+    public long getTimeSinceSendStarted() {
+        long start = sendStartTime;
+        return start > 0 ? System.currentTimeMillis() - start : 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        close(CloseStatus.NORMAL);
+    }
+
+    @Override
+    public void close(CloseStatus status) throws IOException {
+        closeLock.lock();
+        try {
+            if (closeInProgress) {
+                return;
+            }
+            closeInProgress = true;
+            super.close(status);
+        } finally {
+            closeLock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getDelegate().toString();
+    }
+}
@@ -0,0 +1,172 @@
+// © 2021 Brill Software Limited - Brill Middleware, distributed under the MIT License.
+package brill.server.webSockets;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.WebSocketSession;
+import brill.server.config.WebSocketConfig;
+import brill.server.utils.NamedThreadFactory;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import static java.lang.String.format;
+
+/**
+ * Send Buffer Monitor - wraps each new session in a SendBufferDecorator and keeps an eye on the slow clients.
+ *
+ * The overflow policy is set by websocket.sendBuffer.overflow, which can be terminate, drop or coalesce. The limits
+ * default to the WebSocketConfig send time limit and maximum message size.
+ *
+ * The bytes waiting to be sent are available as metrics. Every websocket.sendBuffer.reportIntervalSeconds the
+ * sessions that are furthest behind are logged, so a client on a poor mobile connection can be spotted before it
+ * holds up the server.
+ *
+ */
+@Component
+public class SendBufferMonitor {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(SendBufferMonitor.class);
+
+    private final WebSocketSessionManager sessionManager;
+    private final SendBufferDecorator.OverflowPolicy overflowPolicy;
+    private final int sendTimeLimit;
+    private final int bufferSizeLimit;
+    private final int reportCount;
+    private final ScheduledExecutorService reporter;
+
+    private final Counter droppedCounter;
+    private final Counter coalescedCounter;
+    private final Counter terminatedCounter;
+
+    public SendBufferMonitor(WebSocketSessionManager sessionManager, MeterRegistry meterRegistry,
+            @Value("${websocket.sendBuffer.overflow:terminate}") String overflow,
+            @Value("${websocket.sendBuffer.sendTimeLimitMs:0}") int sendTimeLimit,
+            @Value("${websocket.sendBuffer.limitBytes:0}") int bufferSizeLimit,
+            @Value("${websocket.sendBuffer.reportIntervalSeconds:60}") int reportIntervalSeconds,
+            @Value("${websocket.sendBuffer.reportCount:5}") int reportCount) {
+        this.sessionManager = sessionManager;
+        this.overflowPolicy = getOverflowPolicy(overflow);
+        // Zero means use the WebSocketConfig value.
+        this.sendTimeLimit = sendTimeLimit > 0 ? sendTimeLimit : WebSocketConfig.WEB_SOCKET_SNED_TIMEOUT_MS;
+        this.bufferSizeLimit = bufferSizeLimit > 0 ? bufferSizeLimit : WebSocketConfig.WEB_SOCKET_MAX_MESSAGE_SIZE;
+        this.reportCount = reportCount;
+
+        droppedCounter = Counter.builder("brill.websocket.send.dropped")
+            .description("Messages dropped for slow sessions").register(meterRegistry);
+        coalescedCounter = Counter.builder("brill.websocket.send.coalesced")
+            .description("Messages replaced by a later message for the same topic").register(meterRegistry);
+        terminatedCounter = Counter.builder("brill.websocket.send.terminated")
+            .description("Sessions closed for exceeding the send limits").register(meterRegistry);
+        Gauge.builder("brill.websocket.send.buffered", this, m -> m.getBufferedBytes(false))
+            .description("Bytes waiting to be sent to all sessions").baseUnit("bytes").register(meterRegistry);
+        Gauge.builder("brill.websocket.send.buffered.max", this, m -> m.getBufferedBytes(true))
+            .description("Bytes waiting to be sent to the session furthest behind").baseUnit("bytes").register(meterRegistry);
+
+        if (reportIntervalSeconds > 0) {
+            reporter = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("ws-send-report-"));
+            reporter.scheduleWithFixedDelay(this::reportSlowestSessions, reportIntervalSeconds, reportIntervalSeconds,
+                TimeUnit.SECONDS);
+        } else {
+            reporter = null;
+        }
+    }
+
+    /**
+     * Wraps a new session so that messages can be sent by more than one thread, with the configured limits.
+     *
+     * @param session The session from the WebSocket container.
+     * @return The decorated session.
+     */
+    public WebSocketSession decorate(WebSocketSession session) {
+        return new SendBufferDecorator(session, sendTimeLimit, bufferSizeLimit, overflowPolicy, this);
+    }
+
+    void messagesDropped(int count) {
+        droppedCounter.increment(count);
+    }
+
+    void messageCoalesced() {
+        coalescedCounter.increment();
+    }
+
+    void sessionTerminated() {
+        terminatedCounter.increment();
+    }
+
+    private List<SendBufferDecorator> getSessions() {
+        List<SendBufferDecorator> sessions = new ArrayList<SendBufferDecorator>();
+        for (WebSocketSession session : sessionManager.getActiveSessions().values()) {
+            if (session instanceof SendBufferDecorator) {
+                sessions.add((SendBufferDecorator) session);
+            }
+        }
+        return sessions;
+    }
+
+    private double getBufferedBytes(boolean max) {
+        long total = 0;
+        long largest = 0;
+        for (SendBufferDecorator session : getSessions()) {
+            long size = session.getBufferSize();
+            total += size;
+            largest = Math.max(largest, size);
+        }
+        return max ? largest : total;
+    }
+
+    /**
+     * Logs the sessions with the longest running send or the most bytes waiting to be sent.
+     */
+    void reportSlowestSessions() {
+        try {
+            List<SendBufferDecorator> slowSessions = new ArrayList<SendBufferDecorator>();
+            for (SendBufferDecorator session : getSessions()) {
+                if (session.getBufferSize() > 0 || session.getTimeSinceSendStarted() > 1000) {
+                    slowSessions.add(session);
+                }
+            }
+            if (slowSessions.isEmpty()) {
+                return;
+            }
+            slowSessions.sort(Comparator.comparingLong(SendBufferDecorator::getTimeSinceSendStarted)
+                .thenComparingLong(SendBufferDecorator::getBufferSize).reversed());
+            StringBuilder report = new StringBuilder(format("%s WebSocket sessions are behind. Overflow policy = %s",
+                slowSessions.size(), overflowPolicy));
+            for (SendBufferDecorator session : slowSessions.subList(0, Math.min(reportCount, slowSessions.size()))) {
+                report.append(format("%n  Session %s (%s): sending for %s ms, %s messages, %s bytes buffered, max %s bytes",
+                    session.getId(), session.getRemoteAddress(), session.getTimeSinceSendStarted(),
+                    session.getBufferedMessageCount(), session.getBufferSize(), session.getMaxBufferSize()));
+            }
+            log.info(report.toString());
+        } catch (Exception e) {
+            log.error("Exception while reporting slow WebSocket sessions.", e);
+        }
+    }
+
+    private static SendBufferDecorator.OverflowPolicy getOverflowPolicy(String overflow) {
+        switch (overflow.toLowerCase()) {
+            case "drop":
+                return SendBufferDecorator.OverflowPolicy.DROP_OLDEST;
+            case "coalesce":
+                return SendBufferDecorator.OverflowPolicy.COALESCE;
+            case "terminate":
+                return SendBufferDecorator.OverflowPolicy.TERMINATE;
+            default:
+                log.error(format("Unknown websocket.sendBuffer.overflow value of %s. Using terminate.", overflow));
+                return SendBufferDecorator.OverflowPolicy.TERMINATE;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,202 @@
+// © 2021 Brill Software Limited - Brill Middleware, distributed under the MIT License.
+package brill.server.webSockets;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.WebSocketSession;
+import brill.server.utils.NamedThreadFactory;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import static java.lang.String.format;
+
+/**
+ * Session Pipeline - optionally moves the processing of received messages off the Tomcat container thread.
+ *
+ * When enabled with websocket.pipeline.enabled, each session has a mailbox of messages waiting to be processed. The
+ * mailboxes are processed by a shared pool of worker threads. A mailbox is only processed by one worker at a time, so
+ * messages for a session are still processed in the order received, while different sessions are processed in
+ * parallel. A slow git:pull:/ or query:/ therefore no longer holds up a container thread.
+ *
+ * Each mailbox is limited to websocket.pipeline.maxQueuedPerSession messages. When full, the overflow setting
+ * decides what happens:
+ *
+ *   pause  - the container thread waits for space, which stops further messages being read from the session's
+ *            socket. If there's still no space after websocket.pipeline.pauseTimeoutMs the message is rejected.
+ *   reject - the message is rejected straight away.
+ *
+ * The caller sends the client an error message for a rejected message.
+ *
+ */
+@Component
+public class SessionPipeline {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(SessionPipeline.class);
+
+    // Maximum messages processed for a session before the worker moves on to another session.
+    private static final int MAX_BATCH = 16;
+
+    private final boolean enabled;
+    private final int maxQueuedPerSession;
+    private final boolean pauseOnOverflow;
+    private final long pauseTimeoutMs;
+    private final ExecutorService workers;
+    private final Map<String, SessionMailbox> mailboxes = new ConcurrentHashMap<String, SessionMailbox>();
+
+    public SessionPipeline(MeterRegistry meterRegistry,
+            @Value("${websocket.pipeline.enabled:false}") boolean enabled,
+            @Value("${websocket.pipeline.threads:16}") int threads,
+            @Value("${websocket.pipeline.maxQueuedPerSession:50}") int maxQueuedPerSession,
+            @Value("${websocket.pipeline.overflow:pause}") String overflow,
+            @Value("${websocket.pipeline.pauseTimeoutMs:30000}") long pauseTimeoutMs) {
+        this.enabled = enabled;
+        this.maxQueuedPerSession = maxQueuedPerSession;
+        this.pauseOnOverflow = !overflow.equalsIgnoreCase("reject");
+        this.pauseTimeoutMs = pauseTimeoutMs;
+        this.workers = enabled ? Executors.newFixedThreadPool(threads, new NamedThreadFactory("ws-pipeline-")) : null;
+
+        if (enabled) {
+            log.info(format("WebSocket session pipeline enabled. Threads = %s, Max queued per session = %s, Overflow = %s",
+                threads, maxQueuedPerSession, pauseOnOverflow ? "pause" : "reject"));
+            Gauge.builder("brill.websocket.pipeline.queued", mailboxes, SessionPipeline::getQueuedCount)
+                .description("Messages waiting in session mailboxes").register(meterRegistry);
+            Gauge.builder("brill.websocket.pipeline.sessions", mailboxes, Map::size)
+                .description("Sessions with a mailbox").register(meterRegistry);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Adds a message to the session's mailbox.
+     *
+     * @param session The WebSocket session.
+     * @param task Processes the message.
+     * @return false when the mailbox is full and the message has been rejected.
+     */
+    public boolean submit(WebSocketSession session, Runnable task) {
+        SessionMailbox mailbox = mailboxes.computeIfAbsent(session.getId(), id -> new SessionMailbox(id));
+        if (!mailbox.reserve()) {
+            log.warn(format("Session %s has %s messages waiting to be processed. Message rejected.", session.getId(),
+                maxQueuedPerSession));
+            return false;
+        }
+        mailbox.add(task);
+        return true;
+    }
+
+    /**
+     * Removes the mailbox when the session closes. Messages still in the mailbox are dropped, as processing them after
+     * the session has been cleaned up would, for example, subscribe the closed session to a topic again. A message
+     * that's already being processed is allowed to finish.
+     *
+     * @param session The WebSocket session.
+     */
+    public void removeSession(WebSocketSession session) {
+        SessionMailbox mailbox = mailboxes.remove(session.getId());
+        if (mailbox != null) {
+            mailbox.close();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (workers != null) {
+            workers.shutdownNow();
+        }
+    }
+
+    private static int getQueuedCount(Map<String, SessionMailbox> mailboxes) {
+        int count = 0;
+        for (SessionMailbox mailbox : mailboxes.values()) {
+            count += mailbox.queue.size();
+        }
+        return count;
+    }
+
+    /**
+     * A queue of messages for one session. The scheduled flag ensures only one worker processes the queue at a time.
+     */
+    private class SessionMailbox implements Runnable {
+        private final String sessionId;
+        private final Queue<Runnable> queue = new ConcurrentLinkedQueue<Runnable>();
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        private final Semaphore space = new Semaphore(maxQueuedPerSession);
+        private volatile boolean closed = false;
+
+        SessionMailbox(String sessionId) {
+            this.sessionId = sessionId;
+        }
+
+        boolean reserve() {
+            if (!pauseOnOverflow) {
+                return space.tryAcquire();
+            }
+            try {
+                return space.tryAcquire(pauseTimeoutMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        void add(Runnable task) {
+            if (closed) {
+                space.release();
+                return;
+            }
+            queue.add(task);
+            schedule();
+        }
+
+        /**
+         * Drops the messages waiting to be processed. Their space is released, so a container thread paused on a full
+         * mailbox carries on.
+         */
+        void close() {
+            closed = true;
+            while (queue.poll() != null) {
+                space.release();
+            }
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                workers.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            Runnable task;
+            int processed = 0;
+            while (processed < MAX_BATCH && (task = queue.poll()) != null) {
+                try {
+                    if (!closed) {
+                        task.run();
+                    }
+                } catch (Throwable e) {
+                    log.error(format("Exception while processing message for session %s", sessionId), e);
+                } finally {
+                    space.release();
+                    processed++;
+                }
+            }
+            scheduled.set(false);
+            // Messages may have been added after the last poll, or the batch limit reached.
+            if (!queue.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+// © 2021 Brill Software Limited - Brill Middleware, distributed under the MIT License.
+package brill.server.webSockets;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import org.springframework.stereotype.Component;
+
+/**
+ * Subscription Index - maps each subscribed topic to the sessions that have subscribed to it.
+ *
+ * The subscriptions are also held in the session attributes, so that they can be serialized and restored when a
+ * client reconnects. The index avoids having to check the attributes of every active session to find the subscribers
+ * to a topic. Publishing to a topic only touches the sessions that have subscribed.
+ *
+ * Topics are kept in sorted order, so all the subscriptions under a prefix such as file:/MyApp/ can be found with a
+ * range lookup. Topics that end in a '/' are Topic Branches and cover all the topics below them.
+ *
+ * The subscriptions to a topic are changed inside ConcurrentHashMap.compute(), which is atomic for the topic, so a
+ * remove that empties a topic can't drop a subscription added by another session at the same time. The sorted set of
+ * topics is only updated inside compute() as well.
+ *
+ */
+@Component
+public class SubscriptionIndex {
+
+    // Topic -> (session id -> filter)
+    private final Map<String, Map<String, String>> subscriptionsByTopic =
+        new ConcurrentHashMap<String, Map<String, String>>();
+
+    // The subscribed topics in sorted order, for the prefix and Topic Branch lookups.
+    private final ConcurrentSkipListSet<String> topics = new ConcurrentSkipListSet<String>();
+
+    // Session id -> subscribed topics. Used to remove the subscriptions when the session closes.
+    private final Map<String, Set<String>> topicsBySession = new ConcurrentHashMap<String, Set<String>>();
+
+    public void add(String sessionId, String topic, String filter) {
+        subscriptionsByTopic.compute(topic, (t, subscriptions) -> {
+            if (subscriptions == null) {
+                subscriptions = new ConcurrentHashMap<String, String>();
+                topics.add(t);
+            }
+            subscriptions.put(sessionId, filter);
+            return subscriptions;
+        });
+        topicsBySession.compute(sessionId, (id, sessionTopics) -> {
+            if (sessionTopics == null) {
+                sessionTopics = ConcurrentHashMap.newKeySet();
+            }
+            sessionTopics.add(topic);
+            return sessionTopics;
+        });
+    }
+
+    public void remove(String sessionId, String topic) {
+        subscriptionsByTopic.computeIfPresent(topic, (t, subscriptions) -> {
+            subscriptions.remove(sessionId);
+            if (subscriptions.isEmpty()) {
+                topics.remove(t);
+                return null;
+            }
+            return subscriptions;
+        });
+        topicsBySession.computeIfPresent(sessionId, (id, sessionTopics) -> {
+            sessionTopics.remove(topic);
+            return sessionTopics.isEmpty() ? null : sessionTopics;
+        });
+    }
+
+    /**
+     * Removes all the subscriptions of a session. Called when the session closes.
+     *
+     * @param sessionId The session id.
+     */
+    public void removeSession(String sessionId) {
+        Set<String> sessionTopics = topicsBySession.remove(sessionId);
+        if (sessionTopics != null) {
+            for (String topic : sessionTopics) {
+                remove(sessionId, topic);
+            }
+        }
+    }
+
+    /**
+     * @param topic The topic.
+     * @return Map of session id to filter for the sessions subscribed to the topic.
+     */
+    public Map<String, String> getSubscriptions(String topic) {
+        Map<String, String> subscriptions = subscriptionsByTopic.get(topic);
+        return subscriptions == null ? Collections.emptyMap() : subscriptions;
+    }
+
+    /**
+     * Finds the subscriptions to all the topics that start with the prefix. For example a prefix of file:/MyApp/
+     * returns the subscriptions to file:/MyApp/, file:/MyApp/Pages/ and file:/MyApp/Pages/home.json
+     *
+     * @param prefix The start of the topic.
+     * @return Map of topic to the session id and filter of each subscription.
+     */
+    public NavigableMap<String, Map<String, String>> getSubscriptionsStartingWith(String prefix) {
+        NavigableMap<String, Map<String, String>> result = new TreeMap<String, Map<String, String>>();
+        for (String topic : topics.subSet(prefix, true, prefix + Character.MAX_VALUE, false)) {
+            Map<String, String> subscriptions = subscriptionsByTopic.get(topic);
+            if (subscriptions != null) {
+                result.put(topic, subscriptions);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Finds the subscribed Topic Branches that the topic is below. For example, file:/MyApp/Pages/home.json is below
+     * file:/, file:/MyApp/ and file:/MyApp/Pages/
+     *
+     * @param topic The topic.
+     * @return The subscribed Topic Branches, starting with the shortest.
+     */
+    public List<String> getBranchTopics(String topic) {
+        List<String> branches = new ArrayList<String>();
+        int index = topic.indexOf('/');
+        while (index != -1) {
+            String branch = topic.substring(0, index + 1);
+            if (subscriptionsByTopic.containsKey(branch)) {
+                branches.add(branch);
+            }
+            index = topic.indexOf('/', index + 1);
+        }
+        return branches;
+    }
+
+    public int getTopicCount() {
+        return subscriptionsByTopic.size();
+    }
+}
@@ -0,0 +1,143 @@
+// © 2021 Brill Software Limited - Brill Middleware, distributed under the MIT License.
+package brill.server.webSockets;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Topic Trie - indexes the @Event handlers for one event by the literal prefix of their topicMatches regular
+ * expression, such as "git:status:/" or "json:/".
+ *
+ * A lookup walks the characters of the topic and only the handlers whose prefix matches the start of the topic have
+ * their regular expression run. The cost of a lookup depends on the length of the topic rather than the number of
+ * handlers.
+ *
+ */
+class TopicTrie {
+
+    private static final String REGEX_META_CHARS = ".[]()*+?{}|^$";
+
+    private static class Node {
+        private Map<Character, Node> children = null;
+        private List<EventHandler> handlers = null;
+    }
+
+    private final Node root = new Node();
+    private final List<EventHandler> allHandlers = new ArrayList<EventHandler>();
+
+    void add(EventHandler handler) {
+        String prefix = literalPrefix(handler.getTopicMatches());
+        Node node = root;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (node.children == null) {
+                node.children = new HashMap<Character, Node>();
+            }
+            node = node.children.computeIfAbsent(prefix.charAt(i), k -> new Node());
+        }
+        if (node.handlers == null) {
+            node.handlers = new ArrayList<EventHandler>(1);
+        }
+        node.handlers.add(handler);
+        allHandlers.add(handler);
+    }
+
+    /**
+     * Finds the handlers that match the topic. An empty topic matches all the handlers.
+     *
+     * @param topic The message topic.
+     * @param matches List to add the matching handlers to.
+     */
+    void findMatches(String topic, List<EventHandler> matches) {
+        if (topic.length() == 0) {
+            matches.addAll(allHandlers);
+            return;
+        }
+        Node node = root;
+        int i = 0;
+        while (node != null) {
+            if (node.handlers != null) {
+                for (EventHandler handler : node.handlers) {
+                    if (handler.matches(topic)) {
+                        matches.add(handler);
+                    }
+                }
+            }
+            if (node.children == null || i >= topic.length()) {
+                break;
+            }
+            node = node.children.get(topic.charAt(i++));
+        }
+    }
+
+    List<EventHandler> getAllHandlers() {
+        return allHandlers;
+    }
+
+    /**
+     * Returns the fixed text that any topic matching the regular expression must start with. For example the
+     * prefix of "git:commits:/.*" is "git:commits:/". An empty string is returned when the expression doesn't start
+     * with fixed text or uses a top level alternation.
+     *
+     * @param regex The topicMatches regular expression.
+     * @return The literal prefix.
+     */
+    static String literalPrefix(String regex) {
+        int length = regex.length();
+        if (length == 0 || hasTopLevelAlternation(regex)) {
+            return "";
+        }
+        StringBuilder prefix = new StringBuilder();
+        int i = regex.startsWith("^") ? 1 : 0;
+        while (i < length) {
+            char c = regex.charAt(i);
+            char literal;
+            int next;
+            if (c == '\\') {
+                // Escaped punctuation is literal. Escaped letters and digits are classes, quotes or back references.
+                if (i + 1 >= length || Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                    break;
+                }
+                literal = regex.charAt(i + 1);
+                next = i + 2;
+            } else if (REGEX_META_CHARS.indexOf(c) >= 0) {
+                break;
+            } else {
+                literal = c;
+                next = i + 1;
+            }
+            // A quantifier that allows zero occurrences makes the character optional.
+            if (next < length && "*?{".indexOf(regex.charAt(next)) >= 0) {
+                break;
+            }
+            prefix.append(literal);
+            i = next;
+        }
+        return prefix.toString();
+    }
+
+    private static boolean hasTopLevelAlternation(String regex) {
+        int depth = 0;
+        boolean inCharClass = false;
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (inCharClass) {
+                if (c == ']') {
+                    inCharClass = false;
+                }
+            } else if (c == '[') {
+                inCharClass = true;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == '|' && depth == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -1,30 +1,22 @@
 // © 2021 Brill Software Limited - Brill Middleware, distributed under the MIT License.
 package brill.server.webSockets;
 
-import java.io.StringReader;
-import java.lang.annotation.Annotation;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.util.ArrayList;
 import java.util.List;
-import javax.json.Json;
-import javax.json.JsonObject;
+import jakarta.annotation.PostConstruct;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.PongMessage;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
-import org.springframework.web.socket.handler.ConcurrentWebSocketSessionDecorator;
 import org.springframework.web.socket.handler.TextWebSocketHandler;
+import brill.server.database.QueryStats;
 import brill.server.exception.SecurityServiceException;
 import brill.server.service.SecurityService;
 import brill.server.service.SessionLoggerService;
 import brill.server.service.WebSocketService;
 import brill.server.webSockets.annotations.*;
 import static java.lang.String.format;
-import static brill.server.config.WebSocketConfig.WEB_SOCKET_MAX_MESSAGE_SIZE;
-import static brill.server.config.WebSocketConfig.WEB_SOCKET_SNED_TIMEOUT_MS;
 
 /**
  * WebSocket Manager - handles incomming WebSocket text messages.
@@ -32,6 +24,10 @@ import static brill.server.config.WebSocketConfig.WEB_SOCKET_SNED_TIMEOUT_MS;
  * The handleTextMessage() method is called to handle each recieved message. Within a session, messages are processed
  * sequentially excpet when asyncProcessing is set to "yes", in which case concurrent processing can occur.
  * Concurrent processing is only required for messages that take a long time to process, such as a request to a chatbot.
+ * These messages are processed by the AsyncEventExecutor, which limits the number processed at once.
+ * 
+ * When the SessionPipeline is enabled, messages are processed on the pipeline's worker threads instead of the Tomcat
+ * container thread. The order of processing within a session is unchanged.
  * 
  */
 @Component
@@ -50,83 +46,106 @@ public class WebSocketManager extends TextWebSocketHandler {
     @Autowired
     private SessionLoggerService sessionLogger;
 
+    @Autowired
+    private AsyncEventExecutor asyncExecutor;
+
+    @Autowired
+    private SessionPipeline sessionPipeline;
+
+    @Autowired
+    private SendBufferMonitor sendBufferMonitor;
+
     // Injects a list of classes that have the @WebSocketController annotation
     @Autowired
     @WebSocketController
     private List<Object> webSocketControllers;
 
+    private EventRouter eventRouter;
+
+    /**
+     * Builds the routing table for the @Event methods. Done once, rather than using reflection on every message.
+     */
+    @PostConstruct
+    public void createEventRouter() {
+        eventRouter = new EventRouter(webSocketControllers);
+    }
+
     @Override
     public void afterConnectionEstablished(WebSocketSession session) throws java.lang.Exception {
         // Allow more that one thread to be able to sned a message to a session. Messages are queued and sent sequentially.
-        ConcurrentWebSocketSessionDecorator cswd = new ConcurrentWebSocketSessionDecorator(session, 
-            WEB_SOCKET_SNED_TIMEOUT_MS, WEB_SOCKET_MAX_MESSAGE_SIZE);
-        webSocketSessionManager.addSession(cswd);
-        super.afterConnectionEstablished(cswd);
+        WebSocketSession decoratedSession = sendBufferMonitor.decorate(session);
+        webSocketSessionManager.addSession(decoratedSession);
+        super.afterConnectionEstablished(decoratedSession);
     }
 
     @Override
     public void afterConnectionClosed(WebSocketSession session, CloseStatus status) throws Exception {
         webSocketSessionManager.removeSession(session);
+        sessionPipeline.removeSession(session);
     }
 
     /**
-     * Handles a WebSocket text message. Checks each of the @WebSocketController classes and calls any
-     * methods that have an @Event that matches. Uses reflection.
+     * Handles a WebSocket text message. The message is either processed straight away or added to the session's
+     * mailbox in the SessionPipeline.
      * 
-     * @param session Web Socket session.
+     * @param containerSession Web Socket session from the container.
      * @param TextMessage Received WebSocket Text message.
      */
     @Override
-    public void handleTextMessage(WebSocketSession session, TextMessage request) {
+    public void handleTextMessage(WebSocketSession containerSession, TextMessage request) {
+        // Use the decorated session, so that replies go through the session's send buffer.
+        WebSocketSession session = webSocketSessionManager.getActiveSessions().getOrDefault(containerSession.getId(), 
+            containerSession);
+        if (!sessionPipeline.isEnabled()) {
+            processTextMessage(session, request);
+            return;
+        }
+        if (!sessionPipeline.submit(session, () -> processTextMessage(session, request))) {
+            wsService.sendErrorToClient(session, "", "Server Busy", 
+                "Too many requests are waiting to be processed. Please try again shortly.", WebSocketService.WARNING_SEVERITY);
+        }
+    }
+
+    /**
+     * Processes a WebSocket text message. Looks up the @Event methods that match the event and topic in the
+     * routing table and calls them.
+     * 
+     * @param session Web Socket session.
+     * @param TextMessage Received WebSocket Text message.
+     */
+    private void processTextMessage(WebSocketSession session, TextMessage request) {
         String topic = "";
         try {
-            int callCount = 0;
-            JsonObject message = Json.createReader(new StringReader(request.getPayload())).readObject();
-            String event = message.containsKey("event") ? message.getString("event") : "";
-            topic = message.containsKey("topic") ? message.getString("topic") : "";
-            for (Object wsController : webSocketControllers) {
-                Class<?> clazz = wsController.getClass();
-                // Go through each method of the class
-                for (Method method : clazz.getDeclaredMethods()) {
-                    // Check for @Event annotation
-                    if (method.isAnnotationPresent(Event.class)) { 
-                        Event eventAnnotation = method.getAnnotation(Event.class);
-                        String eventValue = eventAnnotation.value();
-                        // Check if the Event matches
-                        String topicMatches = eventAnnotation.topicMatches();
-                        if (event.equals(eventValue) && 
-                            (topic.length() == 0 || topicMatches.length() == 0 || topic.matches(topicMatches))) {
-                            // Call the method along with the parameters
-                            String permission = eventAnnotation.permission();
-                            if (permission.length() > 0) {
-                                securityService.checkUserHasPermission(session, event, topic, permission);
-                            }
-
-                            String asyncProcessing =  eventAnnotation.asyncProcessing();
-
-                            // WebSocket messages are noramlly processed sequentially for a session. By setting the annotation asyncProcessing to
-                            // "yes" or "true", the next message is processed without waiting for the current message processing to complete.
-                            if (asyncProcessing.equalsIgnoreCase("yes") || asyncProcessing.equalsIgnoreCase("true")) {
-                                Thread newThread = new Thread(() -> {
-                                    try {
-                                        method.invoke(wsController, getParams(method, session, message));
-                                    } catch (IllegalAccessException | InvocationTargetException e) {
-                                        log.error(e.getMessage());
-                                    } 
-                                });
-                                newThread.start();
-                            } else {
-                                method.invoke(wsController, getParams(method, session, message));
-                            }
-                            callCount++;
-                        }
+            // Only the event and topic are read here. The rest of the message is parsed if and when a handler needs it.
+            LazyJsonMessage message = LazyJsonMessage.parse(request.getPayload());
+            String event = message.getEvent();
+            topic = message.getTopic();
+            List<EventHandler> handlers = eventRouter.route(event, topic);
+            for (EventHandler handler : handlers) {
+                // Call the method along with the parameters
+                String permission = handler.getPermission();
+                if (permission.length() > 0) {
+                    securityService.checkUserHasPermission(session, event, topic, permission);
+                }
+
+                // WebSocket messages are noramlly processed sequentially for a session. By setting the annotation asyncProcessing to
+                // "yes" or "true", the next message is processed without waiting for the current message processing to complete.
+                if (handler.isAsyncProcessing()) {
+                    asyncExecutor.execute(handler, session, topic, message);
+                } else {
+                    // Any SQL run by the method is recorded against the topic in the database statistics.
+                    String previousSource = QueryStats.setSource(topic);
+                    try {
+                        handler.invoke(session, message);
+                    } finally {
+                        QueryStats.setSource(previousSource);
                     }
                 }
             }
-            if (callCount == 0) {
+            if (handlers.size() == 0) {
                 log.error("No @Event method matches Topic " + topic);
                 wsService.sendErrorToClient(session, topic, "Server Error.", format("No server event method for <b>%s</b> to topic <b>%s</b>", event, topic));
-            } else if (callCount > 1) {
+            } else if (handlers.size() > 1) {
                 log.error("More than one @Event method matches Topic " + topic);
                 wsService.sendErrorToClient(session, topic, "Server Error.", "More than one server event method for topic.");
             }
@@ -152,43 +171,4 @@ public class WebSocketManager extends TextWebSocketHandler {
         log.trace("Pong received from the client.");
         super.handlePongMessage(session, message);
     }
-
-    /**
-     * Puts the method parameters into an array ready for invoking the method. Requires the parameters to be annotated
-     * with @Session and @Message.
-     * 
-     * @param method The method to be invoked.
-     * @param session The WebSocket session to be passed as a parameter.
-     * @param message The message to be passed as a parameter.
-     * @return An array containing the parameters.
-     */
-    private Object[] getParams(Method method, WebSocketSession session, JsonObject message) {
-        ArrayList<Object> params = new ArrayList<Object>();
-        Class<?>[] parameterTypes = method.getParameterTypes();
-        Annotation[][] annotations = method.getParameterAnnotations();
-        int paramNum = 0;
-        for (Annotation[] annotationsForParam : annotations) {
-            for (Annotation annotation : annotationsForParam) {
-                if (annotation instanceof Session) {
-                    if (!parameterTypes[paramNum].getName().endsWith("WebSocketSession")) {
-                        log.warn(format("Annotation @Session parameter is expected to be of type WebSocketSession for method %s",
-                            method.getName()));
-                    }
-                    params.add(session);
-                } else 
-                if (annotation instanceof Message) {
-                    if (!parameterTypes[paramNum].getName().endsWith("JsonObject")) {
-                        log.warn(format("Annotation @Message parameter is expected to be of type JsonObject for method %s",
-                            method.getName()));
-                    }
-                    params.add(message);
-                } else {
-                    log.error(format("@WebSocketController: Unexpected parameter annotation @%s. Method: %s", 
-                        annotation.getClass().getName(), method.getName()));
-                }
-            }
-            paramNum++;
-        }
-        return params.toArray();
-    }
 }
\ No newline at end of file
@@ -25,9 +25,11 @@ public class WebSocketSessionManager {
 
     
     private final SessionLoggerService sessionLogger;
+    private final SubscriptionIndex subscriptionIndex;
     
-    public WebSocketSessionManager(SessionLoggerService sessionLogger) {
+    public WebSocketSessionManager(SessionLoggerService sessionLogger, SubscriptionIndex subscriptionIndex) {
         this.sessionLogger = sessionLogger;
+        this.subscriptionIndex = subscriptionIndex;
     }
 
 
@@ -51,6 +53,7 @@ public class WebSocketSessionManager {
     
     public void removeSession(WebSocketSession session) {
         activeSessions.remove(session.getId());
+        subscriptionIndex.removeSession(session.getId());
         sessionLogger.logEndSessionToDb(session.getId());
     }
 
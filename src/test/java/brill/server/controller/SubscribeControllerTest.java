@@ -0,0 +1,94 @@
+package brill.server.controller;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+import javax.json.Json;
+import javax.json.JsonObject;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import brill.server.service.DatabaseService;
+import brill.server.service.GitService;
+import brill.server.service.WebSocketService;
+
+@RunWith(JUnitPlatform.class)
+@ExtendWith(MockitoExtension.class)
+public class SubscribeControllerTest {
+
+    static final String TOPIC = "query:/db_app/database/employees.sql";
+    static final String SQL = "select * from employee where dept = :dept";
+
+    @Mock
+    GitService gitService;
+
+    @Mock
+    WebSocketService wsService;
+
+    @Mock
+    DatabaseService db;
+
+    @Mock
+    WebSocketSession session;
+
+    SubscribeController controller;
+
+    @BeforeEach
+    void setUp() {
+        controller = new SubscribeController(gitService, null, wsService, db, null, null, null);
+    }
+
+    @Test
+    public void sendsNextPage() throws Exception {
+        TextMessage page = new TextMessage("{}");
+        when(wsService.getSubscriptionFilter(session, TOPIC)).thenReturn("{\"dept\": \"IT\", \"page_size\": 2}");
+        when(wsService.getWorkspace(session)).thenReturn("development");
+        when(gitService.getFile("development", TOPIC)).thenReturn(SQL);
+        when(wsService.createMessage(eq("publish-append"), eq(TOPIC), any(WebSocketService.ContentWriter.class)))
+            .thenAnswer(invocation -> {
+                invocation.<WebSocketService.ContentWriter>getArgument(2).write(null);
+                return page;
+            });
+
+        controller.requestQueryPage(session, request("b2Zmc2V0OjI"));
+
+        JsonObject filter = Json.createObjectBuilder().add("dept", "IT").add("page_size", 2).build();
+        verify(db).queryPageUsingNamedParameters(eq(SQL), eq(filter), isNull(), eq("b2Zmc2V0OjI"), eq(2));
+        verify(wsService).sendTextMessageToClient(session, "publish-append", TOPIC, page);
+    }
+
+    @Test
+    public void rejectsRequestWithoutSubscription() throws Exception {
+        when(wsService.getSubscriptionFilter(session, TOPIC)).thenReturn(null);
+
+        controller.requestQueryPage(session, request("b2Zmc2V0OjI"));
+
+        verify(wsService).sendErrorToClient(session, TOPIC, "Server request error.", "There's no subscription to " + TOPIC);
+        verifyZeroInteractions(db, gitService);
+    }
+
+    @Test
+    public void rejectsSubscriptionWithoutPageSize() throws Exception {
+        when(wsService.getSubscriptionFilter(session, TOPIC)).thenReturn("{\"dept\": \"IT\"}");
+
+        controller.requestQueryPage(session, request("b2Zmc2V0OjI"));
+
+        verify(wsService).sendErrorToClient(session, TOPIC, "Server request error.",
+            "The subscription to " + TOPIC + " doesn't have a page_size");
+        verifyZeroInteractions(db, gitService);
+    }
+
+    private JsonObject request(String continuation) {
+        return Json.createObjectBuilder().add("event", "request").add("topic", TOPIC)
+            .add("content", Json.createObjectBuilder().add("continuation", continuation)).build();
+    }
+}
@@ -0,0 +1,93 @@
+package brill.server.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.when;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@RunWith(JUnitPlatform.class)
+@ExtendWith(MockitoExtension.class)
+public class ColumnDecoderTest {
+
+    @Mock
+    ResultSet rs;
+
+    @Mock
+    ResultSetMetaData metaData;
+
+    @Test
+    public void writesTypedValues() throws Exception {
+        when(metaData.getColumnCount()).thenReturn(5);
+        column(1, "id", Types.BIGINT);
+        column(2, "price", Types.DECIMAL);
+        column(3, "born", Types.DATE);
+        column(4, "updated", Types.TIMESTAMP);
+        column(5, "name", Types.VARCHAR);
+        when(rs.getLong(1)).thenReturn(9007199254740993L);
+        when(rs.getBigDecimal(2)).thenReturn(new BigDecimal("12.50"));
+        when(rs.getObject(3, LocalDate.class)).thenReturn(LocalDate.of(2021, 3, 4));
+        when(rs.getObject(4, LocalDateTime.class)).thenReturn(LocalDateTime.of(2021, 3, 4, 5, 6, 7));
+        when(rs.getString(5)).thenReturn(null);
+
+        assertEquals("{\"id\":9007199254740993,\"price\":12.50,\"born\":\"2021-03-04\"," +
+            "\"updated\":\"2021-03-04 05:06:07\",\"name\":null}", writeRow());
+    }
+
+    @Test
+    public void writesNullForNullNumbers() throws Exception {
+        when(metaData.getColumnCount()).thenReturn(1);
+        column(1, "pages", Types.INTEGER);
+        when(rs.getInt(1)).thenReturn(0);
+        when(rs.wasNull()).thenReturn(true);
+
+        assertEquals("{\"pages\":null}", writeRow());
+    }
+
+    @Test
+    public void writesUnsignedValues() throws Exception {
+        when(metaData.getColumnCount()).thenReturn(3);
+        column(1, "id", Types.INTEGER, false);
+        column(2, "total", Types.BIGINT, false);
+        column(3, "count", Types.SMALLINT, false);
+        when(rs.getLong(1)).thenReturn(4294967295L);
+        when(rs.getBigDecimal(2)).thenReturn(new BigDecimal("18446744073709551615"));
+        when(rs.getInt(3)).thenReturn(65535);
+
+        assertEquals("{\"id\":4294967295,\"total\":18446744073709551615,\"count\":65535}", writeRow());
+    }
+
+    private void column(int index, String label, int type) throws Exception {
+        column(index, label, type, true);
+    }
+
+    private void column(int index, String label, int type, boolean signed) throws Exception {
+        when(metaData.getColumnLabel(index)).thenReturn(label);
+        when(metaData.getColumnType(index)).thenReturn(type);
+        when(metaData.isSigned(index)).thenReturn(signed);
+    }
+
+    private String writeRow() throws Exception {
+        StringWriter writer = new StringWriter();
+        try (JsonGenerator generator = Json.createGenerator(writer)) {
+            generator.writeStartObject();
+            for (ColumnDecoder decoder : ColumnDecoder.forResultSet(metaData)) {
+                decoder.write(rs, generator);
+            }
+            generator.writeEnd();
+        }
+        return writer.toString();
+    }
+}
@@ -0,0 +1,110 @@
+package brill.server.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Logger;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@RunWith(JUnitPlatform.class)
+@ExtendWith(MockitoExtension.class)
+public class ConnectionPoolTest {
+
+    static final String URL = "jdbc:brilltest:pool";
+
+    /**
+     * Driver that hands out mock connections, loaded by the pool using its class name.
+     */
+    public static class TestDriver implements Driver {
+        static {
+            try {
+                DriverManager.registerDriver(new TestDriver());
+            } catch (SQLException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        @Override
+        public Connection connect(String url, Properties info) {
+            return acceptsURL(url) ? mock(Connection.class) : null;
+        }
+
+        @Override
+        public boolean acceptsURL(String url) {
+            return url.startsWith("jdbc:brilltest:");
+        }
+
+        @Override
+        public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+            return new DriverPropertyInfo[0];
+        }
+
+        @Override
+        public int getMajorVersion() {
+            return 1;
+        }
+
+        @Override
+        public int getMinorVersion() {
+            return 0;
+        }
+
+        @Override
+        public boolean jdbcCompliant() {
+            return false;
+        }
+
+        @Override
+        public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            throw new SQLFeatureNotSupportedException();
+        }
+    }
+
+    @Test
+    public void fillDoesNotExceedMaxSize() throws Exception {
+        ConnectionPool pool = new ConnectionPool(TestDriver.class.getName(), URL, "user", "password", 3, 4, 100,
+            60000, 10, null);
+        try {
+            List<CachedConnection> borrowed = new ArrayList<CachedConnection>();
+            for (int i = 0; i < 3; i++) {
+                borrowed.add(pool.borrow());
+            }
+            assertEquals(3, pool.getSize());
+
+            // Only one more connection fits, although three idle connections are wanted.
+            assertEquals(1, pool.fill(3));
+            assertEquals(4, pool.getSize());
+            assertEquals(1, pool.getIdleCount());
+
+            pool.checkUse(60000, 60000);
+            assertEquals(4, pool.getSize());
+
+            CachedConnection last = pool.borrow();
+            assertTrue(last != null);
+            assertEquals(0, pool.fill(3));
+            assertEquals(4, pool.getInUseCount());
+
+            borrowed.add(last);
+            for (CachedConnection cachedConn : borrowed) {
+                cachedConn.close();
+            }
+            assertEquals(4, pool.getIdleCount());
+            assertEquals(0, pool.getInUseCount());
+        } finally {
+            pool.closeAll();
+        }
+    }
+}
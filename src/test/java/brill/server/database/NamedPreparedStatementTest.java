@@ -0,0 +1,58 @@
+package brill.server.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import javax.json.Json;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@RunWith(JUnitPlatform.class)
+@ExtendWith(MockitoExtension.class)
+public class NamedPreparedStatementTest {
+
+    @Mock
+    Connection conn;
+
+    @Mock
+    PreparedStatement preparedStatement;
+
+    @Test
+    public void addBatchSetsParametersForEachRow() throws Exception {
+        when(conn.prepareStatement("insert into employee (name, dept) values (?, ?)")).thenReturn(preparedStatement);
+
+        NamedPreparedStatement stmt = NamedPreparedStatement.prepareStatement(conn,
+            "insert into employee (name, dept) values (:name, :dept)",
+            Json.createObjectBuilder().add("name", "Ali").add("dept", "Sales").build());
+        stmt.addBatch(Json.createObjectBuilder().add("name", "Sam").add("dept", "Support").build());
+        stmt.addBatch();
+
+        verify(preparedStatement).setString(1, "Ali");
+        verify(preparedStatement).setString(1, "Sam");
+        verify(preparedStatement).setString(2, "Support");
+        verify(preparedStatement, times(2)).addBatch();
+        assertEquals("insert into employee (name, dept) values ('Sam', 'Support')", stmt.getQuery());
+    }
+
+    @Test
+    public void addBatchRejectsDifferentDirectInsertValue() throws Exception {
+        when(conn.prepareStatement("update employee set salary = ? where id = ?")).thenReturn(preparedStatement);
+
+        NamedPreparedStatement stmt = NamedPreparedStatement.prepareStatement(conn,
+            "update employee set ::col = :value where id = :id",
+            Json.createObjectBuilder().add("col", "salary").add("value", 1).add("id", 1).build());
+        SQLException e = assertThrows(SQLException.class,
+            () -> stmt.addBatch(Json.createObjectBuilder().add("col", "bonus").add("value", 2).add("id", 2).build()));
+        assertTrue(e.getMessage().contains("::col"));
+    }
+}
@@ -0,0 +1,132 @@
+package brill.server.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import java.io.StringWriter;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.stream.JsonGenerator;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@RunWith(JUnitPlatform.class)
+@ExtendWith(MockitoExtension.class)
+public class PagedQueryTest {
+
+    static final String SQL = "select id from employee where dept = :dept";
+
+    @Mock
+    Connection conn;
+
+    @Mock
+    PreparedStatement stmt;
+
+    @Mock
+    ResultSet rs;
+
+    @Mock
+    ResultSetMetaData metaData;
+
+    CachedConnection cachedConn;
+    JsonObject params;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        when(conn.prepareStatement(anyString())).thenReturn(stmt);
+        cachedConn = new CachedConnection(conn, "jdbc:test", "user", "password", null, 10);
+        params = Json.createObjectBuilder().add("dept", "IT").add(NamedPreparedStatement.PAGE_SIZE, 2).build();
+    }
+
+    @Test
+    public void skipsToThePage() throws Exception {
+        rows(5);
+        StringWriter first = new StringWriter();
+        assertTrue(page(first, 0, 2));
+        assertEquals("[{\"id\":1},{\"id\":2}]", first.toString());
+
+        rows(5);
+        StringWriter middle = new StringWriter();
+        assertTrue(page(middle, 2, 2));
+        assertEquals("[{\"id\":3},{\"id\":4}]", middle.toString());
+
+        rows(5);
+        StringWriter last = new StringWriter();
+        assertEquals(false, page(last, 4, 2));
+        assertEquals("[{\"id\":5}]", last.toString());
+
+        InOrder order = inOrder(stmt);
+        order.verify(stmt).setMaxRows(3);
+        order.verify(stmt).setMaxRows(0);
+        order.verify(stmt).setMaxRows(5);
+        order.verify(stmt).setMaxRows(0);
+        order.verify(stmt).setMaxRows(7);
+        order.verify(stmt).setMaxRows(0);
+    }
+
+    @Test
+    public void resetsLimitsAfterFailure() throws Exception {
+        when(stmt.getFetchSize()).thenReturn(0);
+        when(stmt.executeQuery()).thenThrow(new SQLException("Lost connection"));
+
+        assertThrows(SQLException.class, () -> page(new StringWriter(), 2, 2));
+        InOrder order = inOrder(stmt);
+        order.verify(stmt).setMaxRows(5);
+        order.verify(stmt).setFetchSize(3);
+        order.verify(stmt).setMaxRows(0);
+        order.verify(stmt).setFetchSize(0);
+    }
+
+    @Test
+    public void pageSizeOnlySetWhenInSql() throws Exception {
+        rows(0);
+        page(new StringWriter(), 0, 2);
+        verify(stmt).setString(1, "IT");
+        verify(stmt, never()).setInt(anyInt(), anyInt());
+
+        rows(0);
+        StringWriter writer = new StringWriter();
+        try (JsonGenerator generator = Json.createGenerator(writer)) {
+            cachedConn.executeNamedParametersQuery(SQL + " limit :page_size", params, generator, 0, 2);
+        }
+        verify(stmt).setInt(2, 2);
+    }
+
+    private void rows(int count) throws Exception {
+        AtomicInteger current = new AtomicInteger();
+        when(stmt.executeQuery()).thenReturn(rs);
+        when(rs.getMetaData()).thenReturn(metaData);
+        when(metaData.getColumnCount()).thenReturn(1);
+        when(metaData.getColumnLabel(1)).thenReturn("id");
+        when(metaData.getColumnType(1)).thenReturn(Types.INTEGER);
+        when(rs.next()).thenAnswer(invocation -> current.incrementAndGet() <= count);
+        if (count > 0) {
+            when(rs.getInt(1)).thenAnswer(invocation -> current.get());
+        }
+    }
+
+    private boolean page(StringWriter writer, int offset, int pageSize) throws Exception {
+        try (JsonGenerator generator = Json.createGenerator(writer)) {
+            return cachedConn.executeNamedParametersQuery(SQL, params, generator, offset, pageSize);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package brill.server.database;
+
+import static org.junit.Assert.assertEquals;
+import java.util.ArrayList;
+import java.util.List;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@RunWith(JUnitPlatform.class)
+@ExtendWith(MockitoExtension.class)
+public class QueryStatsTest {
+
+    @Test
+    public void groupsByTopicWhenSourceSet() throws Exception {
+        QueryStats stats = new QueryStats();
+        String previous = QueryStats.setSource("query:/db_app/database/query.sql");
+        try {
+            stats.record("select * from employee", null, 2_000_000, 10, false);
+            stats.record("select * from employee", null, 4_000_000, 20, true);
+            stats.recordResultBytes(500);
+        } finally {
+            QueryStats.setSource(previous);
+        }
+        stats.record("insert into session_log\n   values (?)", null, 1_000_000, 1, false);
+
+        JsonArray sources = stats.toJson(10).getJsonArray("sources");
+        assertEquals(2, sources.size());
+        JsonObject topic = sources.getJsonObject(0);
+        assertEquals("query:/db_app/database/query.sql", topic.getString("source"));
+        assertEquals(2, topic.getInt("count"));
+        assertEquals(1, topic.getInt("failures"));
+        assertEquals(30, topic.getInt("rows"));
+        assertEquals(500, topic.getInt("bytes"));
+        assertEquals(3.0, topic.getJsonNumber("meanMs").doubleValue(), 0.001);
+        assertEquals(4.0, topic.getJsonNumber("maxMs").doubleValue(), 0.001);
+        assertEquals("sql:insert into session_log values (?)", sources.getJsonObject(1).getString("source"));
+    }
+
+    @Test
+    public void countsSlowQueries() throws Exception {
+        QueryStats stats = new QueryStats();
+        stats.setSlowQueryTime(5);
+        stats.record("select 1", "select 1", 1_000_000, 1, false);
+        stats.record("select 1", "select 1", 6_000_000, 1, false);
+        stats.recordPoolWait(2_000_000);
+
+        JsonObject json = stats.toJson(10);
+        assertEquals(1, json.getJsonArray("sources").getJsonObject(0).getInt("slow"));
+        assertEquals(1, json.getJsonObject("pool").getInt("waits"));
+    }
+
+    @Test
+    public void listenerGetsCappedSource() throws Exception {
+        QueryStats stats = new QueryStats();
+        List<String> sources = new ArrayList<String>();
+        stats.setListener(new QueryStats.Listener() {
+            public void queryExecuted(String source, long elapsedNanos, int rows, boolean failed) {
+                sources.add(source);
+            }
+            public void resultWritten(String source, long bytes) {
+                sources.add(source);
+            }
+            public void poolWaited(long elapsedNanos) {
+            }
+        });
+        for (int i = 0; i <= QueryStats.MAX_SOURCES; i++) {
+            stats.record("select " + i, null, 1_000_000, 1, false);
+        }
+        String previous = QueryStats.setSource("query:/db_app/database/query.sql");
+        try {
+            stats.recordResultBytes(100);
+        } finally {
+            QueryStats.setSource(previous);
+        }
+
+        assertEquals("sql:select 0", sources.get(0));
+        assertEquals(QueryStats.OTHER_SOURCE, sources.get(QueryStats.MAX_SOURCES));
+        assertEquals(QueryStats.OTHER_SOURCE, sources.get(QueryStats.MAX_SOURCES + 1));
+        assertEquals(QueryStats.MAX_SOURCES + 1, stats.toJson(1000).getJsonArray("sources").size());
+    }
+}
@@ -0,0 +1,48 @@
+package brill.server.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@RunWith(JUnitPlatform.class)
+@ExtendWith(MockitoExtension.class)
+public class SqlTemplateTest {
+
+    @Test
+    public void namedParameters() throws Exception {
+        SqlTemplate template = SqlTemplate.parse("select * from employee limit :offset, :row_count");
+        assertEquals(List.of("offset", "row_count"), template.getOrderedParameters());
+        assertEquals("select * from employee limit ?, ?", template.getPreparedSql(List.of()));
+        assertEquals("select * from employee limit :offset, :row_count", template.getNamedSql(List.of()));
+    }
+
+    @Test
+    public void directInsertParameters() throws Exception {
+        SqlTemplate template = SqlTemplate.parse(
+            "select * from employee order by ::sortCol ::sortDirection limit :offset, :row_count");
+        assertEquals(List.of("sortCol", "sortDirection"), template.getDirectInsertParameters());
+        assertEquals(List.of("offset", "row_count"), template.getOrderedParameters());
+        assertEquals("select * from employee order by department asc limit ?, ?",
+            template.getPreparedSql(List.of("department", "asc")));
+        assertEquals("select * from employee order by department asc limit :offset, :row_count",
+            template.getNamedSql(List.of("department", "asc")));
+    }
+
+    @Test
+    public void ignoresParametersInQuotesAndComments() throws Exception {
+        SqlTemplate template = SqlTemplate.parse("select ':a', \":b\" from t -- :c\nwhere x = :d");
+        assertEquals(List.of("d"), template.getOrderedParameters());
+        assertEquals("select ':a', \":b\" from t \nwhere x = ?", template.getPreparedSql(List.of()));
+    }
+
+    @Test
+    public void cachesBySqlText() throws Exception {
+        String sql = "select * from employee where id = :id";
+        assertTrue(SqlTemplate.get(sql) == SqlTemplate.get(sql));
+    }
+}
@@ -0,0 +1,63 @@
+package brill.server.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@RunWith(JUnitPlatform.class)
+@ExtendWith(MockitoExtension.class)
+public class StatementCacheTest {
+
+    @Mock
+    Connection conn;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        when(conn.prepareStatement(anyString())).thenAnswer(invocation -> mock(PreparedStatement.class));
+    }
+
+    @Test
+    public void reusesStatementForSameSql() throws Exception {
+        StatementCache cache = new StatementCache(10);
+        long hits = StatementCache.hits.sum();
+
+        PreparedStatement first = cache.prepareStatement(conn, "insert into session_log values (?, ?)");
+        PreparedStatement second = cache.prepareStatement(conn, "insert into session_log values (?, ?)");
+
+        assertTrue(first == second);
+        assertEquals(hits + 1, StatementCache.hits.sum());
+        verify(conn, times(1)).prepareStatement("insert into session_log values (?, ?)");
+        verify(second).clearParameters();
+    }
+
+    @Test
+    public void closesLeastRecentlyUsedOnEviction() throws Exception {
+        StatementCache cache = new StatementCache(2);
+
+        PreparedStatement a = cache.prepareStatement(conn, "select a");
+        PreparedStatement b = cache.prepareStatement(conn, "select b");
+        cache.prepareStatement(conn, "select a");
+        cache.prepareStatement(conn, "select c");
+
+        assertEquals(2, cache.size());
+        verify(b).close();
+        verify(a, times(0)).close();
+
+        cache.clear();
+        verify(a).close();
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,91 @@
+package brill.server.git;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@RunWith(JUnitPlatform.class)
+@ExtendWith(MockitoExtension.class)
+class FileContentCacheTest {
+
+    Path root;
+    Path workspace;
+    WorkspaceWatcher watcher;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        root = Files.createTempDirectory("filecache");
+        workspace = Files.createDirectories(root.resolve("development/app"));
+        watcher = new WorkspaceWatcher(root);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        watcher.close();
+        FileUtils.deleteDirectory(root.toFile());
+    }
+
+    @Test
+    public void cachesUntilInvalidated() throws Exception {
+        FileContentCache cache = new FileContentCache(watcher, 1000, 100);
+        Path file = Files.write(workspace.resolve("page.jsonc"), "{\"a\": 1} // comment".getBytes());
+        try {
+            assertEquals("{\"a\": 1} // comment", cache.get(file).getText());
+            assertTrue(cache.get(file) == cache.get(file));
+            assertEquals(1, cache.getMisses());
+            assertEquals(2, cache.getHits());
+            assertEquals(19, cache.getBytes());
+
+            cache.invalidate(workspace);
+            assertEquals(0, cache.size());
+            assertEquals(0, cache.getBytes());
+            assertTrue(cache.get(workspace.resolve("missing.json")) == null);
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws Exception {
+        FileContentCache cache = new FileContentCache(watcher, 20, 15);
+        Path first = Files.write(workspace.resolve("first.json"), new byte[10]);
+        Path second = Files.write(workspace.resolve("second.json"), new byte[10]);
+        Path third = Files.write(workspace.resolve("third.json"), new byte[10]);
+        Path large = Files.write(workspace.resolve("large.png"), new byte[16]);
+        try {
+            cache.get(first);
+            cache.get(second);
+            cache.get(first);
+            cache.get(third);
+            assertEquals(2, cache.size());
+            assertEquals(1, cache.getEvictions());
+
+            cache.get(large);
+            assertEquals(16, cache.get(large).getBytes().length);
+            assertEquals(20, cache.getBytes());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void filesOutsideWorkspacesAreNotCached() throws Exception {
+        FileContentCache cache = new FileContentCache(watcher, 1000, 100);
+        Path file = Files.write(root.resolve("top.json"), "[]".getBytes());
+        try {
+            assertEquals("[]", cache.get(file).getText());
+            assertEquals(0, cache.size());
+        } finally {
+            cache.close();
+        }
+    }
+}
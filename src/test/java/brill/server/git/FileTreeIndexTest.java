@@ -0,0 +1,111 @@
+package brill.server.git;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@RunWith(JUnitPlatform.class)
+@ExtendWith(MockitoExtension.class)
+class FileTreeIndexTest {
+
+    Path root;
+    Path workspace;
+    WorkspaceWatcher watcher;
+    FileTreeIndex index;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        root = Files.createTempDirectory("treeindex");
+        workspace = Files.createDirectories(root.resolve("development"));
+        Files.createDirectories(workspace.resolve(".git"));
+        Files.createDirectories(workspace.resolve("brill_cms"));
+        Files.createDirectories(workspace.resolve("app/pages"));
+        Files.write(workspace.resolve("app/pages/Home.json"), "{}".getBytes());
+        Files.write(workspace.resolve("app/pages/about.json"), "{}".getBytes());
+        // The changes are passed to the index by the tests rather than by a WatchService.
+        watcher = new WorkspaceWatcher(root) {
+            @Override
+            boolean watch(Path path) {
+                return true;
+            }
+        };
+        index = new FileTreeIndex(watcher);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        index.close();
+        watcher.close();
+        FileUtils.deleteDirectory(root.toFile());
+    }
+
+    @Test
+    public void buildsTreeInCmsOrder() throws Exception {
+        JsonObject tree = index.getTree(workspace, "", false, Arrays.asList("brill_cms"), false, null);
+        assertEquals("file:/", tree.getString("id"));
+        JsonArray apps = tree.getJsonArray("children");
+        assertEquals(1, apps.size());
+        JsonArray pages = apps.getJsonObject(0).getJsonArray("children").getJsonObject(0).getJsonArray("children");
+        assertEquals("file:/app/pages/about.json", pages.getJsonObject(0).getString("id"));
+        assertEquals("file:/app/pages/Home.json", pages.getJsonObject(1).getString("id"));
+        assertEquals(GitRepository.LEAF, pages.getJsonObject(1).getString("type"));
+    }
+
+    @Test
+    public void refreshesChangedPaths() throws Exception {
+        index.getTree(workspace, "", false, null, false, null);
+
+        Files.createDirectories(workspace.resolve("app/images/icons"));
+        Files.write(workspace.resolve("app/images/icons/logo.png"), new byte[] {1, 2});
+        index.refresh(workspace.resolve("app/images/icons/logo.png"));
+        Files.delete(workspace.resolve("app/pages/Home.json"));
+        index.refresh(workspace.resolve("app/pages/Home.json"));
+
+        JsonObject app = index.getTree(workspace, "/app", true, null, false, file -> Files.readAllBytes(file));
+        JsonArray children = app.getJsonArray("children");
+        assertEquals("file:/app/images", children.getJsonObject(0).getString("id"));
+        JsonObject logo = children.getJsonObject(0).getJsonArray("children").getJsonObject(0)
+            .getJsonArray("children").getJsonObject(0);
+        assertEquals("AQI=", logo.getString("base64"));
+        assertEquals(1, children.getJsonObject(1).getJsonArray("children").size());
+    }
+
+    @Test
+    public void patchesMovesAndAdds() throws Exception {
+        long version = index.getTree(workspace, "", false, null, true, null).getJsonNumber("version").longValue();
+
+        Files.move(workspace.resolve("app/pages"), workspace.resolve("app/views"));
+        index.move(workspace.resolve("app/pages"), workspace.resolve("app/views"));
+        Files.write(workspace.resolve("brill_cms/cms.json"), "{}".getBytes());
+        index.refresh(workspace.resolve("brill_cms/cms.json"));
+        assertEquals(version + 2, index.getVersion(workspace));
+
+        JsonArray changes = index.getPatch(workspace, "", Arrays.asList("brill_cms"), version, version + 2)
+            .getJsonArray("changes");
+        assertEquals(1, changes.size());
+        JsonObject rename = changes.getJsonObject(0);
+        assertEquals("rename", rename.getString("op"));
+        assertEquals("file:/app/pages", rename.getString("id"));
+        assertEquals("file:/app/views", rename.getString("newId"));
+        assertEquals("file:/app", rename.getString("parentId"));
+
+        JsonObject add = index.getPatch(workspace, "/brill_cms", null, version, version + 2)
+            .getJsonArray("changes").getJsonObject(0);
+        assertEquals("file:/brill_cms/cms.json", add.getJsonObject("node").getString("id"));
+
+        index.removeWorkspace(workspace);
+        assertTrue(index.getPatch(workspace, "", null, version + 2, index.getVersion(workspace)) == null);
+    }
+}
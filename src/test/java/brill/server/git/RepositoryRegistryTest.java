@@ -0,0 +1,88 @@
+package brill.server.git;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.Git;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@RunWith(JUnitPlatform.class)
+@ExtendWith(MockitoExtension.class)
+class RepositoryRegistryTest {
+
+    Path workspace;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        workspace = Files.createTempDirectory("registry");
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        FileUtils.deleteDirectory(workspace.toFile());
+    }
+
+    @Test
+    public void sharesRepositoryBetweenLeases() throws Exception {
+        Git.init().setDirectory(workspace.toFile()).call().close();
+        RepositoryRegistry registry = new RepositoryRegistry();
+
+        try (RepositoryRegistry.Lease first = registry.acquire(workspace, false);
+             RepositoryRegistry.Lease second = registry.acquire(workspace.resolve("."), false)) {
+            assertTrue(first.getRepository() == second.getRepository());
+        }
+        assertEquals(1, registry.size());
+        registry.removeAll();
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void reopensAfterRemove() throws Exception {
+        Git.init().setDirectory(workspace.toFile()).call().close();
+        RepositoryRegistry registry = new RepositoryRegistry();
+
+        RepositoryRegistry.Lease lease = registry.acquire(workspace, true);
+        registry.remove(workspace);
+        try (RepositoryRegistry.Lease next = registry.acquire(workspace, false)) {
+            assertTrue(next.getRepository() != lease.getRepository());
+        } finally {
+            lease.close();
+        }
+        registry.removeAll();
+    }
+
+    @Test
+    public void notifiesOnlyWhenFilesChanged() throws Exception {
+        Git.init().setDirectory(workspace.toFile()).call().close();
+        List<Path> changed = new ArrayList<Path>();
+        RepositoryRegistry registry = new RepositoryRegistry(changed::add);
+
+        registry.acquire(workspace, false).close();
+        registry.acquire(workspace, true).close();
+        assertTrue(changed.isEmpty());
+
+        registry.acquire(workspace, true, true).close();
+        assertEquals(1, changed.size());
+        assertEquals(workspace.toAbsolutePath().normalize(), changed.get(0).toAbsolutePath().normalize());
+        registry.removeAll();
+    }
+
+    @Test
+    public void missingRepository() {
+        RepositoryRegistry registry = new RepositoryRegistry();
+        assertThrows(IOException.class, () -> registry.acquire(workspace.resolve("missing"), false));
+        assertEquals(0, registry.size());
+    }
+}
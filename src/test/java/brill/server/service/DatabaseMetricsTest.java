@@ -0,0 +1,41 @@
+package brill.server.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.when;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import brill.server.database.Database;
+import brill.server.database.QueryStats;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+@RunWith(JUnitPlatform.class)
+@ExtendWith(MockitoExtension.class)
+public class DatabaseMetricsTest {
+
+    @Mock
+    Database database;
+
+    @Test
+    public void limitsMeterSources() throws Exception {
+        when(database.getQueryStats()).thenReturn(new QueryStats());
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        DatabaseMetrics metrics = new DatabaseMetrics(database, registry, null, 1000, 0, 2);
+
+        metrics.queryExecuted("query:/app/one.sql", 1_000_000, 1, false);
+        metrics.queryExecuted("query:/app/two.sql", 1_000_000, 1, false);
+        metrics.queryExecuted("query:/app/three.sql", 1_000_000, 1, false);
+        metrics.queryExecuted("query:/app/four.sql", 1_000_000, 1, true);
+        metrics.resultWritten("query:/app/one.sql", 100);
+        metrics.resultWritten("query:/app/five.sql", 100);
+
+        assertEquals(3, registry.find("brill.db.query.rows").meters().size());
+        assertEquals(2, registry.get("brill.db.query.rows").tag("source", QueryStats.OTHER_SOURCE).summary().count());
+        assertEquals(1, registry.get("brill.db.query").tag("source", QueryStats.OTHER_SOURCE).tag("outcome", "error")
+            .timer().count());
+        assertEquals(2, registry.find("brill.db.result.bytes").meters().size());
+    }
+}
@@ -0,0 +1,91 @@
+package brill.server.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import java.io.StringWriter;
+import java.sql.SQLException;
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.stream.JsonGenerator;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import brill.server.database.CachedConnection;
+import brill.server.database.Database;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+@RunWith(JUnitPlatform.class)
+@ExtendWith(MockitoExtension.class)
+public class DatabaseServiceTest {
+
+    static final String SQL = "select * from employee";
+
+    @Mock
+    Database database;
+
+    @Mock
+    CachedConnection conn;
+
+    DatabaseService dbService;
+    JsonObject params;
+
+    @BeforeEach
+    void setUp() {
+        dbService = new DatabaseService(database, new QueryResultCache(new SimpleMeterRegistry(), 0, 0));
+        params = Json.createObjectBuilder().add("page_size", 2).build();
+    }
+
+    @Test
+    public void continuationTokens() throws Exception {
+        when(database.getConnection()).thenReturn(conn);
+        rowsAfter(0, true);
+        assertEquals("{\"content\":[],\"continuation\":\"b2Zmc2V0OjI\"}", page(null));
+
+        rowsAfter(2, true);
+        assertEquals("{\"content\":[],\"continuation\":\"b2Zmc2V0OjQ\"}", page("b2Zmc2V0OjI"));
+
+        rowsAfter(4, false);
+        assertEquals("{\"content\":[],\"continuation\":null}", page("b2Zmc2V0OjQ"));
+        verify(conn, times(3)).close();
+    }
+
+    @Test
+    public void rejectsInvalidTokens() throws Exception {
+        SQLException e = assertThrows(SQLException.class, () -> page("not a token!"));
+        assertEquals("Invalid continuation token: not a token!", e.getMessage());
+        // offset:-2
+        assertThrows(SQLException.class, () -> page("b2Zmc2V0Oi0y"));
+        // offset:abc
+        assertThrows(SQLException.class, () -> page("b2Zmc2V0OmFiYw"));
+        verify(database, never()).getConnection();
+    }
+
+    private void rowsAfter(int offset, boolean more) throws Exception {
+        when(conn.executeNamedParametersQuery(eq(SQL), eq(params), any(JsonGenerator.class), eq(offset), eq(2)))
+            .thenAnswer(invocation -> {
+                invocation.<JsonGenerator>getArgument(2).writeStartArray().writeEnd();
+                return more;
+            });
+    }
+
+    private String page(String continuation) throws Exception {
+        StringWriter writer = new StringWriter();
+        try (JsonGenerator generator = Json.createGenerator(writer)) {
+            generator.writeStartObject();
+            generator.writeKey("content");
+            dbService.queryPageUsingNamedParameters(SQL, params, generator, continuation, 2);
+            generator.writeEnd();
+        }
+        return writer.toString();
+    }
+}
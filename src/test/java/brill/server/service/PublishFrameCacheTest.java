@@ -0,0 +1,36 @@
+package brill.server.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.web.socket.TextMessage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+@RunWith(JUnitPlatform.class)
+@ExtendWith(MockitoExtension.class)
+public class PublishFrameCacheTest {
+
+    @Test
+    public void reloadsWhenContentChanges() throws Exception {
+        PublishFrameCache cache = new PublishFrameCache(new SimpleMeterRegistry(), 10);
+        AtomicInteger loads = new AtomicInteger();
+        PublishFrameCache.Loader loader = () -> new PublishFrameCache.Frame(
+            new TextMessage("frame" + loads.incrementAndGet()), "cms_user");
+
+        PublishFrameCache.Frame first = cache.get("development", "json:/app/page.json", "{\"a\":1}", loader);
+        PublishFrameCache.Frame second = cache.get("development", "json:/app/page.json", "{\"a\":1}", loader);
+        assertTrue(first == second);
+        assertEquals("cms_user", second.getPermission());
+
+        PublishFrameCache.Frame changed = cache.get("development", "json:/app/page.json", "{\"a\":2}", loader);
+        assertEquals("frame2", changed.getMessage().getPayload());
+        cache.get("production", "json:/app/page.json", "{\"a\":2}", loader);
+        assertEquals(3, loads.get());
+        assertEquals(2, cache.size());
+    }
+}
@@ -0,0 +1,149 @@
+package brill.server.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.web.socket.TextMessage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+@RunWith(JUnitPlatform.class)
+@ExtendWith(MockitoExtension.class)
+public class QueryResultCacheTest {
+
+    static final String EMPLOYEES = "select * from employee where dept = :dept";
+    static final String DEPARTMENTS = "select * from department";
+
+    SimpleMeterRegistry registry;
+    QueryResultCache cache;
+    AtomicInteger loads;
+
+    @BeforeEach
+    void setUp() {
+        registry = new SimpleMeterRegistry();
+        cache = new QueryResultCache(registry, 60000, 10);
+        loads = new AtomicInteger();
+    }
+
+    @Test
+    public void hitAndMiss() throws Exception {
+        String key = QueryResultCache.createKey("development", "query:/app/employees.sql", "{\"dept\":\"IT\",\"page\":1}", null);
+        TextMessage first = get(key, EMPLOYEES);
+        String sameKey = QueryResultCache.createKey("development", "query:/app/employees.sql", "{\"page\":1,\"dept\":\"IT\"}", null);
+        assertTrue(first == get(sameKey, EMPLOYEES));
+        get(QueryResultCache.createKey("production", "query:/app/employees.sql", "{\"dept\":\"IT\",\"page\":1}", null), EMPLOYEES);
+
+        assertEquals(2, loads.get());
+        assertEquals(1.0, registry.get("brill.db.result.cache.hits").counter().count(), 0);
+        assertEquals(2.0, registry.get("brill.db.result.cache.misses").counter().count(), 0);
+        assertEquals(2.0, registry.get("brill.db.result.cache.size").gauge().value(), 0);
+    }
+
+    @Test
+    public void invalidatedByTable() throws Exception {
+        TextMessage employees = get("employees", EMPLOYEES);
+        TextMessage departments = get("departments", DEPARTMENTS);
+        TextMessage both = get("both", "select * from employee e join department d on e.dept_id = d.id");
+
+        cache.updateExecuted("update employee set dept = 'HR' where id = 1");
+
+        assertTrue(employees != get("employees", EMPLOYEES));
+        assertTrue(departments == get("departments", DEPARTMENTS));
+        assertTrue(both != get("both", "select * from employee e join department d on e.dept_id = d.id"));
+        assertEquals(2.0, registry.get("brill.db.result.cache.invalidated").counter().count(), 0);
+    }
+
+    @Test
+    public void unknownTablesClearEverything() throws Exception {
+        get("employees", EMPLOYEES);
+        get("departments", DEPARTMENTS);
+
+        cache.updateExecuted("call reorganise()");
+
+        assertEquals(0, cache.size());
+        get("departments", DEPARTMENTS);
+        assertEquals(3, loads.get());
+    }
+
+    @Test
+    public void writeDuringLoadNotCached() throws Exception {
+        cache.get("employees", EMPLOYEES, () -> {
+            cache.queryExecuted(EMPLOYEES);
+            // Another session updates a different table while the query runs.
+            Thread writer = new Thread(() -> cache.updateExecuted("insert into session_log (id) values (1)"));
+            writer.start();
+            writer.join();
+            return new TextMessage("employees");
+        });
+        assertEquals(0, cache.size());
+
+        get("employees", EMPLOYEES);
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void notCachedAfterWriteOrWithoutTables() throws Exception {
+        cache.get("update", EMPLOYEES, () -> {
+            cache.queryExecuted(EMPLOYEES);
+            cache.updateExecuted("update employee set visits = visits + 1");
+            return new TextMessage("updated");
+        });
+        get("no tables", "select now()");
+        get("unknown", "select * from employee", "select 1");
+
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void changedSourceBypassesEntry() throws Exception {
+        TextMessage first = get("employees", EMPLOYEES);
+        TextMessage changed = get("employees", EMPLOYEES + " order by name");
+
+        assertTrue(first != changed);
+        assertTrue(changed == get("employees", EMPLOYEES + " order by name"));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws Exception {
+        cache = new QueryResultCache(new SimpleMeterRegistry(), 60000, 2);
+        TextMessage a = get("a", EMPLOYEES);
+        get("b", DEPARTMENTS);
+        get("a", EMPLOYEES);
+        get("c", EMPLOYEES);
+
+        assertEquals(2, cache.size());
+        assertTrue(a == get("a", EMPLOYEES));
+        assertEquals(3, loads.get());
+        get("b", DEPARTMENTS);
+        assertEquals(4, loads.get());
+    }
+
+    @Test
+    public void expiresAfterTtl() throws Exception {
+        cache = new QueryResultCache(new SimpleMeterRegistry(), 50, 10);
+        TextMessage first = get("employees", EMPLOYEES);
+        assertTrue(first == get("employees", EMPLOYEES));
+
+        Thread.sleep(100);
+        assertTrue(first != get("employees", EMPLOYEES));
+        assertEquals(2, loads.get());
+    }
+
+    /**
+     * Gets a result that runs each of the queries.
+     */
+    private TextMessage get(String key, String... queries) throws Exception {
+        return cache.get(key, queries[0], () -> {
+            for (String query : queries) {
+                cache.queryExecuted(query);
+            }
+            return new TextMessage("result " + loads.incrementAndGet());
+        });
+    }
+}
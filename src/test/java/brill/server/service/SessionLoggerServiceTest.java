@@ -16,6 +16,7 @@ import org.junit.runner.RunWith;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.slf4j.LoggerFactory;
 import brill.server.database.Database;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.Logger;
 
@@ -25,6 +26,10 @@ import ch.qos.logback.classic.Logger;
 public class SessionLoggerServiceTest {
 
     static final Level LOG_LEVEL = Level.TRACE;
+    String driver;
+    String url;
+    String username;
+    String password;
     Database db;
     DatabaseService dbService;
     IPGeolocationService locationService;
@@ -35,12 +40,12 @@ public class SessionLoggerServiceTest {
         final Logger logger = (Logger)LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME);
         logger.setLevel(LOG_LEVEL);
 
-        String driver = "com.mysql.cj.jdbc.Driver";
+        driver = "com.mysql.cj.jdbc.Driver";
         
         // LOCAL DB
-        String url = "jdbc:mysql://localhost:3306/brill_local_db";
-        String username = System.getenv("BRILL_LOCAL_DATABASE_USERNAME");
-        String password = System.getenv("BRILL_LOCAL_DATABASE_PWD");
+        url = "jdbc:mysql://localhost:3306/brill_local_db";
+        username = System.getenv("BRILL_LOCAL_DATABASE_USERNAME");
+        password = System.getenv("BRILL_LOCAL_DATABASE_PWD");
 
         // PRODUCTION DB
         // String url = "jdbc:mysql://localhost:3306/brill_prod_db";
@@ -48,7 +53,7 @@ public class SessionLoggerServiceTest {
         // String password = "Mysql1234";
 
         db = new Database(driver, url, username, password);
-        dbService = new DatabaseService(db);
+        dbService = new DatabaseService(db, new QueryResultCache(new SimpleMeterRegistry(), 0, 0));
         locationService = new IPGeolocationService(true);
         service = new SessionLoggerService(true, dbService, locationService);
     }
@@ -148,6 +153,32 @@ public class SessionLoggerServiceTest {
         System.out.println("Finished");
     }
 
+    /**
+     * Times the session log insert with and without the Prepared Statement cache. Needs a local database.
+     */
+    @Disabled
+    @Test
+    public void sessionLogInsertTiming() throws Exception {
+        final int count = 500;
+        String sql = "insert into session_log (session_id, start_date_time) values (:sessionId, :startDateTime)";
+        for (int cacheSize : new int[] {0, Database.DEFAULT_STATEMENT_CACHE_SIZE}) {
+            Database timingDb = new Database(driver, url, username, password);
+            timingDb.setStatementCacheSize(cacheSize);
+            DatabaseService timingService = new DatabaseService(timingDb, new QueryResultCache(new SimpleMeterRegistry(), 0, 0));
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                JsonObject jsonParams = Json.createObjectBuilder().add("sessionId", "timing-" + randomId())
+                    .add("startDateTime", LocalDateTime.now().toString()).build();
+                timingService.executeNamedParametersUpdate(sql, jsonParams);
+            }
+            long micros = (System.nanoTime() - start) / 1000 / count;
+            System.out.println("Statement cache size " + cacheSize + ": " + micros + " us per insert");
+            timingService.executeNamedParametersUpdate("delete from session_log where session_id like 'timing-%'",
+                Json.createObjectBuilder().build());
+            timingDb.finalize();
+        }
+    }
+
     // TO BE REMOVED - code for fixing db.
     //
     // @Disabled
@@ -1,6 +1,8 @@
 package brill.server.utils;
 
 import static org.junit.Assert.assertEquals;
+import java.util.Arrays;
+import java.util.HashSet;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.junit.platform.runner.JUnitPlatform;
@@ -59,4 +61,37 @@ public class SqlUtilsTest {
         String result = SqlUtils.stripComments(sql);
         assertEquals(result, "select * from  employee where field = \"# NOT A COMMENT \"\n");
     }
-}
\ No newline at end of file
+
+    @Test
+    public void tablesRead() throws Exception {
+        String sql = "select e.name, d.name from employee e join department as d on e.dept_id = d.id\n" +
+                     "where e.id in (select employee_id from hr.Salary where amount > :amount) -- from comment\n";
+        assertEquals(new HashSet<String>(Arrays.asList("employee", "department", "salary")), SqlUtils.getTablesRead(sql));
+    }
+
+    @Test
+    public void tablesReadIgnoresQuotedStrings() throws Exception {
+        String sql = "select * from employee where name = 'from other'";
+        assertEquals(new HashSet<String>(Arrays.asList("employee")), SqlUtils.getTablesRead(sql));
+    }
+
+    @Test
+    public void tablesWritten() throws Exception {
+        assertEquals(new HashSet<String>(Arrays.asList("session_log")), 
+            SqlUtils.getTablesWritten("insert into session_log (session_id) values (:session_id)"));
+        assertEquals(new HashSet<String>(Arrays.asList("t1")), 
+            SqlUtils.getTablesWritten("update `db`.`T1` set x = 1 where id = 2"));
+        assertEquals(new HashSet<String>(), SqlUtils.getTablesWritten("call p()"));
+    }
+
+    @Test
+    public void tablesWrittenByMultipleTableUpdate() throws Exception {
+        assertEquals(new HashSet<String>(Arrays.asList("employee", "department")),
+            SqlUtils.getTablesWritten("update employee e, department d set e.dept_name = d.name where e.dept_id = d.id"));
+        assertEquals(new HashSet<String>(Arrays.asList("employee", "department", "salary")),
+            SqlUtils.getTablesWritten("update employee e inner join department d on e.dept_id = d.id\n" +
+                "left join salary s on s.emp_id = e.id set e.dept_name = d.name, s.amount = 0"));
+        assertEquals(new HashSet<String>(Arrays.asList("stock")),
+            SqlUtils.getTablesWritten("insert into stock (id, qty) values (1, 2) on duplicate key update qty = qty + 1"));
+    }
+}
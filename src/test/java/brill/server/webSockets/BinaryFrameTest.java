@@ -0,0 +1,44 @@
+package brill.server.webSockets;
+
+import static org.junit.Assert.assertEquals;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import javax.json.Json;
+import javax.json.JsonObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.web.socket.BinaryMessage;
+
+@RunWith(JUnitPlatform.class)
+@ExtendWith(MockitoExtension.class)
+public class BinaryFrameTest {
+
+    @Test
+    public void headerFollowedByContent() {
+        byte[] content = {(byte) 0x89, 'P', 'N', 'G', 0, (byte) 0xff};
+        BinaryMessage message = BinaryFrame.create("publish", "image:/app/logo.png", "image/png", content);
+
+        ByteBuffer frame = message.getPayload();
+        byte[] header = new byte[frame.getInt()];
+        frame.get(header);
+        JsonObject headerObj = Json.createReader(new StringReader(new String(header, StandardCharsets.UTF_8))).readObject();
+        assertEquals("publish", headerObj.getString("event"));
+        assertEquals("image:/app/logo.png", headerObj.getString("topic"));
+        assertEquals("image/png", headerObj.getString("contentType"));
+        assertEquals(content.length, headerObj.getInt("length"));
+
+        byte[] body = new byte[frame.remaining()];
+        frame.get(body);
+        assertEquals(ByteBuffer.wrap(content), ByteBuffer.wrap(body));
+    }
+
+    @Test
+    public void contentTypeFromTopic() {
+        assertEquals("image/png", BinaryFrame.getContentType("image:/app/logo.png"));
+        assertEquals(BinaryFrame.DEFAULT_CONTENT_TYPE, BinaryFrame.getContentType("file:/app/data.unknownext"));
+    }
+}
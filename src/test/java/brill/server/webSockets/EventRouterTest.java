@@ -0,0 +1,171 @@
+package brill.server.webSockets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static java.lang.String.format;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+import org.mockito.junit.jupiter.MockitoExtension;
+import brill.server.controller.*;
+import brill.server.webSockets.annotations.Event;
+
+@RunWith(JUnitPlatform.class)
+@ExtendWith(MockitoExtension.class)
+public class EventRouterTest {
+
+    static final int WARM_UP_MESSAGES = 20_000;
+    static final int REFLECTION_TIMED_MESSAGES = 20_000;
+    static final int ROUTER_TIMED_MESSAGES = 1_000_000;
+
+    // A mix of the messages sent by the CMS and by a typical app.
+    static final String[][] MESSAGES = {
+        {"subscribe", "json:/brill_cms/Pages/home.json"},
+        {"subscribe", "json:/brill_cms/theme.jsonc"},
+        {"subscribe", "query:/db_app/database/query.sql"},
+        {"subscribe", "javascript:/db_app/database/readTable.js"},
+        {"subscribe", "image:/MediaLibrary/logo.png"},
+        {"subscribe", "file:/brill_cms/"},
+        {"subscribe", "git:status:/"},
+        {"request", "auth:/brill_cms/authenticate"},
+        {"request", "git:pull:/"},
+        {"publish", "file:/brill_cms/Pages/home.json"},
+        {"publish", "git:delete:/brill_cms/Pages/old.json"},
+        {"unsubscribe", "json:/brill_cms/Pages/home.json"}
+    };
+
+    List<Object> controllers;
+
+    @BeforeEach
+    void setUp() {
+        controllers = Arrays.asList(
+            new AuthenticationController(null, null, null, null),
+            new ChatbotController(null, null),
+            new ConfigController(null),
+            new ErrorController(null),
+            new GitController(null, null),
+            new ImageController(null, null),
+            new JavaScriptController(null, null, null),
+            new MetricsController(null, null),
+            new PublishController(null, null, null, null, null),
+            new SubscribeController(null, null, null, null, null, null, null),
+            new TopicTreeController(null, null),
+            new UnsubscribeController(null));
+    }
+
+    @Test
+    public void allEventMethodsRegistered() {
+        EventRouter router = new EventRouter(controllers);
+        int eventMethods = 0;
+        for (Object wsController : controllers) {
+            for (Method method : wsController.getClass().getDeclaredMethods()) {
+                if (method.isAnnotationPresent(Event.class)) {
+                    eventMethods++;
+                }
+            }
+        }
+        assertEquals(eventMethods, router.getHandlerCount());
+    }
+
+    @Test
+    public void routesToExpectedMethod() {
+        EventRouter router = new EventRouter(controllers);
+        assertEquals("subscribeToJson", routeToMethodName(router, "subscribe", "json:/brill_cms/Pages/home.json"));
+        assertEquals("subscribeToTopicTree", routeToMethodName(router, "subscribe", "file:/brill_cms/"));
+        assertEquals("subscribeToFile", routeToMethodName(router, "subscribe", "file:/brill_cms/Pages/home.json"));
+        assertEquals("publishFile", routeToMethodName(router, "publish", "file:/MediaLibrary/logo.png"));
+        assertEquals("gitPull", routeToMethodName(router, "request", "git:pull:/"));
+        assertEquals("requestQueryPage", routeToMethodName(router, "request", "query:/db_app/database/query.sql"));
+        assertEquals("subscribeToDbMetrics", routeToMethodName(router, "subscribe", "metrics:/db"));
+        assertEquals("requestBinaryFrames", routeToMethodName(router, "request", "config:/binaryFrames"));
+        assertEquals("gitPullOld", routeToMethodName(router, "publish", "git:pull:/"));
+        assertEquals("deleteFolder", routeToMethodName(router, "publish", "git:delete:/brill_cms/Pages"));
+        assertEquals("unsubscribe", routeToMethodName(router, "unsubscribe", "json:/brill_cms/Pages/home.json"));
+        assertEquals(0, router.route("subscribe", "unknown:/topic").size());
+        assertEquals(0, router.route("unknown", "json:/brill_cms/Pages/home.json").size());
+    }
+
+    @Test
+    public void literalPrefix() {
+        assertEquals("git:status:/", TopicTrie.literalPrefix("git:status:/"));
+        assertEquals("git:commits:/", TopicTrie.literalPrefix("git:commits:/.*"));
+        assertEquals("json:/", TopicTrie.literalPrefix("json:/.*\\.(json|jsonc)$"));
+        assertEquals("file:", TopicTrie.literalPrefix("file:.*/$"));
+        assertEquals("a.b", TopicTrie.literalPrefix("a\\.bc?"));
+        assertEquals("", TopicTrie.literalPrefix("json:/.*|file:/.*"));
+        assertEquals("", TopicTrie.literalPrefix(".*"));
+        assertEquals("", TopicTrie.literalPrefix(""));
+    }
+
+    @Test
+    public void conflictsReportedAtStartup() {
+        EventRouter router = new EventRouter(controllers);
+        // A topic such as file:/my.app/ matches both subscribeToFile and subscribeToTopicTree.
+        assertEquals(1, router.getConflicts().size());
+        assertTrue(router.getConflicts().get(0).contains("subscribeToFile"));
+        assertTrue(router.getConflicts().get(0).contains("subscribeToTopicTree"));
+    }
+
+    /**
+     * Compares the cost per message of finding the @Event method using the routing table with the cost of the
+     * previous approach of scanning every controller using reflection. Run manually, as it only prints the timings.
+     */
+    @Disabled
+    @Test
+    public void dispatchBenchmark() {
+        EventRouter router = new EventRouter(controllers);
+        int matches = 0;
+
+        for (int i = 0; i < WARM_UP_MESSAGES; i++) {
+            String[] msg = MESSAGES[i % MESSAGES.length];
+            matches += router.route(msg[0], msg[1]).size() + reflectionScan(msg[0], msg[1]);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < REFLECTION_TIMED_MESSAGES; i++) {
+            String[] msg = MESSAGES[i % MESSAGES.length];
+            matches += reflectionScan(msg[0], msg[1]);
+        }
+        double reflectionNs = (System.nanoTime() - start) / (double) REFLECTION_TIMED_MESSAGES;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ROUTER_TIMED_MESSAGES; i++) {
+            String[] msg = MESSAGES[i % MESSAGES.length];
+            matches += router.route(msg[0], msg[1]).size();
+        }
+        double routerNs = (System.nanoTime() - start) / (double) ROUTER_TIMED_MESSAGES;
+
+        System.out.println(format("Dispatch over %s @Event methods: reflection scan = %.0f ns/msg, event router = %.0f ns/msg (%s matches)",
+            router.getHandlerCount(), reflectionNs, routerNs, matches));
+    }
+
+    private String routeToMethodName(EventRouter router, String event, String topic) {
+        List<EventHandler> handlers = router.route(event, topic);
+        assertEquals(format("Handlers for %s %s", event, topic), 1, handlers.size());
+        return handlers.get(0).getMethod().getName();
+    }
+
+    // The matching that WebSocketManager used to do for every message.
+    private int reflectionScan(String event, String topic) {
+        int callCount = 0;
+        for (Object wsController : controllers) {
+            for (Method method : wsController.getClass().getDeclaredMethods()) {
+                if (method.isAnnotationPresent(Event.class)) {
+                    Event eventAnnotation = method.getAnnotation(Event.class);
+                    String topicMatches = eventAnnotation.topicMatches();
+                    if (event.equals(eventAnnotation.value()) &&
+                        (topic.length() == 0 || topicMatches.length() == 0 || topic.matches(topicMatches))) {
+                        callCount++;
+                    }
+                }
+            }
+        }
+        return callCount;
+    }
+}
@@ -0,0 +1,89 @@
+package brill.server.webSockets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import java.io.StringReader;
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@RunWith(JUnitPlatform.class)
+@ExtendWith(MockitoExtension.class)
+public class LazyJsonMessageTest {
+
+    @Test
+    public void readsEventAndTopicWithoutFullParse() {
+        LazyJsonMessage message = LazyJsonMessage.parse(
+            "{\"content\": {\"base64\": \"AAAA\", \"list\": [1, 2, {\"topic\": \"x\"}]}, \"event\": \"publish\", \"topic\": \"file:/app/a.png\"}");
+        assertEquals("publish", message.getEvent());
+        assertEquals("file:/app/a.png", message.getTopic());
+        assertEquals("file:/app/a.png", message.getString("topic"));
+        assertFalse(message.isParsed());
+    }
+
+    @Test
+    public void parsesInFullWhenContentRequested() {
+        LazyJsonMessage message = LazyJsonMessage.parse(
+            "{\"event\": \"publish\", \"topic\": \"json:/app/a.json\", \"content\": {\"base64\": \"AAAA\"}}");
+        assertEquals("AAAA", message.getJsonObject("content").getString("base64"));
+        assertTrue(message.isParsed());
+        assertEquals(3, message.size());
+    }
+
+    @Test
+    public void missingEventAndTopic() {
+        LazyJsonMessage message = LazyJsonMessage.parse("{\"filter\": {}}");
+        assertEquals("", message.getEvent());
+        assertEquals("", message.getTopic());
+        assertFalse(message.containsKey("topic"));
+    }
+
+    @Test
+    public void invalidMessages() {
+        assertThrows(JsonException.class, () -> LazyJsonMessage.parse("[\"subscribe\"]"));
+        assertThrows(JsonException.class, () -> LazyJsonMessage.parse("{\"event\": 1, \"topic\": \"json:/a.json\"}"));
+        assertThrows(JsonException.class, () -> LazyJsonMessage.parse("{\"event\": \"subscribe\", "));
+    }
+
+    @Test
+    public void streamsContentFields() {
+        LazyJsonMessage message = LazyJsonMessage.parse("{\"event\": \"publish\", \"topic\": \"file:/app/a.png\", " +
+            "\"content\": {\"list\": [1, {\"base64\": \"x\"}], \"base64\": \"AAAA\", \"noOverwrite\": true}, \"id\": 1}");
+        JsonObject fields = LazyJsonMessage.getContentFields(message, "base64", "noOverwrite", "missing");
+        assertEquals("{\"base64\":\"AAAA\",\"noOverwrite\":true}", fields.toString());
+        assertEquals(null, LazyJsonMessage.getContentFields(LazyJsonMessage.parse("{\"content\": \"text\"}"), "base64"));
+        assertFalse(message.isParsed());
+
+        message.size();
+        assertEquals(fields, LazyJsonMessage.getContentFields(message, "base64", "noOverwrite", "missing"));
+    }
+
+    @Test
+    public void streamsContentJson() {
+        String payload = "{\"content\": {\"title\": \"Caf\\u00e9 \\\"A\\\"\", \"n\": [1, 2.50, -3e2, null, false, {}]}, " +
+            "\"event\": \"publish\", \"topic\": \"json:/app/a.json\"}";
+        LazyJsonMessage message = LazyJsonMessage.parse(payload);
+        String expected = Json.createReader(new StringReader(payload)).readObject().get("content").toString();
+        assertEquals(expected, LazyJsonMessage.getContentJson(message));
+        assertFalse(message.isParsed());
+
+        assertEquals("\"New title\"", LazyJsonMessage.getContentJson(LazyJsonMessage.parse(
+            "{\"event\": \"publish\", \"topic\": \"json:/app/a.json\", \"content\": \"New title\"}")));
+        assertEquals(null, LazyJsonMessage.getContentJson(LazyJsonMessage.parse("{\"event\": \"publish\"}")));
+    }
+
+    @Test
+    public void incompleteContentRejected() {
+        LazyJsonMessage message = LazyJsonMessage.parse(
+            "{\"event\": \"publish\", \"topic\": \"file:/app/a.png\", \"content\": {\"base64\": \"AAAA\"}");
+        assertThrows(JsonException.class, () -> LazyJsonMessage.getContentFields(message, "base64"));
+        assertThrows(JsonException.class, () -> LazyJsonMessage.getContentJson(message));
+    }
+}
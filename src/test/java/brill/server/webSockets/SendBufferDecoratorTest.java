@@ -0,0 +1,146 @@
+package brill.server.webSockets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+@RunWith(JUnitPlatform.class)
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+public class SendBufferDecoratorTest {
+
+    @Mock
+    WebSocketSession delegate;
+
+    List<String> sent = new CopyOnWriteArrayList<String>();
+    CountDownLatch sendStarted = new CountDownLatch(1);
+    CountDownLatch clientReady = new CountDownLatch(1);
+
+    @BeforeEach
+    void setUp() throws Exception {
+        when(delegate.getId()).thenReturn("s1");
+        // The first send blocks until the test releases it, like a client on a slow connection.
+        doAnswer(invocation -> {
+            WebSocketMessage<?> message = invocation.getArgument(0);
+            sendStarted.countDown();
+            clientReady.await(5, TimeUnit.SECONDS);
+            sent.add((String) message.getPayload());
+            return null;
+        }).when(delegate).sendMessage(any());
+    }
+
+    @Test
+    public void coalescesPublishesToTheSameTopic() throws Exception {
+        SendBufferDecorator session = new SendBufferDecorator(delegate, 60000, 1000,
+            SendBufferDecorator.OverflowPolicy.COALESCE, null);
+        Thread sender = startSlowSend(session);
+
+        session.sendMessage("json:/a.json", new TextMessage("a1"));
+        session.sendMessage("json:/b.json", new TextMessage("b1"));
+        session.sendMessage("json:/a.json", new TextMessage("a2"));
+        session.sendMessage(new TextMessage("error"));
+        assertEquals(3, session.getBufferedMessageCount());
+
+        clientReady.countDown();
+        sender.join();
+        assertEquals(List.of("first", "b1", "a2", "error"), sent);
+    }
+
+    @Test
+    public void dropsOldestWhenOverLimit() throws Exception {
+        SendBufferDecorator session = new SendBufferDecorator(delegate, 60000, 5,
+            SendBufferDecorator.OverflowPolicy.DROP_OLDEST, null);
+        Thread sender = startSlowSend(session);
+
+        session.sendMessage("json:/a.json", new TextMessage("111"));
+        session.sendMessage("json:/b.json", new TextMessage("222"));
+        session.sendMessage("json:/c.json", new TextMessage("333"));
+        assertTrue(session.getBufferSize() <= 5);
+
+        clientReady.countDown();
+        sender.join();
+        assertEquals(List.of("first", "333"), sent);
+    }
+
+    @Test
+    public void dropOldestKeepsMessagesWithoutTopic() throws Exception {
+        SendBufferDecorator session = new SendBufferDecorator(delegate, 60000, 8,
+            SendBufferDecorator.OverflowPolicy.DROP_OLDEST, null);
+        Thread sender = startSlowSend(session);
+
+        session.sendMessage(new TextMessage("error"));
+        session.sendMessage("json:/a.json", new TextMessage("111"));
+        session.sendMessage("json:/b.json", new TextMessage("222"));
+        assertEquals(2, session.getBufferedMessageCount());
+
+        clientReady.countDown();
+        sender.join();
+        assertEquals(List.of("first", "error", "222"), sent);
+    }
+
+    @Test
+    public void dropOldestClosesWhenOnlyMessagesWithoutTopicAreLeft() throws Exception {
+        SendBufferDecorator session = new SendBufferDecorator(delegate, 60000, 8,
+            SendBufferDecorator.OverflowPolicy.DROP_OLDEST, null);
+        Thread sender = startSlowSend(session);
+
+        session.sendMessage(new TextMessage("error"));
+        session.sendMessage("json:/a.json", new TextMessage("111"));
+        session.sendMessage(new TextMessage("page1"));
+        verify(delegate).close(CloseStatus.SESSION_NOT_RELIABLE);
+
+        clientReady.countDown();
+        sender.join();
+        assertEquals(List.of("first"), sent);
+    }
+
+    @Test
+    public void closesWhenOverLimit() throws Exception {
+        SendBufferDecorator session = new SendBufferDecorator(delegate, 60000, 5,
+            SendBufferDecorator.OverflowPolicy.TERMINATE, null);
+        Thread sender = startSlowSend(session);
+
+        session.sendMessage(new TextMessage("111"));
+        session.sendMessage(new TextMessage("222"));
+        verify(delegate).close(CloseStatus.SESSION_NOT_RELIABLE);
+        session.sendMessage(new TextMessage("333"));
+        assertEquals(0, session.getBufferedMessageCount());
+
+        clientReady.countDown();
+        sender.join();
+        assertEquals(List.of("first"), sent);
+    }
+
+    private Thread startSlowSend(SendBufferDecorator session) throws Exception {
+        Thread sender = new Thread(() -> {
+            try {
+                session.sendMessage(new TextMessage("first"));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        sender.start();
+        assertTrue(sendStarted.await(5, TimeUnit.SECONDS));
+        return sender;
+    }
+}
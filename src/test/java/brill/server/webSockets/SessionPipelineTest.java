@@ -0,0 +1,88 @@
+package brill.server.webSockets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.web.socket.WebSocketSession;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+@RunWith(JUnitPlatform.class)
+@ExtendWith(MockitoExtension.class)
+public class SessionPipelineTest {
+
+    @Mock
+    WebSocketSession session;
+
+    @Mock
+    WebSocketSession other;
+
+    SessionPipeline pipeline;
+    List<String> processed = new CopyOnWriteArrayList<String>();
+
+    @BeforeEach
+    void setUp() {
+        // One worker, so the tasks of all the sessions run one after the other.
+        pipeline = new SessionPipeline(new SimpleMeterRegistry(), true, 1, 2, "reject", 0);
+        when(session.getId()).thenReturn("s1");
+    }
+
+    @AfterEach
+    void tearDown() {
+        pipeline.shutdown();
+    }
+
+    @Test
+    public void processesInOrder() throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        assertTrue(pipeline.submit(session, () -> processed.add("first")));
+        assertTrue(pipeline.submit(session, () -> {
+            processed.add("second");
+            done.countDown();
+        }));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of("first", "second"), processed);
+    }
+
+    @Test
+    public void dropsQueuedMessagesWhenSessionRemoved() throws Exception {
+        when(other.getId()).thenReturn("s2");
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        assertTrue(pipeline.submit(session, () -> {
+            started.countDown();
+            awaitQuietly(release);
+            processed.add("running");
+        }));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertTrue(pipeline.submit(session, () -> processed.add("queued")));
+
+        pipeline.removeSession(session);
+        release.countDown();
+
+        // The worker has finished with the removed session once a task for another session has run.
+        CountDownLatch done = new CountDownLatch(1);
+        assertTrue(pipeline.submit(other, done::countDown));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of("running"), processed);
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package brill.server.webSockets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@RunWith(JUnitPlatform.class)
+@ExtendWith(MockitoExtension.class)
+public class SubscriptionIndexTest {
+
+    SubscriptionIndex index;
+
+    @BeforeEach
+    void setUp() {
+        index = new SubscriptionIndex();
+        index.add("s1", "json:/MyApp/Pages/home.json", "{}");
+        index.add("s2", "json:/MyApp/Pages/home.json", "{\"id\":1}");
+        index.add("s1", "file:/", "{}");
+        index.add("s2", "file:/MyApp/", "{}");
+        index.add("s2", "file:/MyApp/Pages/home.json", "{}");
+        index.add("s3", "file:/Other/readme.txt", "{}");
+    }
+
+    @Test
+    public void exactTopic() {
+        Map<String, String> subscriptions = index.getSubscriptions("json:/MyApp/Pages/home.json");
+        assertEquals(2, subscriptions.size());
+        assertEquals("{\"id\":1}", subscriptions.get("s2"));
+        assertEquals(0, index.getSubscriptions("json:/MyApp/Pages/about.json").size());
+    }
+
+    @Test
+    public void prefixAndBranches() {
+        assertEquals(Arrays.asList("file:/MyApp/", "file:/MyApp/Pages/home.json"),
+            index.getSubscriptionsStartingWith("file:/MyApp/").keySet().stream().toList());
+        assertEquals(Arrays.asList("file:/", "file:/MyApp/"), index.getBranchTopics("file:/MyApp/Pages/home.json"));
+        assertEquals(Arrays.asList("file:/"), index.getBranchTopics("file:/Other/readme.txt"));
+    }
+
+    @Test
+    public void removeSubscriptionAndSession() {
+        index.remove("s1", "json:/MyApp/Pages/home.json");
+        assertEquals(1, index.getSubscriptions("json:/MyApp/Pages/home.json").size());
+
+        index.removeSession("s2");
+        assertTrue(index.getSubscriptions("json:/MyApp/Pages/home.json").isEmpty());
+        assertTrue(index.getSubscriptionsStartingWith("file:/MyApp/").isEmpty());
+        assertEquals(2, index.getTopicCount());
+    }
+
+    @Test
+    public void concurrentAddAndRemove() throws Exception {
+        String topic = "json:/MyApp/Pages/shared.json";
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for (int i = 0; i < 2000; i++) {
+                index.add("a", topic, "{}");
+                CountDownLatch start = new CountDownLatch(1);
+                // Removing the only subscriber empties the topic while another session subscribes to it.
+                Future<?> remove = executor.submit(() -> {
+                    start.await();
+                    index.remove("a", topic);
+                    return null;
+                });
+                Future<?> add = executor.submit(() -> {
+                    start.await();
+                    index.add("b", topic, "{}");
+                    return null;
+                });
+                start.countDown();
+                remove.get();
+                add.get();
+
+                assertEquals(Arrays.asList("b"), index.getSubscriptions(topic).keySet().stream().toList());
+                assertTrue(index.getSubscriptionsStartingWith(topic).containsKey(topic));
+                index.remove("b", topic);
+                assertTrue(index.getSubscriptionsStartingWith(topic).isEmpty());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}